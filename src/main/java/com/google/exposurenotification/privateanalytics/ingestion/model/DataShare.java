@@ -22,38 +22,43 @@ import com.google.firestore.v1.Value.ValueTypeCase;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.security.SecureRandom;
-import java.util.ArrayList;
-import java.util.Base64;
 import java.util.List;
 import java.util.Map;
+import org.apache.beam.sdk.coders.DefaultCoder;
 import org.apache.beam.sdk.metrics.Counter;
 import org.apache.beam.sdk.metrics.Metrics;
 import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.TupleTag;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /** Pipeline view of Firestore documents corresponding to Prio data share pairs. */
 @AutoValue
+@DefaultCoder(DataShareCoder.class)
 public abstract class DataShare implements Serializable {
 
   private static final Logger LOG = LoggerFactory.getLogger(DataShare.class);
 
   private static final long serialVersionUID = 1L;
   public static final int LATEST_SCHEMA_VERSION = 2;
-  private static final String MISSING_MSG_PREFIX = "Missing required field: ";
+  static final String MISSING_MSG_PREFIX = "Missing required field: ";
 
-  private static final Counter missingRequiredCounter =
+  static final Counter missingRequiredCounter =
       Metrics.counter(DataShare.class, "datashare-missingRequired");
-  private static final Counter castExceptionCounter =
+  static final Counter castExceptionCounter =
       Metrics.counter(DataShare.class, "datashare-castException");
-  private static final Counter illegalArgCounter =
-      Metrics.counter(DataShare.class, "datashare-illegalArg");
+  static final Counter illegalArgCounter = Metrics.counter(DataShare.class, "datashare-illegalArg");
   private static final Counter failedRPitGenerationCounter =
       Metrics.counter(DataShare.class, "datashare-failedRPitGeneration");
   private static final Counter invalidDocumentCounter =
       Metrics.counter(DataShare.class, "datashare-invalidDocument");
 
+  // Seeding a SecureRandom is far more expensive than drawing from one, so keep one per thread.
+  private static final ThreadLocal<SecureRandom> SECURE_RANDOM =
+      ThreadLocal.withInitial(SecureRandom::new);
+
   // Firestore document field names. See
   // https://github.com/google/exposure-notifications-android/blob/4b7b461282b2ede6fb2a93488c6d628440052c8d/app/src/main/java/com/google/android/apps/exposurenotification/privateanalytics/PrivateAnalyticsFirestoreRepository.java#L44
   public static final String DOCUMENT_FIELDS = "documentFields";
@@ -67,6 +72,10 @@ public abstract class DataShare implements Serializable {
   public static final String CREATED = "created";
   public static final String UUID = "uuid";
   public static final String PRIO_PARAMS = "prioParams";
+  private static final DocumentField CREATED_FIELD =
+      DocumentField.of(CREATED, PAYLOAD, ValueTypeCase.TIMESTAMP_VALUE);
+  private static final DocumentField UUID_FIELD =
+      DocumentField.of(UUID, PAYLOAD, ValueTypeCase.STRING_VALUE);
 
   // Signature and certificates fields
   public abstract @Nullable String getSignature();
@@ -88,18 +97,59 @@ public abstract class DataShare implements Serializable {
   public static final String ENCRYPTION_KEY_ID = "encryptionKeyId";
   public static final String DATA_SHARE_PAYLOAD = "payload";
 
+  // Presence bits of the primitive-backed fields, see getPresence()
+  private static final int HAS_CREATED_MS = 1;
+  private static final int HAS_R_PIT = 1 << 1;
+  private static final int HAS_SCHEMA_VERSION = 1 << 2;
+
   /** Firestore document path */
   public abstract @Nullable String getPath();
 
-  public abstract @Nullable Long getCreatedMs();
+  /**
+   * Which of the primitive-backed fields are set. Numeric fields are stored unboxed with explicit
+   * presence bits rather than as nullable boxes, to save an object per field and share.
+   */
+  abstract int getPresence();
+
+  /** @return creation time in milliseconds, or 0 if unset */
+  public abstract long getCreatedMsValue();
+
+  public boolean hasCreatedMs() {
+    return (getPresence() & HAS_CREATED_MS) != 0;
+  }
+
+  /** Boxed view of {@link #getCreatedMsValue()}, null if unset. */
+  public @Nullable Long getCreatedMs() {
+    return hasCreatedMs() ? getCreatedMsValue() : null;
+  }
 
   public abstract @Nullable String getUuid();
 
   public abstract @Nullable String getException();
 
-  public abstract @Nullable Long getRPit();
+  /** @return r_PIT, or 0 if unset */
+  public abstract long getRPitValue();
+
+  public boolean hasRPit() {
+    return (getPresence() & HAS_R_PIT) != 0;
+  }
+
+  /** Boxed view of {@link #getRPitValue()}, null if unset. */
+  public @Nullable Long getRPit() {
+    return hasRPit() ? getRPitValue() : null;
+  }
+
+  /** @return payload schema version, or 0 if unset */
+  public abstract int getSchemaVersionValue();
 
-  public abstract @Nullable Integer getSchemaVersion();
+  public boolean hasSchemaVersion() {
+    return (getPresence() & HAS_SCHEMA_VERSION) != 0;
+  }
+
+  /** Boxed view of {@link #getSchemaVersionValue()}, null if unset. */
+  public @Nullable Integer getSchemaVersion() {
+    return hasSchemaVersion() ? getSchemaVersionValue() : null;
+  }
 
   public abstract @Nullable List<EncryptedShare> getEncryptedDataShares();
 
@@ -111,168 +161,67 @@ public abstract class DataShare implements Serializable {
     builder.setPath(doc.getName());
 
     // Process the payload.
-    if (doc.getFieldsMap().get(PAYLOAD) == null) {
+    Value payloadValue = doc.getFieldsMap().get(PAYLOAD);
+    if (payloadValue == null) {
       missingRequiredCounter.inc();
       throw new InvalidDataShareException(MISSING_MSG_PREFIX + PAYLOAD);
     }
-    Map<String, Value> payload = doc.getFieldsMap().get(PAYLOAD).getMapValue().getFieldsMap();
+    Map<String, Value> payload = payloadValue.getMapValue().getFieldsMap();
 
-    checkValuePresent(CREATED, payload, PAYLOAD, ValueTypeCase.TIMESTAMP_VALUE);
-    checkValuePresent(UUID, payload, PAYLOAD, ValueTypeCase.STRING_VALUE);
+    // Common to all schema versions, and checked before the version as they always have been
+    Value created = CREATED_FIELD.require(payload);
+    Value uuid = UUID_FIELD.require(payload);
     builder.setCreatedMs(
-        payload.get(CREATED).getTimestampValue().getSeconds() * 1000
-            + payload.get(CREATED).getTimestampValue().getNanos() / 1000000);
-    builder.setUuid(payload.get(UUID).getStringValue());
-
-    // Check against the latest schema version.
-    // In the future, if we want to support different schema versions, the logic may need to change
-    // according to the value in the payload.
-    if (payload.get(SCHEMA_VERSION) == null) {
+        created.getTimestampValue().getSeconds() * 1000
+            + created.getTimestampValue().getNanos() / 1000000);
+    builder.setUuid(uuid.getStringValue());
+
+    // The schema version selects the parser for the rest of the document, so that documents of
+    // different versions can be ingested in the same run.
+    Value schemaVersionValue = payload.get(SCHEMA_VERSION);
+    if (schemaVersionValue == null) {
       missingRequiredCounter.inc();
       throw new InvalidDataShareException(MISSING_MSG_PREFIX + SCHEMA_VERSION);
     }
-    Integer schemaVersion = (int) payload.get(SCHEMA_VERSION).getIntegerValue();
-    if (schemaVersion > LATEST_SCHEMA_VERSION || schemaVersion <= 0) {
+    int schemaVersion = (int) schemaVersionValue.getIntegerValue();
+    DataShareParser parser = DataShareParsers.forSchemaVersion(schemaVersion);
+    if (parser == null) {
       illegalArgCounter.inc();
       throw new InvalidDataShareException("Invalid schema version: " + schemaVersion);
     }
     builder.setSchemaVersion(schemaVersion);
+    parser.parse(doc, payload, builder);
 
-    // Get the Prio parameters.
-    DataShareMetadata.Builder metadataBuilder = DataShareMetadata.builder();
-    checkValuePresent(PRIO_PARAMS, payload, PAYLOAD, ValueTypeCase.MAP_VALUE);
-    Map<String, Value> prioParams = payload.get(PRIO_PARAMS).getMapValue().getFieldsMap();
-
-    checkValuePresent(PRIME_FIELD, prioParams, PRIO_PARAMS, ValueTypeCase.INTEGER_VALUE);
-    Long prime = prioParams.get(PRIME_FIELD).getIntegerValue();
-    if (prime != PRIME) {
-      illegalArgCounter.inc();
-      throw new InvalidDataShareException("Invalid prime: " + prime);
-    }
-    metadataBuilder.setPrime(prime);
-
-    checkValuePresent(EPSILON, prioParams, PRIO_PARAMS, ValueTypeCase.DOUBLE_VALUE);
-    metadataBuilder.setEpsilon(prioParams.get(EPSILON).getDoubleValue());
-
-    checkValuePresent(BINS, prioParams, PRIO_PARAMS, ValueTypeCase.INTEGER_VALUE);
-    int bins = (int) prioParams.get(BINS).getIntegerValue();
-    if (bins < 0) {
-      illegalArgCounter.inc();
-      throw new InvalidDataShareException("Invalid number of bins: " + bins);
-    }
-    metadataBuilder.setBins(bins);
-
-    checkValuePresent(
-        NUMBER_OF_SERVERS_FIELD, prioParams, PRIO_PARAMS, ValueTypeCase.INTEGER_VALUE);
-    int numberOfServers = (int) prioParams.get(NUMBER_OF_SERVERS_FIELD).getIntegerValue();
-    if (numberOfServers != NUMBER_OF_SERVERS) {
-      illegalArgCounter.inc();
-      throw new InvalidDataShareException("Invalid number of servers: " + numberOfServers);
-    }
-    metadataBuilder.setNumberOfServers(numberOfServers);
-
-    if (prioParams.get(HAMMING_WEIGHT) != null) {
-      // This will type-check the hamming weight field.
-      checkValuePresent(HAMMING_WEIGHT, prioParams, PRIO_PARAMS, ValueTypeCase.INTEGER_VALUE);
-      metadataBuilder.setHammingWeight((int) prioParams.get(HAMMING_WEIGHT).getIntegerValue());
-    }
-    try {
-      String fullPath = doc.getName();
-      // The metricName is the base name of the document path
-      metadataBuilder.setMetricName(fullPath.substring(fullPath.lastIndexOf('/') + 1));
-    } catch (RuntimeException e) {
-      missingRequiredCounter.inc();
-      throw new InvalidDataShareException(MISSING_MSG_PREFIX + "Name", e);
-    }
-
-    builder.setDataShareMetadata(metadataBuilder.build());
+    return builder.build();
+  }
 
-    // Generate a r_PIT randomly for every data share. r_PIT cannot be equal to any of the n-th
-    // root of unity where n = next_power_two(#bins + 1).
-    // Cf. page 18 of https://eprint.iacr.org/2019/188.pdf.
-    Long rPit;
+  /**
+   * Generate a r_PIT randomly for a data share. r_PIT cannot be equal to any of the n-th root of
+   * unity where n = next_power_two(#bins + 1).
+   *
+   * <p>Cf. page 18 of https://eprint.iacr.org/2019/188.pdf.
+   */
+  public static long generateRPit(long prime, int bins) {
     try {
       BigInteger n = BigInteger.valueOf(nextPowerTwo(bins + 1));
       BigInteger p = BigInteger.valueOf(prime);
-      rPit = generateRandom(prime);
+      long rPit = generateRandom(prime);
       while (BigInteger.valueOf(rPit).modPow(n, p) == BigInteger.ONE) {
         rPit = generateRandom(prime);
       }
+      return rPit;
     } catch (RuntimeException e) {
       failedRPitGenerationCounter.inc();
       throw new InvalidDataShareException("Could not generate rPit", e);
     }
-    builder.setRPit(rPit);
-
-    // Get the encrypted shares.
-    checkValuePresent(ENCRYPTED_DATA_SHARES, payload, PAYLOAD, ValueTypeCase.ARRAY_VALUE);
-    List<Value> encryptedDataShares =
-        payload.get(ENCRYPTED_DATA_SHARES).getArrayValue().getValuesList();
-    if (encryptedDataShares.size() != numberOfServers) {
-      illegalArgCounter.inc();
-      throw new InvalidDataShareException(
-          "Mismatch between number of servers ("
-              + numberOfServers
-              + ") and number of data shares ("
-              + encryptedDataShares.size()
-              + ")");
-    }
-    List<EncryptedShare> shares = new ArrayList<>(NUMBER_OF_SERVERS);
-    // Ensure data shares are of correct type and convert to DataShare-compatible type.
-    for (int i = 0; i < encryptedDataShares.size(); i++) {
-      Map<String, Value> encryptedDataShare =
-          encryptedDataShares.get(i).getMapValue().getFieldsMap();
-      checkValuePresent(
-          ENCRYPTION_KEY_ID,
-          encryptedDataShare,
-          ENCRYPTED_DATA_SHARES + "[" + i + "]",
-          ValueTypeCase.STRING_VALUE);
-      checkValuePresent(
-          DATA_SHARE_PAYLOAD,
-          encryptedDataShare,
-          ENCRYPTED_DATA_SHARES + "[" + i + "]",
-          ValueTypeCase.STRING_VALUE);
-      String keyId = encryptedDataShare.get(ENCRYPTION_KEY_ID).getStringValue();
-      String base64payload = encryptedDataShare.get(DATA_SHARE_PAYLOAD).getStringValue();
-      byte[] decodedPayload;
-      try {
-        decodedPayload = Base64.getDecoder().decode(base64payload);
-      } catch (IllegalArgumentException e) {
-        illegalArgCounter.inc();
-        throw new InvalidDataShareException("Unable to base64 decode payload", e);
-      }
-      shares.add(
-          EncryptedShare.builder()
-              .setEncryptionKeyId(keyId)
-              .setEncryptedPayload(decodedPayload)
-              .build());
-    }
-    builder.setEncryptedDataShares(shares);
-
-    // Get the signature and cert chain
-    Map<String, Value> fields = doc.getFieldsMap();
-    checkValuePresent(SIGNATURE, fields, DOCUMENT_FIELDS, ValueTypeCase.STRING_VALUE);
-    builder.setSignature(fields.get(SIGNATURE).getStringValue());
-    if (fields.get(CERT_CHAIN) == null) {
-      missingRequiredCounter.inc();
-      throw new InvalidDataShareException(MISSING_MSG_PREFIX + CERT_CHAIN);
-    }
-    List<Value> certChainValue = fields.get(CERT_CHAIN).getArrayValue().getValuesList();
-    List<String> certChainString = new ArrayList<>();
-    for (Value cert : certChainValue) {
-      if (cert.getStringValue() == null) {
-        illegalArgCounter.inc();
-        throw new InvalidDataShareException("invalid or empty certificate");
-      }
-      certChainString.add(cert.getStringValue());
-    }
-    builder.setCertificateChain(certChainString);
-
-    return builder.build();
   }
 
   public static Builder builder() {
-    return new AutoValue_DataShare.Builder();
+    return new AutoValue_DataShare.Builder()
+        .setPresence(0)
+        .setCreatedMsValue(0)
+        .setRPitValue(0)
+        .setSchemaVersionValue(0);
   }
 
   public static class InvalidDataShareException extends IllegalArgumentException {
@@ -293,15 +242,52 @@ public abstract class DataShare implements Serializable {
 
     public abstract Builder setPath(@Nullable String value);
 
-    public abstract Builder setCreatedMs(@Nullable Long value);
+    abstract int getPresence();
+
+    abstract Builder setPresence(int value);
+
+    abstract Builder setCreatedMsValue(long value);
+
+    public Builder setCreatedMs(long value) {
+      return setCreatedMsValue(value).setPresence(getPresence() | HAS_CREATED_MS);
+    }
+
+    public Builder setCreatedMs(@Nullable Long value) {
+      if (value == null) {
+        return setCreatedMsValue(0).setPresence(getPresence() & ~HAS_CREATED_MS);
+      }
+      return setCreatedMs(value.longValue());
+    }
 
     public abstract Builder setUuid(@Nullable String value);
 
     public abstract Builder setException(@Nullable String value);
 
-    public abstract Builder setRPit(@Nullable Long value);
+    abstract Builder setRPitValue(long value);
+
+    public Builder setRPit(long value) {
+      return setRPitValue(value).setPresence(getPresence() | HAS_R_PIT);
+    }
+
+    public Builder setRPit(@Nullable Long value) {
+      if (value == null) {
+        return setRPitValue(0).setPresence(getPresence() & ~HAS_R_PIT);
+      }
+      return setRPit(value.longValue());
+    }
 
-    public abstract Builder setSchemaVersion(@Nullable Integer value);
+    abstract Builder setSchemaVersionValue(int value);
+
+    public Builder setSchemaVersion(int value) {
+      return setSchemaVersionValue(value).setPresence(getPresence() | HAS_SCHEMA_VERSION);
+    }
+
+    public Builder setSchemaVersion(@Nullable Integer value) {
+      if (value == null) {
+        return setSchemaVersionValue(0).setPresence(getPresence() & ~HAS_SCHEMA_VERSION);
+      }
+      return setSchemaVersion(value.intValue());
+    }
 
     public abstract Builder setEncryptedDataShares(@Nullable List<EncryptedShare> value);
 
@@ -312,21 +298,82 @@ public abstract class DataShare implements Serializable {
     public abstract Builder setCertificateChain(@Nullable List<String> certChain);
   }
 
-  // A transform that constructs and outputs a DataShare for a Document.
+  /**
+   * Parses Firestore documents into {@link DataShare}s.
+   *
+   * <p>Documents that fail to parse are counted, and only the first few of each bundle are logged.
+   * When quarantining is enabled, invalid documents are also emitted to {@link #INVALID_DOCUMENTS}
+   * keyed with their failure reason, up to a maximum per bundle so that a flood of bad uploads
+   * cannot swamp the quarantine output. Use {@link #DATA_SHARES} as the main output tag.
+   */
   public static class ConstructDataSharesFn extends DoFn<Document, DataShare> {
 
+    public static final TupleTag<DataShare> DATA_SHARES = new TupleTag<DataShare>() {};
+    public static final TupleTag<KV<Document, String>> INVALID_DOCUMENTS =
+        new TupleTag<KV<Document, String>>() {};
+
+    private static final int MAX_LOGGED_PER_BUNDLE = 10;
+
+    private static final Counter quarantinedDocumentCounter =
+        Metrics.counter(DataShare.class, "datashare-quarantinedDocument");
+    private static final Counter droppedQuarantineCounter =
+        Metrics.counter(DataShare.class, "datashare-quarantineDropped");
+
+    private final long maxQuarantinedPerBundle;
+    private transient long invalidInBundle;
+
+    /** Counts and drops invalid documents without a side output. */
+    public ConstructDataSharesFn() {
+      this(0);
+    }
+
+    /**
+     * @param maxQuarantinedPerBundle maximum number of invalid documents emitted to {@link
+     *     #INVALID_DOCUMENTS} per bundle. 0 disables the side output.
+     */
+    public ConstructDataSharesFn(long maxQuarantinedPerBundle) {
+      this.maxQuarantinedPerBundle = maxQuarantinedPerBundle;
+    }
+
+    @StartBundle
+    public void startBundle() {
+      invalidInBundle = 0;
+    }
+
     @ProcessElement
     public void processElement(ProcessContext context) {
+      Document doc = context.element();
       try {
-        DataShare dataShare = DataShare.from(context.element());
+        DataShare dataShare = DataShare.from(doc);
         Metrics.counter(DataShare.class, "dataShares").inc();
         Metrics.counter(
                 DataShare.class, "dataShares-" + dataShare.getDataShareMetadata().getMetricName())
             .inc();
         context.output(dataShare);
       } catch (InvalidDataShareException e) {
-        LOG.warn("Invalid data share", e);
         invalidDocumentCounter.inc();
+        invalidInBundle++;
+        if (invalidInBundle <= MAX_LOGGED_PER_BUNDLE) {
+          LOG.warn("Invalid data share: {}", doc.getName(), e);
+        }
+        if (maxQuarantinedPerBundle > 0) {
+          if (invalidInBundle <= maxQuarantinedPerBundle) {
+            context.output(INVALID_DOCUMENTS, KV.of(doc, String.valueOf(e.getMessage())));
+            quarantinedDocumentCounter.inc();
+          } else {
+            droppedQuarantineCounter.inc();
+          }
+        }
+      }
+    }
+
+    @FinishBundle
+    public void finishBundle() {
+      if (invalidInBundle > MAX_LOGGED_PER_BUNDLE) {
+        LOG.warn(
+            "{} invalid data shares in bundle, only the first {} were logged",
+            invalidInBundle,
+            MAX_LOGGED_PER_BUNDLE);
       }
     }
   }
@@ -348,33 +395,16 @@ public abstract class DataShare implements Serializable {
     return 1L << count;
   }
 
-  // Checks for the presence of the given field in the sourceMap and provides detailed exceptions
-  // if the field is absent or of the wrong type.
-  private static void checkValuePresent(
-      String field, Map<String, Value> sourceMap, String sourceName, ValueTypeCase type) {
-    if (!sourceMap.containsKey(field) || sourceMap.get(field) == null) {
-      missingRequiredCounter.inc();
-      throw new InvalidDataShareException(
-          MISSING_MSG_PREFIX + "'" + field + "' from '" + sourceName + "'");
-    }
-
-    if (!sourceMap.get(field).getValueTypeCase().equals(type)) {
-      castExceptionCounter.inc();
-      throw new InvalidDataShareException(
-          "Error casting '" + field + "' from '" + sourceName + "' to " + type.name());
-    }
-  }
-
   // Generate a random element in [0, p-1] using SecureRandom.
-  private static Long generateRandom(Long p) {
+  private static long generateRandom(long p) {
     if (p <= 0) {
       throw new InvalidDataShareException("The upper bound should be > 0.");
     }
     // Use rejection sampling to generate a random v in [0, p-1].
     // We generate a v with the same number of bits as p, and restart until v is
     // smaller than p.
-    SecureRandom secureRandom = new SecureRandom();
-    Long v = Long.MAX_VALUE;
+    SecureRandom secureRandom = SECURE_RANDOM.get();
+    long v = Long.MAX_VALUE;
     while (v >= p || v < 0) { // this terminates in less than 4 rounds in expectation.
       v = secureRandom.nextLong();
       v >>= Long.numberOfLeadingZeros(p);
@@ -388,15 +418,75 @@ public abstract class DataShare implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
-    public abstract @Nullable Double getEpsilon();
+    // Presence bits of the primitive-backed fields, see getPresence()
+    private static final int HAS_EPSILON = 1;
+    private static final int HAS_PRIME = 1 << 1;
+    private static final int HAS_BINS = 1 << 2;
+    private static final int HAS_NUMBER_OF_SERVERS = 1 << 3;
+    private static final int HAS_HAMMING_WEIGHT = 1 << 4;
+
+    /** Which of the primitive-backed fields are set, as in {@link DataShare}. */
+    abstract int getPresence();
+
+    /** @return epsilon, or 0 if unset */
+    public abstract double getEpsilonValue();
+
+    public boolean hasEpsilon() {
+      return (getPresence() & HAS_EPSILON) != 0;
+    }
+
+    /** Boxed view of {@link #getEpsilonValue()}, null if unset. */
+    public @Nullable Double getEpsilon() {
+      return hasEpsilon() ? getEpsilonValue() : null;
+    }
+
+    /** @return prime, or 0 if unset */
+    public abstract long getPrimeValue();
+
+    public boolean hasPrime() {
+      return (getPresence() & HAS_PRIME) != 0;
+    }
+
+    /** Boxed view of {@link #getPrimeValue()}, null if unset. */
+    public @Nullable Long getPrime() {
+      return hasPrime() ? getPrimeValue() : null;
+    }
+
+    /** @return number of bins, or 0 if unset */
+    public abstract int getBinsValue();
+
+    public boolean hasBins() {
+      return (getPresence() & HAS_BINS) != 0;
+    }
+
+    /** Boxed view of {@link #getBinsValue()}, null if unset. */
+    public @Nullable Integer getBins() {
+      return hasBins() ? getBinsValue() : null;
+    }
+
+    /** @return number of servers, or 0 if unset */
+    public abstract int getNumberOfServersValue();
+
+    public boolean hasNumberOfServers() {
+      return (getPresence() & HAS_NUMBER_OF_SERVERS) != 0;
+    }
 
-    public abstract @Nullable Long getPrime();
+    /** Boxed view of {@link #getNumberOfServersValue()}, null if unset. */
+    public @Nullable Integer getNumberOfServers() {
+      return hasNumberOfServers() ? getNumberOfServersValue() : null;
+    }
 
-    public abstract @Nullable Integer getBins();
+    /** @return hamming weight, or 0 if unset */
+    public abstract int getHammingWeightValue();
 
-    public abstract @Nullable Integer getNumberOfServers();
+    public boolean hasHammingWeight() {
+      return (getPresence() & HAS_HAMMING_WEIGHT) != 0;
+    }
 
-    public abstract @Nullable Integer getHammingWeight();
+    /** Boxed view of {@link #getHammingWeightValue()}, null if unset. */
+    public @Nullable Integer getHammingWeight() {
+      return hasHammingWeight() ? getHammingWeightValue() : null;
+    }
 
     public abstract @Nullable String getMetricName();
 
@@ -405,7 +495,35 @@ public abstract class DataShare implements Serializable {
     public abstract DataShareMetadata.Builder toBuilder();
 
     public static DataShareMetadata.Builder builder() {
-      return new AutoValue_DataShare_DataShareMetadata.Builder();
+      return new AutoValue_DataShare_DataShareMetadata.Builder()
+          .setPresence(0)
+          .setEpsilonValue(0)
+          .setPrimeValue(0)
+          .setBinsValue(0)
+          .setNumberOfServersValue(0)
+          .setHammingWeightValue(0);
+    }
+
+    // Keeps the format from before the fields were primitive-backed, as it is used as the key
+    // batches are grouped on.
+    @Override
+    public String toString() {
+      return "DataShareMetadata{"
+          + "epsilon="
+          + getEpsilon()
+          + ", prime="
+          + getPrime()
+          + ", bins="
+          + getBins()
+          + ", numberOfServers="
+          + getNumberOfServers()
+          + ", hammingWeight="
+          + getHammingWeight()
+          + ", metricName="
+          + getMetricName()
+          + ", batchId="
+          + getBatchId()
+          + "}";
     }
 
     @AutoValue.Builder
@@ -413,15 +531,74 @@ public abstract class DataShare implements Serializable {
 
       public abstract DataShareMetadata build();
 
-      public abstract Builder setEpsilon(@Nullable Double value);
+      abstract int getPresence();
+
+      abstract Builder setPresence(int value);
+
+      abstract Builder setEpsilonValue(double value);
+
+      public Builder setEpsilon(double value) {
+        return setEpsilonValue(value).setPresence(getPresence() | HAS_EPSILON);
+      }
 
-      public abstract Builder setPrime(@Nullable Long value);
+      public Builder setEpsilon(@Nullable Double value) {
+        if (value == null) {
+          return setEpsilonValue(0).setPresence(getPresence() & ~HAS_EPSILON);
+        }
+        return setEpsilon(value.doubleValue());
+      }
 
-      public abstract Builder setBins(@Nullable Integer value);
+      abstract Builder setPrimeValue(long value);
 
-      public abstract Builder setNumberOfServers(@Nullable Integer value);
+      public Builder setPrime(long value) {
+        return setPrimeValue(value).setPresence(getPresence() | HAS_PRIME);
+      }
 
-      public abstract Builder setHammingWeight(@Nullable Integer value);
+      public Builder setPrime(@Nullable Long value) {
+        if (value == null) {
+          return setPrimeValue(0).setPresence(getPresence() & ~HAS_PRIME);
+        }
+        return setPrime(value.longValue());
+      }
+
+      abstract Builder setBinsValue(int value);
+
+      public Builder setBins(int value) {
+        return setBinsValue(value).setPresence(getPresence() | HAS_BINS);
+      }
+
+      public Builder setBins(@Nullable Integer value) {
+        if (value == null) {
+          return setBinsValue(0).setPresence(getPresence() & ~HAS_BINS);
+        }
+        return setBins(value.intValue());
+      }
+
+      abstract Builder setNumberOfServersValue(int value);
+
+      public Builder setNumberOfServers(int value) {
+        return setNumberOfServersValue(value).setPresence(getPresence() | HAS_NUMBER_OF_SERVERS);
+      }
+
+      public Builder setNumberOfServers(@Nullable Integer value) {
+        if (value == null) {
+          return setNumberOfServersValue(0).setPresence(getPresence() & ~HAS_NUMBER_OF_SERVERS);
+        }
+        return setNumberOfServers(value.intValue());
+      }
+
+      abstract Builder setHammingWeightValue(int value);
+
+      public Builder setHammingWeight(int value) {
+        return setHammingWeightValue(value).setPresence(getPresence() | HAS_HAMMING_WEIGHT);
+      }
+
+      public Builder setHammingWeight(@Nullable Integer value) {
+        if (value == null) {
+          return setHammingWeightValue(0).setPresence(getPresence() & ~HAS_HAMMING_WEIGHT);
+        }
+        return setHammingWeight(value.intValue());
+      }
 
       public abstract Builder setMetricName(@Nullable String value);
 
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.model;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.beam.sdk.coders.CustomCoder;
+import org.apache.beam.sdk.util.VarInt;
+
+/**
+ * Coder for a batch of {@link DataShare}s which writes each repeated string once.
+ *
+ * <p>Metric names, encryption key ids and issuer certificates of all shares in the batch are
+ * written ahead of the shares as a dictionary, and each share refers to them by index. See {@link
+ * DataShareCoder} for the encoding of individual shares.
+ */
+public class DataShareBatchCoder extends CustomCoder<Iterable<DataShare>> {
+
+  private static final DataShareBatchCoder INSTANCE = new DataShareBatchCoder();
+  private static final StringInterner INTERNER = StringInterner.shared();
+
+  private DataShareBatchCoder() {}
+
+  public static DataShareBatchCoder of() {
+    return INSTANCE;
+  }
+
+  @Override
+  public void encode(Iterable<DataShare> value, OutputStream outStream) throws IOException {
+    List<DataShare> shares = new ArrayList<>();
+    Map<String, Integer> dictionary = new LinkedHashMap<>();
+    for (DataShare share : value) {
+      shares.add(share);
+      DataShareCoder.collectDictionary(share, dictionary);
+    }
+    DataOutputStream out = new DataOutputStream(outStream);
+    VarInt.encode(dictionary.size(), out);
+    for (String entry : dictionary.keySet()) {
+      DataShareCoder.writeString(entry, out);
+    }
+    VarInt.encode(shares.size(), out);
+    for (DataShare share : shares) {
+      DataShareCoder.encodeShare(share, out, dictionary);
+    }
+  }
+
+  @Override
+  public Iterable<DataShare> decode(InputStream inStream) throws IOException {
+    DataInputStream in = new DataInputStream(inStream);
+    int dictionarySize = VarInt.decodeInt(in);
+    List<String> dictionary = new ArrayList<>(dictionarySize);
+    for (int i = 0; i < dictionarySize; i++) {
+      dictionary.add(INTERNER.intern(DataShareCoder.readString(in)));
+    }
+    int size = VarInt.decodeInt(in);
+    List<DataShare> shares = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      shares.add(DataShareCoder.decodeShare(in, dictionary));
+    }
+    return shares;
+  }
+
+  @Override
+  public void verifyDeterministic() {}
+}
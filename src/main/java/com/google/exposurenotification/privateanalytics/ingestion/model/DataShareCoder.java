@@ -0,0 +1,373 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.model;
+
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.EncryptedShare;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.beam.sdk.coders.CoderException;
+import org.apache.beam.sdk.coders.CoderProvider;
+import org.apache.beam.sdk.coders.CoderProviders;
+import org.apache.beam.sdk.coders.CustomCoder;
+import org.apache.beam.sdk.util.VarInt;
+import org.apache.beam.sdk.values.TypeDescriptor;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Compact coder for {@link DataShare}, used instead of Java serialization.
+ *
+ * <p>Nullable fields are written behind a presence bitmask. Metric names, encryption key ids and
+ * the intermediate and root certificates, which repeat across most shares of a run, are interned
+ * when decoded; within a batch, {@link DataShareBatchCoder} writes them once and refers to them by
+ * index. Leaf certificates are unique to each device, so they are always written inline.
+ */
+public class DataShareCoder extends CustomCoder<DataShare> {
+
+  private static final DataShareCoder INSTANCE = new DataShareCoder();
+  private static final StringInterner INTERNER = StringInterner.shared();
+
+  // Presence bits of DataShare fields
+  private static final int PATH = 1;
+  private static final int CREATED_MS = 1 << 1;
+  private static final int UUID = 1 << 2;
+  private static final int EXCEPTION = 1 << 3;
+  private static final int R_PIT = 1 << 4;
+  private static final int SCHEMA_VERSION = 1 << 5;
+  private static final int ENCRYPTED_DATA_SHARES = 1 << 6;
+  private static final int METADATA = 1 << 7;
+  private static final int SIGNATURE = 1 << 8;
+  private static final int CERTIFICATE_CHAIN = 1 << 9;
+
+  // Presence bits of DataShareMetadata fields
+  private static final int EPSILON = 1;
+  private static final int PRIME = 1 << 1;
+  private static final int BINS = 1 << 2;
+  private static final int NUMBER_OF_SERVERS = 1 << 3;
+  private static final int HAMMING_WEIGHT = 1 << 4;
+  private static final int METRIC_NAME = 1 << 5;
+  private static final int BATCH_ID = 1 << 6;
+
+  private DataShareCoder() {}
+
+  public static DataShareCoder of() {
+    return INSTANCE;
+  }
+
+  /**
+   * Used by the {@link org.apache.beam.sdk.coders.DefaultCoder} annotation on {@link DataShare}.
+   */
+  public static CoderProvider getCoderProvider() {
+    return CoderProviders.forCoder(TypeDescriptor.of(DataShare.class), INSTANCE);
+  }
+
+  @Override
+  public void encode(DataShare value, OutputStream outStream) throws IOException {
+    encodeShare(value, new DataOutputStream(outStream), null);
+  }
+
+  @Override
+  public DataShare decode(InputStream inStream) throws IOException {
+    return decodeShare(new DataInputStream(inStream), null);
+  }
+
+  @Override
+  public void verifyDeterministic() {}
+
+  /**
+   * Adds the strings of {@code value} which {@link #encodeShare} writes as references to {@code
+   * dictionary}, indexed in order of first appearance.
+   */
+  static void collectDictionary(DataShare value, Map<String, Integer> dictionary) {
+    DataShareMetadata metadata = value.getDataShareMetadata();
+    if (metadata != null && metadata.getMetricName() != null) {
+      dictionary.putIfAbsent(metadata.getMetricName(), dictionary.size());
+    }
+    if (value.getEncryptedDataShares() != null) {
+      for (EncryptedShare share : value.getEncryptedDataShares()) {
+        if (share.getEncryptionKeyId() != null) {
+          dictionary.putIfAbsent(share.getEncryptionKeyId(), dictionary.size());
+        }
+      }
+    }
+    if (value.getCertificateChain() != null) {
+      List<String> certs = value.getCertificateChain();
+      for (int i = 1; i < certs.size(); i++) {
+        if (certs.get(i) != null) {
+          dictionary.putIfAbsent(certs.get(i), dictionary.size());
+        }
+      }
+    }
+  }
+
+  /**
+   * @param dictionary if set, indices of the repeated strings, which must all have been added
+   *     through {@link #collectDictionary(DataShare, Map)}. Otherwise they are written inline.
+   */
+  static void encodeShare(
+      DataShare value, DataOutputStream out, @Nullable Map<String, Integer> dictionary)
+      throws IOException {
+    int presence = 0;
+    presence |= value.getPath() != null ? PATH : 0;
+    presence |= value.hasCreatedMs() ? CREATED_MS : 0;
+    presence |= value.getUuid() != null ? UUID : 0;
+    presence |= value.getException() != null ? EXCEPTION : 0;
+    presence |= value.hasRPit() ? R_PIT : 0;
+    presence |= value.hasSchemaVersion() ? SCHEMA_VERSION : 0;
+    presence |= value.getEncryptedDataShares() != null ? ENCRYPTED_DATA_SHARES : 0;
+    presence |= value.getDataShareMetadata() != null ? METADATA : 0;
+    presence |= value.getSignature() != null ? SIGNATURE : 0;
+    presence |= value.getCertificateChain() != null ? CERTIFICATE_CHAIN : 0;
+    VarInt.encode(presence, out);
+
+    if ((presence & PATH) != 0) {
+      writeString(value.getPath(), out);
+    }
+    if ((presence & CREATED_MS) != 0) {
+      out.writeLong(value.getCreatedMsValue());
+    }
+    if ((presence & UUID) != 0) {
+      writeString(value.getUuid(), out);
+    }
+    if ((presence & EXCEPTION) != 0) {
+      writeString(value.getException(), out);
+    }
+    if ((presence & R_PIT) != 0) {
+      out.writeLong(value.getRPitValue());
+    }
+    if ((presence & SCHEMA_VERSION) != 0) {
+      VarInt.encode(value.getSchemaVersionValue(), out);
+    }
+    if ((presence & ENCRYPTED_DATA_SHARES) != 0) {
+      List<EncryptedShare> shares = value.getEncryptedDataShares();
+      VarInt.encode(shares.size(), out);
+      for (EncryptedShare share : shares) {
+        writeReference(share.getEncryptionKeyId(), out, dictionary);
+        writeBytes(share.getEncryptedPayload(), out);
+      }
+    }
+    if ((presence & METADATA) != 0) {
+      encodeMetadata(value.getDataShareMetadata(), out, dictionary);
+    }
+    if ((presence & SIGNATURE) != 0) {
+      writeString(value.getSignature(), out);
+    }
+    if ((presence & CERTIFICATE_CHAIN) != 0) {
+      List<String> certs = value.getCertificateChain();
+      VarInt.encode(certs.size(), out);
+      for (int i = 0; i < certs.size(); i++) {
+        if (i == 0) {
+          writeNullableString(certs.get(i), out);
+        } else {
+          writeReference(certs.get(i), out, dictionary);
+        }
+      }
+    }
+  }
+
+  /** @param dictionary if set, the strings referenced by index, as collected when encoding */
+  static DataShare decodeShare(DataInputStream in, @Nullable List<String> dictionary)
+      throws IOException {
+    int presence = VarInt.decodeInt(in);
+    DataShare.Builder builder = DataShare.builder();
+    if ((presence & PATH) != 0) {
+      builder.setPath(readString(in));
+    }
+    if ((presence & CREATED_MS) != 0) {
+      builder.setCreatedMs(in.readLong());
+    }
+    if ((presence & UUID) != 0) {
+      builder.setUuid(readString(in));
+    }
+    if ((presence & EXCEPTION) != 0) {
+      builder.setException(readString(in));
+    }
+    if ((presence & R_PIT) != 0) {
+      builder.setRPit(in.readLong());
+    }
+    if ((presence & SCHEMA_VERSION) != 0) {
+      builder.setSchemaVersion(VarInt.decodeInt(in));
+    }
+    if ((presence & ENCRYPTED_DATA_SHARES) != 0) {
+      int size = VarInt.decodeInt(in);
+      List<EncryptedShare> shares = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        EncryptedShare.Builder share = EncryptedShare.builder();
+        share.setEncryptionKeyId(readReference(in, dictionary));
+        share.setEncryptedPayload(readBytes(in));
+        shares.add(share.build());
+      }
+      builder.setEncryptedDataShares(shares);
+    }
+    if ((presence & METADATA) != 0) {
+      builder.setDataShareMetadata(decodeMetadata(in, dictionary));
+    }
+    if ((presence & SIGNATURE) != 0) {
+      builder.setSignature(readString(in));
+    }
+    if ((presence & CERTIFICATE_CHAIN) != 0) {
+      int size = VarInt.decodeInt(in);
+      List<String> certs = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        certs.add(i == 0 ? readNullableString(in) : readReference(in, dictionary));
+      }
+      builder.setCertificateChain(certs);
+    }
+    return builder.build();
+  }
+
+  private static void encodeMetadata(
+      DataShareMetadata metadata, DataOutputStream out, @Nullable Map<String, Integer> dictionary)
+      throws IOException {
+    int presence = 0;
+    presence |= metadata.hasEpsilon() ? EPSILON : 0;
+    presence |= metadata.hasPrime() ? PRIME : 0;
+    presence |= metadata.hasBins() ? BINS : 0;
+    presence |= metadata.hasNumberOfServers() ? NUMBER_OF_SERVERS : 0;
+    presence |= metadata.hasHammingWeight() ? HAMMING_WEIGHT : 0;
+    presence |= metadata.getMetricName() != null ? METRIC_NAME : 0;
+    presence |= metadata.getBatchId() != null ? BATCH_ID : 0;
+    VarInt.encode(presence, out);
+
+    if ((presence & EPSILON) != 0) {
+      out.writeDouble(metadata.getEpsilonValue());
+    }
+    if ((presence & PRIME) != 0) {
+      out.writeLong(metadata.getPrimeValue());
+    }
+    if ((presence & BINS) != 0) {
+      VarInt.encode(metadata.getBinsValue(), out);
+    }
+    if ((presence & NUMBER_OF_SERVERS) != 0) {
+      VarInt.encode(metadata.getNumberOfServersValue(), out);
+    }
+    if ((presence & HAMMING_WEIGHT) != 0) {
+      VarInt.encode(metadata.getHammingWeightValue(), out);
+    }
+    if ((presence & METRIC_NAME) != 0) {
+      writeReference(metadata.getMetricName(), out, dictionary);
+    }
+    if ((presence & BATCH_ID) != 0) {
+      writeString(metadata.getBatchId(), out);
+    }
+  }
+
+  private static DataShareMetadata decodeMetadata(
+      DataInputStream in, @Nullable List<String> dictionary) throws IOException {
+    int presence = VarInt.decodeInt(in);
+    DataShareMetadata.Builder builder = DataShareMetadata.builder();
+    if ((presence & EPSILON) != 0) {
+      builder.setEpsilon(in.readDouble());
+    }
+    if ((presence & PRIME) != 0) {
+      builder.setPrime(in.readLong());
+    }
+    if ((presence & BINS) != 0) {
+      builder.setBins(VarInt.decodeInt(in));
+    }
+    if ((presence & NUMBER_OF_SERVERS) != 0) {
+      builder.setNumberOfServers(VarInt.decodeInt(in));
+    }
+    if ((presence & HAMMING_WEIGHT) != 0) {
+      builder.setHammingWeight(VarInt.decodeInt(in));
+    }
+    if ((presence & METRIC_NAME) != 0) {
+      builder.setMetricName(readReference(in, dictionary));
+    }
+    if ((presence & BATCH_ID) != 0) {
+      builder.setBatchId(readString(in));
+    }
+    return builder.build();
+  }
+
+  // Repeated strings are written inline (and interned when read) outside of a batch, and as an
+  // index into the batch dictionary within one. Both reserve 0 for null.
+  private static void writeReference(
+      @Nullable String value, DataOutputStream out, @Nullable Map<String, Integer> dictionary)
+      throws IOException {
+    if (dictionary == null) {
+      writeNullableString(value, out);
+    } else if (value == null) {
+      VarInt.encode(0, out);
+    } else {
+      VarInt.encode(dictionary.get(value) + 1, out);
+    }
+  }
+
+  private static @Nullable String readReference(
+      DataInputStream in, @Nullable List<String> dictionary) throws IOException {
+    if (dictionary == null) {
+      return INTERNER.intern(readNullableString(in));
+    }
+    int reference = VarInt.decodeInt(in);
+    if (reference == 0) {
+      return null;
+    }
+    if (reference > dictionary.size()) {
+      throw new CoderException("Invalid dictionary reference: " + reference);
+    }
+    return dictionary.get(reference - 1);
+  }
+
+  private static void writeNullableString(@Nullable String value, DataOutputStream out)
+      throws IOException {
+    writeBytes(value == null ? null : value.getBytes(StandardCharsets.UTF_8), out);
+  }
+
+  private static @Nullable String readNullableString(DataInputStream in) throws IOException {
+    byte[] bytes = readBytes(in);
+    return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  static void writeString(String value, DataOutputStream out) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    VarInt.encode(bytes.length, out);
+    out.write(bytes);
+  }
+
+  static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[VarInt.decodeInt(in)];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // Length is offset by one to reserve 0 for null.
+  private static void writeBytes(byte @Nullable [] value, DataOutputStream out) throws IOException {
+    if (value == null) {
+      VarInt.encode(0, out);
+      return;
+    }
+    VarInt.encode(value.length + 1, out);
+    out.write(value);
+  }
+
+  private static byte @Nullable [] readBytes(DataInputStream in) throws IOException {
+    int length = VarInt.decodeInt(in);
+    if (length == 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length - 1];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
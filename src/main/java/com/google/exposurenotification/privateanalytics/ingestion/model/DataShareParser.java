@@ -0,0 +1,47 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.model;
+
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.InvalidDataShareException;
+import com.google.firestore.v1.Document;
+import com.google.firestore.v1.Value;
+import java.util.Map;
+
+/**
+ * Class to extend to parse Firestore documents of one payload schema version into {@link
+ * DataShare}s.
+ *
+ * <p>{@link DataShare#from(Document)} selects a parser once per document from the payload's schema
+ * version, see {@link DataShareParsers}. Parsers for schema versions not built into this module can
+ * be provided through {@link java.util.ServiceLoader}, the same way device attestation
+ * implementations are.
+ */
+public abstract class DataShareParser {
+
+  /** @return the payload schema version this parser handles */
+  public abstract int getSchemaVersion();
+
+  /**
+   * Populates {@code builder} from the given document. Path, creation time, uuid and schema version
+   * have already been set by the caller.
+   *
+   * @param doc the Firestore document
+   * @param payload fields of the document's payload map
+   * @param builder the builder to populate
+   * @throws InvalidDataShareException if the document is not a valid data share of this version
+   */
+  public abstract void parse(Document doc, Map<String, Value> payload, DataShare.Builder builder);
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of {@link DataShareParser}s by payload schema version.
+ *
+ * <p>Contains a parser for each of the schema versions up to {@link
+ * DataShare#LATEST_SCHEMA_VERSION}, plus any parsers found through {@link ServiceLoader}. Built-in
+ * parsers take precedence over loaded ones for the same version.
+ */
+public final class DataShareParsers {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DataShareParsers.class);
+
+  // Indexed by schema version; schema versions are small and dense so a lookup is a bounds check.
+  private static final DataShareParser[] PARSERS = loadParsers();
+
+  private DataShareParsers() {}
+
+  /** @return the parser for the given schema version, or null if the version is not supported */
+  public static @Nullable DataShareParser forSchemaVersion(int schemaVersion) {
+    if (schemaVersion <= 0 || schemaVersion >= PARSERS.length) {
+      return null;
+    }
+    return PARSERS[schemaVersion];
+  }
+
+  /** @return all schema versions for which a parser is registered */
+  public static SortedSet<Integer> getSupportedSchemaVersions() {
+    SortedSet<Integer> versions = new TreeSet<>();
+    for (int i = 1; i < PARSERS.length; i++) {
+      if (PARSERS[i] != null) {
+        versions.add(i);
+      }
+    }
+    return versions;
+  }
+
+  private static DataShareParser[] loadParsers() {
+    List<DataShareParser> parsers = new ArrayList<>();
+    for (int version = 1; version <= DataShare.LATEST_SCHEMA_VERSION; version++) {
+      parsers.add(new PrioDataShareParser(version));
+    }
+    ServiceLoader.load(DataShareParser.class).forEach(parsers::add);
+
+    int maxVersion = 0;
+    for (DataShareParser parser : parsers) {
+      maxVersion = Math.max(maxVersion, parser.getSchemaVersion());
+    }
+    DataShareParser[] registry = new DataShareParser[maxVersion + 1];
+    for (DataShareParser parser : parsers) {
+      int version = parser.getSchemaVersion();
+      if (version <= 0) {
+        LOG.warn("Ignoring parser {} for invalid schema version {}", parser, version);
+      } else if (registry[version] != null) {
+        LOG.warn(
+            "Ignoring parser {} for schema version {}, already handled by {}",
+            parser,
+            version,
+            registry[version]);
+      } else {
+        registry[version] = parser;
+      }
+    }
+    return registry;
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.model;
+
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.InvalidDataShareException;
+import com.google.firestore.v1.Value;
+import com.google.firestore.v1.Value.ValueTypeCase;
+import java.util.Map;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Typed accessor for a single field of a Firestore map value.
+ *
+ * <p>Accessors are created once per schema version by a {@link DataShareParser}, so parsing a
+ * document does not need to re-derive field names, their enclosing map or their expected types.
+ */
+public final class DocumentField {
+
+  private final String name;
+  private final String sourceName;
+  private final ValueTypeCase type;
+
+  private DocumentField(String name, String sourceName, ValueTypeCase type) {
+    this.name = name;
+    this.sourceName = sourceName;
+    this.type = type;
+  }
+
+  /**
+   * @param name field name within the enclosing map
+   * @param sourceName name of the enclosing map, used in error messages
+   * @param type expected type of the field's value
+   */
+  public static DocumentField of(String name, String sourceName, ValueTypeCase type) {
+    return new DocumentField(name, sourceName, type);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getSourceName() {
+    return sourceName;
+  }
+
+  public ValueTypeCase getType() {
+    return type;
+  }
+
+  /**
+   * @return the value of this field in {@code source}
+   * @throws InvalidDataShareException if the field is absent or of the wrong type
+   */
+  public Value require(Map<String, Value> source) {
+    Value value = source.get(name);
+    if (value == null) {
+      DataShare.missingRequiredCounter.inc();
+      throw new InvalidDataShareException(
+          DataShare.MISSING_MSG_PREFIX + "'" + name + "' from '" + sourceName + "'");
+    }
+    checkType(value);
+    return value;
+  }
+
+  /**
+   * @return the value of this field in {@code source}, or null if the field is absent
+   * @throws InvalidDataShareException if the field is present but of the wrong type
+   */
+  public @Nullable Value find(Map<String, Value> source) {
+    Value value = source.get(name);
+    if (value != null) {
+      checkType(value);
+    }
+    return value;
+  }
+
+  // Error messages are only built once a field is known to be invalid.
+  private void checkType(Value value) {
+    if (value.getValueTypeCase() != type) {
+      DataShare.castExceptionCounter.inc();
+      throw new InvalidDataShareException(
+          "Error casting '" + name + "' from '" + sourceName + "' to " + type.name());
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.model;
+
+import static com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.BINS;
+import static com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.CERT_CHAIN;
+import static com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DATA_SHARE_PAYLOAD;
+import static com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DOCUMENT_FIELDS;
+import static com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.ENCRYPTED_DATA_SHARES;
+import static com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.ENCRYPTION_KEY_ID;
+import static com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.EPSILON;
+import static com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.HAMMING_WEIGHT;
+import static com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.MISSING_MSG_PREFIX;
+import static com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.NUMBER_OF_SERVERS;
+import static com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.NUMBER_OF_SERVERS_FIELD;
+import static com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.PAYLOAD;
+import static com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.PRIME;
+import static com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.PRIME_FIELD;
+import static com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.PRIO_PARAMS;
+import static com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.SIGNATURE;
+
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.EncryptedShare;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.InvalidDataShareException;
+import com.google.firestore.v1.Document;
+import com.google.firestore.v1.Value;
+import com.google.firestore.v1.Value.ValueTypeCase;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parser for the document layout written by the Exposure Notification Express app, shared by
+ * payload schema versions 1 and 2.
+ *
+ * <p>See
+ * https://github.com/google/exposure-notifications-android/blob/4b7b461282b2ede6fb2a93488c6d628440052c8d/app/src/main/java/com/google/android/apps/exposurenotification/privateanalytics/PrivateAnalyticsFirestoreRepository.java#L44
+ */
+class PrioDataShareParser extends DataShareParser {
+
+  // Payload fields
+  private static final DocumentField PRIO_PARAMS_FIELD =
+      DocumentField.of(PRIO_PARAMS, PAYLOAD, ValueTypeCase.MAP_VALUE);
+  private static final DocumentField ENCRYPTED_DATA_SHARES_FIELD =
+      DocumentField.of(ENCRYPTED_DATA_SHARES, PAYLOAD, ValueTypeCase.ARRAY_VALUE);
+
+  // Prio parameters fields
+  private static final DocumentField PRIME_PARAM =
+      DocumentField.of(PRIME_FIELD, PRIO_PARAMS, ValueTypeCase.INTEGER_VALUE);
+  private static final DocumentField EPSILON_PARAM =
+      DocumentField.of(EPSILON, PRIO_PARAMS, ValueTypeCase.DOUBLE_VALUE);
+  private static final DocumentField BINS_PARAM =
+      DocumentField.of(BINS, PRIO_PARAMS, ValueTypeCase.INTEGER_VALUE);
+  private static final DocumentField NUMBER_OF_SERVERS_PARAM =
+      DocumentField.of(NUMBER_OF_SERVERS_FIELD, PRIO_PARAMS, ValueTypeCase.INTEGER_VALUE);
+  private static final DocumentField HAMMING_WEIGHT_PARAM =
+      DocumentField.of(HAMMING_WEIGHT, PRIO_PARAMS, ValueTypeCase.INTEGER_VALUE);
+
+  // Encrypted data share fields, one accessor per server so error messages carry the index.
+  private static final DocumentField[] ENCRYPTION_KEY_ID_FIELDS =
+      new DocumentField[NUMBER_OF_SERVERS];
+  private static final DocumentField[] DATA_SHARE_PAYLOAD_FIELDS =
+      new DocumentField[NUMBER_OF_SERVERS];
+
+  static {
+    for (int i = 0; i < NUMBER_OF_SERVERS; i++) {
+      String sourceName = ENCRYPTED_DATA_SHARES + "[" + i + "]";
+      ENCRYPTION_KEY_ID_FIELDS[i] =
+          DocumentField.of(ENCRYPTION_KEY_ID, sourceName, ValueTypeCase.STRING_VALUE);
+      DATA_SHARE_PAYLOAD_FIELDS[i] =
+          DocumentField.of(DATA_SHARE_PAYLOAD, sourceName, ValueTypeCase.STRING_VALUE);
+    }
+  }
+
+  // Document fields
+  private static final DocumentField SIGNATURE_FIELD =
+      DocumentField.of(SIGNATURE, DOCUMENT_FIELDS, ValueTypeCase.STRING_VALUE);
+
+  // Metric names, key ids and certificates repeat across most documents of a run.
+  private static final StringInterner INTERNER = StringInterner.shared();
+
+  private final int schemaVersion;
+
+  PrioDataShareParser(int schemaVersion) {
+    this.schemaVersion = schemaVersion;
+  }
+
+  @Override
+  public int getSchemaVersion() {
+    return schemaVersion;
+  }
+
+  @Override
+  public void parse(Document doc, Map<String, Value> payload, DataShare.Builder builder) {
+    // Get the Prio parameters.
+    DataShareMetadata.Builder metadataBuilder = DataShareMetadata.builder();
+    Map<String, Value> prioParams = PRIO_PARAMS_FIELD.require(payload).getMapValue().getFieldsMap();
+
+    long prime = PRIME_PARAM.require(prioParams).getIntegerValue();
+    if (prime != PRIME) {
+      DataShare.illegalArgCounter.inc();
+      throw new InvalidDataShareException("Invalid prime: " + prime);
+    }
+    metadataBuilder.setPrime(prime);
+
+    metadataBuilder.setEpsilon(EPSILON_PARAM.require(prioParams).getDoubleValue());
+
+    int bins = (int) BINS_PARAM.require(prioParams).getIntegerValue();
+    if (bins < 0) {
+      DataShare.illegalArgCounter.inc();
+      throw new InvalidDataShareException("Invalid number of bins: " + bins);
+    }
+    metadataBuilder.setBins(bins);
+
+    int numberOfServers = (int) NUMBER_OF_SERVERS_PARAM.require(prioParams).getIntegerValue();
+    if (numberOfServers != NUMBER_OF_SERVERS) {
+      DataShare.illegalArgCounter.inc();
+      throw new InvalidDataShareException("Invalid number of servers: " + numberOfServers);
+    }
+    metadataBuilder.setNumberOfServers(numberOfServers);
+
+    Value hammingWeight = HAMMING_WEIGHT_PARAM.find(prioParams);
+    if (hammingWeight != null) {
+      metadataBuilder.setHammingWeight((int) hammingWeight.getIntegerValue());
+    }
+    try {
+      String fullPath = doc.getName();
+      // The metricName is the base name of the document path
+      metadataBuilder.setMetricName(
+          INTERNER.intern(fullPath.substring(fullPath.lastIndexOf('/') + 1)));
+    } catch (RuntimeException e) {
+      DataShare.missingRequiredCounter.inc();
+      throw new InvalidDataShareException(MISSING_MSG_PREFIX + "Name", e);
+    }
+
+    builder.setDataShareMetadata(metadataBuilder.build());
+    builder.setRPit(DataShare.generateRPit(prime, bins));
+
+    // Get the encrypted shares.
+    List<Value> encryptedDataShares =
+        ENCRYPTED_DATA_SHARES_FIELD.require(payload).getArrayValue().getValuesList();
+    if (encryptedDataShares.size() != numberOfServers) {
+      DataShare.illegalArgCounter.inc();
+      throw new InvalidDataShareException(
+          "Mismatch between number of servers ("
+              + numberOfServers
+              + ") and number of data shares ("
+              + encryptedDataShares.size()
+              + ")");
+    }
+    List<EncryptedShare> shares = new ArrayList<>(NUMBER_OF_SERVERS);
+    // Ensure data shares are of correct type and convert to DataShare-compatible type.
+    for (int i = 0; i < encryptedDataShares.size(); i++) {
+      Map<String, Value> encryptedDataShare =
+          encryptedDataShares.get(i).getMapValue().getFieldsMap();
+      String keyId =
+          INTERNER.intern(ENCRYPTION_KEY_ID_FIELDS[i].require(encryptedDataShare).getStringValue());
+      String base64payload =
+          DATA_SHARE_PAYLOAD_FIELDS[i].require(encryptedDataShare).getStringValue();
+      byte[] decodedPayload;
+      try {
+        decodedPayload = Base64.getDecoder().decode(base64payload);
+      } catch (IllegalArgumentException e) {
+        DataShare.illegalArgCounter.inc();
+        throw new InvalidDataShareException("Unable to base64 decode payload", e);
+      }
+      shares.add(
+          EncryptedShare.builder()
+              .setEncryptionKeyId(keyId)
+              .setEncryptedPayload(decodedPayload)
+              .build());
+    }
+    builder.setEncryptedDataShares(shares);
+
+    // Get the signature and cert chain
+    Map<String, Value> fields = doc.getFieldsMap();
+    builder.setSignature(SIGNATURE_FIELD.require(fields).getStringValue());
+    Value certChain = fields.get(CERT_CHAIN);
+    if (certChain == null) {
+      DataShare.missingRequiredCounter.inc();
+      throw new InvalidDataShareException(MISSING_MSG_PREFIX + CERT_CHAIN);
+    }
+    List<Value> certChainValue = certChain.getArrayValue().getValuesList();
+    List<String> certChainString = new ArrayList<>(certChainValue.size());
+    for (int i = 0; i < certChainValue.size(); i++) {
+      String cert = certChainValue.get(i).getStringValue();
+      if (cert == null) {
+        DataShare.illegalArgCounter.inc();
+        throw new InvalidDataShareException("invalid or empty certificate");
+      }
+      // Only the intermediate and root certificates repeat, the leaf is unique to the device
+      certChainString.add(i == 0 ? cert : INTERNER.intern(cert));
+    }
+    builder.setCertificateChain(certChainString);
+  }
+
+  @Override
+  public String toString() {
+    return "PrioDataShareParser{schemaVersion=" + schemaVersion + "}";
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.model;
+
+import java.util.concurrent.ConcurrentHashMap;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Bounded dictionary for strings which repeat across many data shares, such as metric names,
+ * encryption key ids and intermediate and root certificates.
+ *
+ * <p>A single instance is shared by all threads of a worker. Once full, new strings are returned
+ * as-is rather than evicting existing entries: the repeated values are seen early in a run, and
+ * this keeps a flood of distinct values from growing the heap.
+ */
+public final class StringInterner {
+
+  static final int DEFAULT_MAX_SIZE = 1 << 14;
+
+  private static final StringInterner SHARED = new StringInterner(DEFAULT_MAX_SIZE);
+
+  private final ConcurrentHashMap<String, String> strings = new ConcurrentHashMap<>();
+  private final int maxSize;
+
+  StringInterner(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /** @return the worker-local interner */
+  public static StringInterner shared() {
+    return SHARED;
+  }
+
+  /**
+   * @return a canonical instance equal to {@code value}, or {@code value} if the dictionary is full
+   */
+  public @Nullable String intern(@Nullable String value) {
+    if (value == null) {
+      return null;
+    }
+    String existing = strings.get(value);
+    if (existing != null) {
+      return existing;
+    }
+    if (strings.size() >= maxSize) {
+      return value;
+    }
+    existing = strings.putIfAbsent(value, value);
+    return existing == null ? value : existing;
+  }
+
+  int size() {
+    return strings.size();
+  }
+
+  boolean contains(String value) {
+    return strings.containsKey(value);
+  }
+}
@@ -15,6 +15,7 @@
  */
 package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
 
+import com.amazonaws.SdkClientException;
 import com.amazonaws.auth.*;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenService;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClientBuilder;
@@ -24,24 +25,68 @@ import com.amazonaws.services.securitytoken.model.Credentials;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.auth.oauth2.IdTokenProvider;
 import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Metrics;
 
+/**
+ * Sets up AWS credentials for writing to S3 buckets, federated from the Google service account of
+ * the pipeline through STS.
+ *
+ * <p>Session credentials are cached per worker by role and region, and only assumed again shortly
+ * before they expire.
+ */
 public class AWSFederatedAuthHelper {
 
+  private static final Counter credentialsCacheHits =
+      Metrics.counter(AWSFederatedAuthHelper.class, "awsCredentialsCacheHit");
+  private static final Counter credentialsRefreshes =
+      Metrics.counter(AWSFederatedAuthHelper.class, "awsCredentialsRefresh");
+
+  // Leave time for a batch write with the credentials
+  static final Duration REFRESH_MARGIN = Duration.ofMinutes(5);
+
+  private static final CredentialsCache CACHE =
+      new CredentialsCache(AWSFederatedAuthHelper::assumeRole, Clock.systemUTC(), REFRESH_MARGIN);
+
   private AWSFederatedAuthHelper() {}
 
   public static void setupAWSAuth(IngestionPipelineOptions options, String role, String region)
       throws IOException {
+    options.setAwsCredentialsProvider(
+        new AWSStaticCredentialsProvider(CACHE.getCredentials(role, region)));
+    options.setAwsRegion(region);
+  }
+
+  /**
+   * @return provider of the cached credentials of the role, assuming it again when they are about
+   *     to expire
+   */
+  static AWSCredentialsProvider credentialsProvider(String role, String region) {
+    return new AWSCredentialsProvider() {
+      @Override
+      public AWSCredentials getCredentials() {
+        try {
+          return CACHE.getCredentials(role, region);
+        } catch (IOException e) {
+          throw new SdkClientException("Unable to assume role " + role, e);
+        }
+      }
+
+      @Override
+      public void refresh() {}
+    };
+  }
+
+  private static Credentials assumeRole(String role, String region) throws IOException {
     GoogleCredentials credentials = GoogleCredentials.getApplicationDefault();
     if (!(credentials instanceof IdTokenProvider)) {
       throw new IllegalArgumentException("Credentials are not an instance of IdTokenProvider.");
     }
 
-    AWSSecurityTokenService stsClient =
-        AWSSecurityTokenServiceClientBuilder.standard()
-            .withCredentials(new AWSStaticCredentialsProvider(new AnonymousAWSCredentials()))
-            .withRegion(region)
-            .build();
-
     /**
      * Obtain credentials for the IAM role. Note that you cannot assume the role of an AWS root
      * account. Amazon S3 will deny access. You must use credentials for an IAM user or an IAM role.
@@ -55,17 +100,68 @@ public class AWSFederatedAuthHelper {
                     .idTokenWithAudience("enpa-gcp-aws", null)
                     .getTokenValue());
 
-    AssumeRoleWithWebIdentityResult roleResponse = stsClient.assumeRoleWithWebIdentity(roleRequest);
-    Credentials sessionCredentials = roleResponse.getCredentials();
+    AWSSecurityTokenService stsClient =
+        AWSSecurityTokenServiceClientBuilder.standard()
+            .withCredentials(new AWSStaticCredentialsProvider(new AnonymousAWSCredentials()))
+            .withRegion(region)
+            .build();
 
-    // Create a BasicSessionCredentials object that contains the credentials you just retrieved.
-    BasicSessionCredentials awsCredentials =
-        new BasicSessionCredentials(
-            sessionCredentials.getAccessKeyId(),
-            sessionCredentials.getSecretAccessKey(),
-            sessionCredentials.getSessionToken());
+    try {
+      AssumeRoleWithWebIdentityResult roleResponse =
+          stsClient.assumeRoleWithWebIdentity(roleRequest);
+      return roleResponse.getCredentials();
+    } finally {
+      // Also when the request fails, as it is retried on every refresh
+      stsClient.shutdown();
+    }
+  }
 
-    options.setAwsCredentialsProvider(new AWSStaticCredentialsProvider(awsCredentials));
-    options.setAwsRegion(region);
+  /** Source of session credentials for a role in a region. */
+  interface CredentialsSource {
+    Credentials assumeRole(String role, String region) throws IOException;
+  }
+
+  /** Session credentials per role and region, safe to use from concurrent DoFn threads. */
+  static class CredentialsCache {
+
+    private final CredentialsSource source;
+    private final Clock clock;
+    private final Duration refreshMargin;
+    private final ConcurrentHashMap<String, CachedCredentials> cache = new ConcurrentHashMap<>();
+
+    CredentialsCache(CredentialsSource source, Clock clock, Duration refreshMargin) {
+      this.source = source;
+      this.clock = clock;
+      this.refreshMargin = refreshMargin;
+    }
+
+    BasicSessionCredentials getCredentials(String role, String region) throws IOException {
+      CachedCredentials cached =
+          cache.computeIfAbsent(role + "|" + region, key -> new CachedCredentials());
+      // Only one thread assumes the role of an entry, the others wait for its credentials
+      synchronized (cached) {
+        if (cached.credentials != null
+            && clock.instant().isBefore(cached.expiration.minus(refreshMargin))) {
+          credentialsCacheHits.inc();
+          return cached.credentials;
+        }
+        credentialsRefreshes.inc();
+        Credentials sessionCredentials = source.assumeRole(role, region);
+        // Create a BasicSessionCredentials object that contains the credentials you just
+        // retrieved.
+        cached.credentials =
+            new BasicSessionCredentials(
+                sessionCredentials.getAccessKeyId(),
+                sessionCredentials.getSecretAccessKey(),
+                sessionCredentials.getSessionToken());
+        cached.expiration = sessionCredentials.getExpiration().toInstant();
+        return cached.credentials;
+      }
+    }
+  }
+
+  private static class CachedCredentials {
+    private BasicSessionCredentials credentials;
+    private Instant expiration;
   }
 }
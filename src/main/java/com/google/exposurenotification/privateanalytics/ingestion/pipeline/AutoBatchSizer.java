@@ -0,0 +1,106 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShareCoder;
+import java.io.IOException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Picks the number of shares per batch so that the batches of a single worker harness thread fit in
+ * its heap share, given the average serialized size of the shares seen so far.
+ *
+ * <p>{@code BatchWriterFn} holds the decoded shares of a whole batch, along with the serialized
+ * batch they are read from, while packets are streamed from them into the output files. That is
+ * accounted for by {@link #MEMORY_PER_SERIALIZED_BYTE}, and only {@link #HEAP_FRACTION} of the heap
+ * is given to batches to leave room for everything else on the worker. With {@code
+ * --batchWritesInFlight=N}, a thread holds up to N batches being written and the next one being
+ * read, so the heap share of the thread is divided between N + 1 batches.
+ */
+class AutoBatchSizer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AutoBatchSizer.class);
+
+  static final double HEAP_FRACTION = 0.5;
+  // One byte for the serialized batch, and up to two for its decoded shares: measured with JOL at
+  // 1.5 for small shares without certificates, and below 1 once issuer certificates are interned
+  static final int MEMORY_PER_SERIALIZED_BYTE = 3;
+  // Serialize one share in this many to estimate the average size
+  static final int SAMPLE_EVERY = 64;
+
+  private final long minBatchSize;
+  private final long maxBatchSize;
+  private final long heapPerBatch;
+
+  private long seen;
+  private long sampled;
+  private long sampledBytes;
+  private long batchSize;
+  private long loggedBatchSize;
+
+  /**
+   * @param threads number of worker harness threads sharing the heap
+   * @param batchWritesInFlight number of batches each thread may have in flight besides the one it
+   *     reads, see {@code --batchWritesInFlight}
+   */
+  AutoBatchSizer(
+      long minBatchSize, long maxBatchSize, long maxHeap, int threads, long batchWritesInFlight) {
+    this.minBatchSize = minBatchSize;
+    this.maxBatchSize = maxBatchSize;
+    this.heapPerBatch = maxHeap / Math.max(1, threads) / (1 + Math.max(0, batchWritesInFlight));
+    this.batchSize = minBatchSize;
+  }
+
+  /** Takes a share into account in the average share size. */
+  void observe(DataShare share) throws IOException {
+    if (seen++ % SAMPLE_EVERY != 0) {
+      return;
+    }
+    CountingOutputStream out = new CountingOutputStream(ByteStreams.nullOutputStream());
+    DataShareCoder.of().encode(share, out);
+    sampled++;
+    sampledBytes += out.getCount();
+    batchSize =
+        batchSizeFor(heapPerBatch, (double) sampledBytes / sampled, minBatchSize, maxBatchSize);
+    if (Math.abs(batchSize - loggedBatchSize) > loggedBatchSize / 10) {
+      LOG.info(
+          "Automatic batch size {} for {} bytes of heap per batch and {} bytes per share",
+          batchSize,
+          heapPerBatch,
+          sampledBytes / sampled);
+      loggedBatchSize = batchSize;
+    }
+  }
+
+  /** @return the number of shares per batch for the shares observed so far */
+  long batchSize() {
+    return batchSize;
+  }
+
+  static long batchSizeFor(
+      long heapPerBatch, double averageShareBytes, long minBatchSize, long maxBatchSize) {
+    long fitting =
+        (long)
+            (heapPerBatch
+                * HEAP_FRACTION
+                / (Math.max(1, averageShareBytes) * MEMORY_PER_SERIALIZED_BYTE));
+    return Math.max(minBatchSize, Math.min(fitting, maxBatchSize));
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.avro.specific.SpecificRecordBase;
+
+/**
+ * Encodes records of one class into Avro files, reusing its datum writer, record encoder and
+ * buffers across files.
+ *
+ * <p>Records are encoded with the datum writer and encoder of the encoder, then appended already
+ * encoded to a {@link DataFileWriter}, which writes the container and compresses its blocks.
+ *
+ * <p>Encoders are cached per thread and record class, see {@link #forClass}, so that each writer
+ * thread of a worker reuses its own across batches and bundles.
+ */
+class AvroFileEncoder<T extends SpecificRecordBase> {
+
+  private static final ThreadLocal<Map<Class<?>, AvroFileEncoder<?>>> ENCODERS =
+      ThreadLocal.withInitial(HashMap::new);
+  private static final int MAX_RETAINED_BUFFER_SIZE = 1 << 20;
+
+  private final Schema schema;
+  private final DatumWriter<T> datumWriter;
+  private RecordBuffer encoded = new RecordBuffer();
+  private BinaryEncoder recordEncoder;
+  private ByteArrayOutputStream file = new ByteArrayOutputStream();
+  private boolean inUse;
+
+  private AvroFileEncoder(Class<T> recordClass, Schema schema) {
+    this.schema = schema;
+    this.datumWriter = new SpecificDatumWriter<>(recordClass);
+    datumWriter.setSchema(schema);
+    this.recordEncoder = EncoderFactory.get().binaryEncoder(encoded, null);
+  }
+
+  /**
+   * @return the encoder of the calling thread for the record class, or a new one if that one is in
+   *     use, e.g. by a caller iterating records which encode other records of the class
+   */
+  static <T extends SpecificRecordBase> AvroFileEncoder<T> forClass(
+      Class<T> recordClass, Schema schema) {
+    Map<Class<?>, AvroFileEncoder<?>> encoders = ENCODERS.get();
+    @SuppressWarnings("unchecked")
+    AvroFileEncoder<T> encoder = (AvroFileEncoder<T>) encoders.get(recordClass);
+    if (encoder == null) {
+      encoder = new AvroFileEncoder<>(recordClass, schema);
+      encoders.put(recordClass, encoder);
+    }
+    if (encoder.inUse || !encoder.schema.equals(schema)) {
+      return new AvroFileEncoder<>(recordClass, schema);
+    }
+    return encoder;
+  }
+
+  /** @return the Avro file of the records */
+  ByteBuffer encode(Iterable<T> records, byte[] syncMarker, AvroFileFormat format)
+      throws IOException {
+    file.reset();
+    try {
+      write(records, syncMarker, format, file);
+      return ByteBuffer.wrap(file.toByteArray());
+    } finally {
+      // Large files aren't kept in memory until the next one
+      if (file.size() > MAX_RETAINED_BUFFER_SIZE) {
+        file = new ByteArrayOutputStream();
+      }
+      file.reset();
+    }
+  }
+
+  /** Writes the Avro file of the records to the stream, encoding one block at a time. */
+  void write(Iterable<T> records, byte[] syncMarker, AvroFileFormat format, OutputStream out)
+      throws IOException {
+    writeParts(
+        records,
+        syncMarker,
+        format,
+        Long.MAX_VALUE,
+        new PartSink() {
+          @Override
+          public OutputStream startPart(int part) {
+            return out;
+          }
+
+          @Override
+          public void finishPart(int part, long recordCount) {}
+        });
+  }
+
+  /** Receives the parts of records written in parts. */
+  interface PartSink {
+
+    /** @return stream to write the part to, which the encoder doesn't close */
+    OutputStream startPart(int part) throws IOException;
+
+    /** Called once the part is completely written to its stream. */
+    void finishPart(int part, long recordCount) throws IOException;
+  }
+
+  /**
+   * Writes the records into consecutive Avro files, parts of about {@code partSize} bytes each. A
+   * part is finished after the block which reaches the part size, so parts may exceed it by up to a
+   * block. There is always at least one part, which is empty if there are no records.
+   */
+  void writeParts(
+      Iterable<T> records, byte[] syncMarker, AvroFileFormat format, long partSize, PartSink parts)
+      throws IOException {
+    if (inUse) {
+      throw new IllegalStateException("Encoder already in use");
+    }
+    inUse = true;
+    try {
+      int part = 0;
+      PartOutputStream partOut = null;
+      DataFileWriter<T> writer = null;
+      long partRecordCount = 0;
+      for (T record : records) {
+        if (writer == null) {
+          partOut = new PartOutputStream(parts.startPart(part));
+          writer = createWriter(partOut, syncMarker, format);
+        }
+        writer.appendEncoded(encodeRecord(record));
+        partRecordCount++;
+        // Blocks reach the stream as soon as they are full
+        if (partOut.count >= partSize) {
+          writer.close();
+          parts.finishPart(part++, partRecordCount);
+          writer = null;
+          partRecordCount = 0;
+        }
+      }
+      if (writer == null && part == 0) {
+        writer = createWriter(new PartOutputStream(parts.startPart(part)), syncMarker, format);
+      }
+      if (writer != null) {
+        writer.close();
+        parts.finishPart(part, partRecordCount);
+      }
+    } finally {
+      // Drops whatever a failed write left behind, and the buffer of a record too large to keep
+      recordEncoder.flush();
+      if (encoded.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+        encoded = new RecordBuffer();
+        recordEncoder = EncoderFactory.get().binaryEncoder(encoded, recordEncoder);
+      }
+      encoded.reset();
+      inUse = false;
+    }
+  }
+
+  private DataFileWriter<T> createWriter(OutputStream out, byte[] syncMarker, AvroFileFormat format)
+      throws IOException {
+    return format.configure(new DataFileWriter<>(datumWriter)).create(schema, out, syncMarker);
+  }
+
+  // Valid until the next record is encoded, as DataFileWriter copies it into its block
+  private ByteBuffer encodeRecord(T record) throws IOException {
+    encoded.reset();
+    datumWriter.write(record, recordEncoder);
+    recordEncoder.flush();
+    return encoded.asByteBuffer();
+  }
+
+  /** Encoded record, exposed to the file writer without copying. */
+  private static class RecordBuffer extends ByteArrayOutputStream {
+
+    ByteBuffer asByteBuffer() {
+      return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    int capacity() {
+      return buf.length;
+    }
+  }
+
+  /** Counts the bytes written to a part, which is left open for its sink when the file is. */
+  private static class PartOutputStream extends FilterOutputStream {
+
+    private long count;
+
+    PartOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.file.DataFileWriter;
+
+/**
+ * Codec and block size of the Avro files written for batches.
+ *
+ * <p>Codecs are given by their Avro name, optionally followed by a compression level for {@code
+ * deflate}, {@code xz} and {@code zstandard}, e.g. {@code deflate:9}. Readers of the files have to
+ * support the codec: {@code null} and {@code deflate} are required of all Avro implementations,
+ * others are optional. {@code zstandard} additionally requires zstd-jni on the worker classpath.
+ */
+public class AvroFileFormat {
+
+  /** Uncompressed with blocks of the default size, as written by default. */
+  public static final AvroFileFormat DEFAULT = new AvroFileFormat("null", 0);
+
+  // Bounds of DataFileWriter#setSyncInterval
+  private static final int MIN_BLOCK_SIZE = 32;
+  private static final int MAX_BLOCK_SIZE = 1 << 30;
+  // Only sizes the block buffer DataFileWriter allocates for each file, as a single record is
+  // written in a single block of any size
+  private static final int SINGLE_RECORD_BLOCK_SIZE = 1 << 10;
+  private static final int MAX_DEFLATE_XZ_LEVEL = 9;
+  // Bounds of Zstd#minCompressionLevel and Zstd#maxCompressionLevel, which load zstd-jni. Negative
+  // levels trade compression for speed.
+  private static final int MIN_ZSTANDARD_LEVEL = -(1 << 17);
+  private static final int MAX_ZSTANDARD_LEVEL = 22;
+
+  private final String codec;
+  private final CodecFactory codecFactory;
+  private final int blockSize;
+
+  private AvroFileFormat(String codec, int blockSize) {
+    this.codec = codec;
+    this.codecFactory = codecFactory(codec);
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * @param codec Avro codec name, optionally followed by a compression level, e.g. {@code
+   *     deflate:6}
+   * @param blockSize approximate uncompressed size of blocks in bytes, or 0 for the Avro default
+   * @throws IllegalArgumentException for an unknown codec or a block size out of bounds
+   */
+  public static AvroFileFormat of(String codec, long blockSize) {
+    if (blockSize != 0 && (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE)) {
+      throw new IllegalArgumentException(
+          "Avro block size must be between " + MIN_BLOCK_SIZE + " and " + MAX_BLOCK_SIZE);
+    }
+    return new AvroFileFormat(codec, (int) blockSize);
+  }
+
+  /** @return the format of packet files */
+  public static AvroFileFormat packetFormat(IngestionPipelineOptions options) {
+    return of(options.getPacketFileCodec(), options.getPacketFileBlockSize());
+  }
+
+  /** @return the format of header and signature files, of a single record */
+  public static AvroFileFormat headerFormat(IngestionPipelineOptions options) {
+    return of(options.getHeaderFileCodec(), SINGLE_RECORD_BLOCK_SIZE);
+  }
+
+  /** Sets the codec and block size of a writer, before its file is created. */
+  <T> DataFileWriter<T> configure(DataFileWriter<T> writer) {
+    writer.setCodec(codecFactory);
+    if (blockSize > 0) {
+      writer.setSyncInterval(blockSize);
+    }
+    return writer;
+  }
+
+  private static CodecFactory codecFactory(String codec) {
+    int colon = codec.indexOf(':');
+    String name = colon < 0 ? codec : codec.substring(0, colon);
+    try {
+      if (colon < 0) {
+        return CodecFactory.fromString(name);
+      }
+      int level = Integer.parseInt(codec.substring(colon + 1));
+      switch (name) {
+        case DataFileConstants.DEFLATE_CODEC:
+          return CodecFactory.deflateCodec(checkLevel(name, level, 0, MAX_DEFLATE_XZ_LEVEL));
+        case DataFileConstants.XZ_CODEC:
+          return CodecFactory.xzCodec(checkLevel(name, level, 0, MAX_DEFLATE_XZ_LEVEL));
+        case DataFileConstants.ZSTANDARD_CODEC:
+          return CodecFactory.zstandardCodec(
+              checkLevel(name, level, MIN_ZSTANDARD_LEVEL, MAX_ZSTANDARD_LEVEL));
+        default:
+          throw new IllegalArgumentException("Avro codec " + name + " has no compression level");
+      }
+    } catch (AvroRuntimeException | NumberFormatException e) {
+      throw new IllegalArgumentException("Unsupported Avro codec: " + codec, e);
+    }
+  }
+
+  // Checked here rather than by the codecs, which only fail once compressing on the workers
+  private static int checkLevel(String name, int level, int minLevel, int maxLevel) {
+    if (level < minLevel || level > maxLevel) {
+      throw new IllegalArgumentException(
+          "Compression level of Avro codec "
+              + name
+              + " must be between "
+              + minLevel
+              + " and "
+              + maxLevel);
+    }
+    return level;
+  }
+
+  @Override
+  public String toString() {
+    return blockSize > 0 ? codec + " with blocks of " + blockSize + " bytes" : codec;
+  }
+}
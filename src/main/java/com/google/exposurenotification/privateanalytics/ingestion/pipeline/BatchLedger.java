@@ -0,0 +1,190 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import com.google.common.io.BaseEncoding;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Ledger of the batches written completely, i.e. whose packet, header and signature files were
+ * written to both the PHA and the facilitator destinations.
+ *
+ * <p>Each batch is committed as a small JSON record of its own, named after the batch like its
+ * output files, e.g.:
+ *
+ * <pre>{@code
+ * {
+ *   "metric": "metric1",
+ *   "startTime": 1600000000,
+ *   "duration": 3600,
+ *   "batchUuid": "0f8fad5b-d9cb-469f-a165-70867728950e",
+ *   "shareCount": 1000,
+ *   "destinations": [
+ *     {"path": "gs://pha/metric1/2020/09/13/13/26/0f8fad5b...", "packetFileDigest": "9f86d0..."},
+ *     {"path": "s3://facilitator/metric1/2020/09/13/13/26/0f8fad5b...", "packetFileDigest": "..."}
+ *   ]
+ * }
+ * }</pre>
+ *
+ * The destinations of a record are the prefixes of the files of the batch, so the records list the
+ * complete sets of files of a window. A batch is only committed after both destinations succeeded,
+ * so a run or retry finding the record of a batch can skip it altogether.
+ */
+public class BatchLedger {
+
+  public static final String LEDGER_SUFFIX = ".ledger.json";
+
+  private static final String METRIC = "metric";
+  private static final String START_TIME = "startTime";
+  private static final String DURATION = "duration";
+  private static final String BATCH_UUID = "batchUuid";
+  private static final String SHARE_COUNT = "shareCount";
+  private static final String DESTINATIONS = "destinations";
+  private static final String PATH = "path";
+  private static final String PACKET_FILE_DIGEST = "packetFileDigest";
+
+  private final String ledgerPrefix;
+
+  /** @param ledgerOutput directory of the ledger, readable and writable through FileSystems */
+  public BatchLedger(String ledgerOutput) {
+    this.ledgerPrefix = ledgerOutput + (ledgerOutput.endsWith("/") ? "" : "/");
+  }
+
+  /** @return whether the batch of the given aggregate and uuid is already committed */
+  public boolean isCommitted(String aggregateId, UUID batchUuid) throws IOException {
+    return DestinationRegistry.fileSystems().read(recordFilename(aggregateId, batchUuid)) != null;
+  }
+
+  /** @return the committed record of the batch, or null if it isn't committed */
+  public @Nullable Record read(String aggregateId, UUID batchUuid) throws IOException {
+    byte[] contents =
+        DestinationRegistry.fileSystems().read(recordFilename(aggregateId, batchUuid));
+    return contents == null ? null : Record.fromJson(new String(contents, StandardCharsets.UTF_8));
+  }
+
+  /** Commits the record of a batch all of whose files have been written. */
+  public void commit(String aggregateId, Record record) throws IOException {
+    BatchWriterFn.writeToFile(
+        recordFilename(aggregateId, record.batchUuid),
+        ByteBuffer.wrap(record.toJson().getBytes(StandardCharsets.UTF_8)));
+  }
+
+  String recordFilename(String aggregateId, UUID batchUuid) {
+    return ledgerPrefix + aggregateId + batchUuid + LEDGER_SUFFIX;
+  }
+
+  /** Record of a batch written completely. */
+  public static class Record {
+
+    private final String metric;
+    private final long startTime;
+    private final long duration;
+    private final UUID batchUuid;
+    private final long shareCount;
+    // Packet file digest by file prefix at each destination
+    private final Map<String, byte[]> destinations;
+
+    public Record(
+        String metric,
+        long startTime,
+        long duration,
+        UUID batchUuid,
+        long shareCount,
+        Map<String, byte[]> destinations) {
+      this.metric = metric;
+      this.startTime = startTime;
+      this.duration = duration;
+      this.batchUuid = batchUuid;
+      this.shareCount = shareCount;
+      this.destinations = new LinkedHashMap<>(destinations);
+    }
+
+    public String getMetric() {
+      return metric;
+    }
+
+    public long getStartTime() {
+      return startTime;
+    }
+
+    public long getDuration() {
+      return duration;
+    }
+
+    public UUID getBatchUuid() {
+      return batchUuid;
+    }
+
+    public long getShareCount() {
+      return shareCount;
+    }
+
+    /** @return packet file digest by prefix of the files at each destination */
+    public Map<String, byte[]> getDestinations() {
+      return destinations;
+    }
+
+    String toJson() {
+      JsonObject json = new JsonObject();
+      json.addProperty(METRIC, metric);
+      json.addProperty(START_TIME, startTime);
+      json.addProperty(DURATION, duration);
+      json.addProperty(BATCH_UUID, batchUuid.toString());
+      json.addProperty(SHARE_COUNT, shareCount);
+      JsonArray destinationsJson = new JsonArray();
+      for (Entry<String, byte[]> destination : destinations.entrySet()) {
+        JsonObject destinationJson = new JsonObject();
+        destinationJson.addProperty(PATH, destination.getKey());
+        destinationJson.addProperty(
+            PACKET_FILE_DIGEST, BaseEncoding.base16().lowerCase().encode(destination.getValue()));
+        destinationsJson.add(destinationJson);
+      }
+      json.add(DESTINATIONS, destinationsJson);
+      return json.toString();
+    }
+
+    static Record fromJson(String contents) {
+      JsonObject json = new JsonParser().parse(contents).getAsJsonObject();
+      Map<String, byte[]> destinations = new LinkedHashMap<>();
+      for (JsonElement destination : json.getAsJsonArray(DESTINATIONS)) {
+        JsonObject destinationJson = destination.getAsJsonObject();
+        destinations.put(
+            destinationJson.get(PATH).getAsString(),
+            BaseEncoding.base16()
+                .lowerCase()
+                .decode(destinationJson.get(PACKET_FILE_DIGEST).getAsString()));
+      }
+      return new Record(
+          json.get(METRIC).getAsString(),
+          json.get(START_TIME).getAsLong(),
+          json.get(DURATION).getAsLong(),
+          UUID.fromString(json.get(BATCH_UUID).getAsString()),
+          json.get(SHARE_COUNT).getAsLong(),
+          destinations);
+    }
+  }
+}
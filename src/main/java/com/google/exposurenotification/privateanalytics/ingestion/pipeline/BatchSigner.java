@@ -0,0 +1,67 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import java.io.IOException;
+import java.util.ServiceLoader;
+
+/**
+ * Class to extend to sign the headers of batches, e.g. with a key other than a Cloud KMS one.
+ *
+ * <p>Signers are found through {@link ServiceLoader}, the same way device attestation
+ * implementations are, and selected by {@link #getName()} with {@code --batchSigner}. A writer
+ * creates its own instance, set up with the pipeline options before its first bundle and torn down
+ * with the writer.
+ */
+public abstract class BatchSigner {
+
+  /** @return the name selecting this signer with {@code --batchSigner} */
+  public abstract String getName();
+
+  /** Prepares the signer to sign batch headers. */
+  public abstract void setup(IngestionPipelineOptions options) throws IOException;
+
+  /** Releases resources held by the signer. */
+  public void teardown() {}
+
+  /** @return identifier of the key signing batch headers, written along with the signature */
+  public abstract String getKeyIdentifier();
+
+  /**
+   * Starts signing the SHA-256 digest of a batch header.
+   *
+   * @return the ASN.1 DER encoded ECDSA signature of the header, which may still be being computed
+   */
+  public abstract Signature sign(byte[] sha256) throws IOException, InterruptedException;
+
+  /** Signature which may still be being computed. */
+  public interface Signature {
+    byte[] get() throws IOException, InterruptedException;
+  }
+
+  /**
+   * @return a new instance of the signer of the given name
+   * @throws IllegalArgumentException if no such signer is found
+   */
+  public static BatchSigner forName(String name) {
+    for (BatchSigner signer : ServiceLoader.load(BatchSigner.class)) {
+      if (signer.getName().equals(name)) {
+        return signer;
+      }
+    }
+    throw new IllegalArgumentException("No batch signer named " + name);
+  }
+}
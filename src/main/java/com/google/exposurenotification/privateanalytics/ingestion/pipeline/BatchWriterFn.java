@@ -15,38 +15,49 @@
  */
 package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
 
-import com.google.cloud.kms.v1.AsymmetricSignResponse;
-import com.google.cloud.kms.v1.CryptoKeyVersionName;
-import com.google.cloud.kms.v1.Digest;
-import com.google.cloud.kms.v1.KeyManagementServiceClient;
 import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
 import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare;
 import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
-import com.google.protobuf.ByteString;
+import com.google.exposurenotification.privateanalytics.ingestion.pipeline.DestinationRegistry.Destination;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Clock;
-import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import org.abetterinternet.prio.v1.PrioBatchSignature;
 import org.abetterinternet.prio.v1.PrioDataSharePacket;
 import org.abetterinternet.prio.v1.PrioIngestionHeader;
-import org.apache.beam.sdk.io.FileSystems;
-import org.apache.beam.sdk.io.fs.ResourceId;
 import org.apache.beam.sdk.metrics.Counter;
 import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.metrics.MetricsContainer;
+import org.apache.beam.sdk.metrics.MetricsEnvironment;
 import org.apache.beam.sdk.transforms.DoFn;
-import org.apache.beam.sdk.util.MimeTypes;
 import org.apache.beam.sdk.values.KV;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -56,10 +67,13 @@ public class BatchWriterFn extends DoFn<KV<DataShareMetadata, Iterable<DataShare
   public static final String INGESTION_HEADER_SUFFIX = ".batch";
   public static final String DATASHARE_PACKET_SUFFIX = ".batch.avro";
   public static final String HEADER_SIGNATURE_SUFFIX = ".batch.sig";
+  public static final String PACKET_MANIFEST_SUFFIX = ".batch.manifest.json";
+
+  // Writes of a part of a packet file, before failing the batch
+  private static final int PACKET_PART_WRITE_ATTEMPTS = 3;
 
   private static final Logger LOG = LoggerFactory.getLogger(BatchWriterFn.class);
-  private static final Duration KMS_WAIT_TIME = Duration.ofSeconds(30);
-  private static final DateTimeFormatter DATE_TIME_FORMATTER =
+  static final DateTimeFormatter DATE_TIME_FORMATTER =
       DateTimeFormatter.ofPattern("/yyyy/MM/dd/HH/mm/");
 
   private static final Counter dataSharesInBatch =
@@ -77,60 +91,194 @@ public class BatchWriterFn extends DoFn<KV<DataShareMetadata, Iterable<DataShare
   private static final Counter failedBatches =
       Metrics.counter(BatchWriterFn.class, "failedBatches");
 
-  private transient KeyManagementServiceClient client;
-  private transient CryptoKeyVersionName keyVersionName;
+  private static final Counter skippedIdenticalBatches =
+      Metrics.counter(BatchWriterFn.class, "skippedIdenticalBatches");
+
+  private static final Counter skippedCommittedBatches =
+      Metrics.counter(BatchWriterFn.class, "skippedCommittedBatches");
+
+  private static final Counter packetFileParts =
+      Metrics.counter(BatchWriterFn.class, "packetFileParts");
+
+  private static final Counter packetFilePartRetries =
+      Metrics.counter(BatchWriterFn.class, "packetFilePartRetries");
+
+  private transient BatchSigner signer;
+  private transient boolean skipIdenticalBatches;
+  @Nullable private transient BatchLedger ledger;
+  private transient AvroFileFormat packetFormat;
+  private transient AvroFileFormat headerFormat;
+  // Size of the parts of packet files of each destination, 0 for single files
+  private transient long phaPartSize;
+  private transient long facilitatorPartSize;
+  // Writes to the PHA and facilitator destinations, if they are written concurrently
+  private transient ExecutorService destinationExecutor;
+  // Batches being written asynchronously, if enabled
+  private transient ExecutorService batchExecutor;
+  private transient int batchWritesInFlight;
+  private transient Semaphore batchesInFlight;
+  private transient List<Future<Void>> pendingBatches;
 
   // Uses pipeline options, otherwise could've lived in @Setup
   @StartBundle
   public void startBundle(StartBundleContext context) throws IOException {
-    client = KeyManagementServiceClient.create();
     IngestionPipelineOptions options =
         context.getPipelineOptions().as(IngestionPipelineOptions.class);
-    keyVersionName = CryptoKeyVersionName.parse(options.getKeyResourceName());
+    if (signer == null) {
+      signer = BatchSigner.forName(options.getBatchSigner());
+      signer.setup(options);
+    }
+    skipIdenticalBatches = options.getSkipIdenticalBatches();
+    ledger =
+        options.getLedgerOutput().isEmpty() ? null : new BatchLedger(options.getLedgerOutput());
+    packetFormat = AvroFileFormat.packetFormat(options);
+    headerFormat = AvroFileFormat.headerFormat(options);
+    long partSize = options.getPacketFilePartSize();
+    phaPartSize = options.getPhaPacketFileParts() ? partSize : 0;
+    facilitatorPartSize = options.getFacilitatorPacketFileParts() ? partSize : 0;
+    int inFlight = options.getBatchWritesInFlight().intValue();
+    if (inFlight > 0 && batchExecutor == null) {
+      batchExecutor = Executors.newFixedThreadPool(inFlight);
+      batchWritesInFlight = inFlight;
+      batchesInFlight = new Semaphore(inFlight);
+      pendingBatches = new ArrayList<>();
+    }
+    if (options.getParallelDestinationWrites() && destinationExecutor == null) {
+      destinationExecutor =
+          Executors.newFixedThreadPool(DataShare.NUMBER_OF_SERVERS * Math.max(1, inFlight));
+    }
   }
 
   @FinishBundle
-  public void finishBundle() {
-    client.shutdown();
-    LOG.info("Waiting for KMS Client to shutdown.");
-    try {
-      client.awaitTermination(KMS_WAIT_TIME.toMillis(), TimeUnit.MILLISECONDS);
-    } catch (InterruptedException e) {
-      LOG.warn("Interrupted while waiting for client shutdown", e);
-      Thread.currentThread().interrupt();
+  public void finishBundle() throws InterruptedException {
+    if (batchExecutor != null) {
+      // All batches of the bundle need to be written before it is committed
+      awaitBatches(true);
+    }
+  }
+
+  @Teardown
+  public void teardown() {
+    if (batchExecutor != null) {
+      batchExecutor.shutdownNow();
+    }
+    if (destinationExecutor != null) {
+      destinationExecutor.shutdownNow();
+    }
+    if (signer != null) {
+      signer.teardown();
+      signer = null;
     }
   }
 
   @ProcessElement
-  public void processElement(ProcessContext c) {
+  public void processElement(ProcessContext c) throws InterruptedException {
     IngestionPipelineOptions options = c.getPipelineOptions().as(IngestionPipelineOptions.class);
 
-    String phaPrefix = options.getPhaOutput();
-    String facilitatorPrefix = options.getFacilitatorOutput();
-
-    long startTime =
-        IngestionPipelineOptions.calculatePipelineStart(
-            options.getStartTime(), options.getDuration(), 1, Clock.systemUTC());
-    long duration = options.getDuration();
-
     KV<DataShareMetadata, Iterable<DataShare>> input = c.element();
     DataShareMetadata metadata = input.getKey();
     batchesProcessed.inc();
     LOG.info("Processing batch: {}", metadata);
-    // batch size explicitly chosen so that these lists fit in memory on a single worker
-    List<PrioDataSharePacket> phaPackets = new ArrayList<>();
-    List<PrioDataSharePacket> facilitatorPackets = new ArrayList<>();
+    // batch size explicitly chosen so that the shares fit in memory on a single worker, packets
+    // are streamed from them into the output files
+    List<DataShare> dataShares = new ArrayList<>();
     for (DataShare dataShare : input.getValue()) {
-      List<PrioDataSharePacket> split = PrioSerializationHelper.splitPackets(dataShare);
-      if (split.size() != DataShare.NUMBER_OF_SERVERS) {
+      if (dataShare.getEncryptedDataShares().size() != DataShare.NUMBER_OF_SERVERS) {
         // Checks exist to discard such data shares prior to reaching this point.
         throw new IllegalArgumentException(
             "Share split into more than hardcoded number of servers");
       }
-      // First packet always goes to PHA
-      phaPackets.add(split.get(0));
-      facilitatorPackets.add(split.get(1));
+      dataShares.add(dataShare);
+    }
+
+    if (batchExecutor == null) {
+      writeBatches(options, metadata, dataShares);
+      return;
     }
+    // Write while the next batches are read and serialized, but only so many at a time
+    batchesInFlight.acquire();
+    MetricsContainer metricsContainer = MetricsEnvironment.getCurrentContainer();
+    pendingBatches.add(
+        batchExecutor.submit(
+            () -> {
+              try (Closeable ignored =
+                  MetricsEnvironment.scopedMetricsContainer(metricsContainer)) {
+                writeBatches(options, metadata, dataShares);
+              } finally {
+                batchesInFlight.release();
+              }
+              return null;
+            }));
+    awaitBatches(false);
+  }
+
+  /**
+   * Waits for batches written asynchronously, or only collects those already written. Once a batch
+   * failed, waits for all other pending batches too, so that none keeps running past the failed
+   * bundle or stays pending when the instance is reused for another bundle.
+   *
+   * @throws RuntimeException thrown by the first write of a batch which failed, failing the bundle
+   */
+  private void awaitBatches(boolean all) throws InterruptedException {
+    Throwable failure = null;
+    try {
+      Iterator<Future<Void>> pending = pendingBatches.iterator();
+      while (pending.hasNext()) {
+        Future<Void> future = pending.next();
+        if (!all && failure == null && !future.isDone()) {
+          continue;
+        }
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          failure = failure == null ? e.getCause() : failure;
+        }
+        pending.remove();
+      }
+      if (failure != null) {
+        // Batches skipped before the failure was seen
+        for (Future<Void> future : pendingBatches) {
+          try {
+            future.get();
+          } catch (ExecutionException e) {
+            // Only the first failure is reported
+          }
+        }
+        pendingBatches.clear();
+      }
+    } catch (InterruptedException e) {
+      for (Future<Void> future : pendingBatches) {
+        future.cancel(true);
+      }
+      pendingBatches.clear();
+      // Batches cancelled before they started never release their permits
+      batchesInFlight = new Semaphore(batchWritesInFlight);
+      throw e;
+    }
+    if (failure instanceof Error) {
+      throw (Error) failure;
+    } else if (failure != null) {
+      throw new RuntimeException("Failed to write batch", failure);
+    }
+  }
+
+  /** Writes the files of a batch to the PHA and facilitator destinations. */
+  private void writeBatches(
+      IngestionPipelineOptions options, DataShareMetadata metadata, List<DataShare> dataShares) {
+    String phaPrefix = options.getPhaOutput();
+    String facilitatorPrefix = options.getFacilitatorOutput();
+
+    long startTime =
+        IngestionPipelineOptions.calculatePipelineStart(
+            options.getStartTime(), options.getDuration(), 1, Clock.systemUTC());
+    long duration = options.getDuration();
+
+    // The order of shares in a batch may differ between retries, sort them so that a retry
+    // writes the same bytes, with the same digest, as the header possibly already written.
+    int[] order = canonicalOrder(dataShares);
+    // First packet always goes to PHA
+    Iterable<PrioDataSharePacket> phaPackets = packets(dataShares, order, 0);
+    Iterable<PrioDataSharePacket> facilitatorPackets = packets(dataShares, order, 1);
 
     String date =
         Instant.ofEpochSecond(startTime + duration)
@@ -141,6 +289,15 @@ public class BatchWriterFn extends DoFn<KV<DataShareMetadata, Iterable<DataShare
     // that files that may already have been written are overwritten, instead of new files created.
     byte[] seed = (aggregateId + metadata.getBatchId()).getBytes();
     UUID batchId = UUID.nameUUIDFromBytes(seed);
+    try {
+      if (ledger != null && ledger.isCommitted(aggregateId, batchId)) {
+        LOG.info("Skipping batch already committed to the ledger: {}{}", aggregateId, batchId);
+        skippedCommittedBatches.inc();
+        return;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to read the batch ledger", e);
+    }
     String phaFilePath =
         phaPrefix + ((phaPrefix.endsWith("/")) ? "" : "/") + aggregateId + batchId.toString();
     String facilitatorPath =
@@ -148,68 +305,194 @@ public class BatchWriterFn extends DoFn<KV<DataShareMetadata, Iterable<DataShare
             + ((facilitatorPrefix.endsWith("/")) ? "" : "/")
             + aggregateId
             + batchId.toString();
+    Destination phaDestination =
+        DestinationRegistry.forPath(
+            options, phaFilePath, options.getPhaAwsBucketRole(), options.getPhaAwsBucketRegion());
+    Destination facilitatorDestination =
+        DestinationRegistry.forPath(
+            options,
+            facilitatorPath,
+            options.getFacilitatorAwsBucketRole(),
+            options.getFacilitatorAwsBucketRegion());
+
+    // Packet file digests of the PHA and facilitator destinations, for the ledger
+    byte[][] digests = new byte[DataShare.NUMBER_OF_SERVERS][];
+    BatchWrite phaWrite =
+        () -> {
+          // Write to PHA Output Destination
+          LOG.info("PHA Output: {}", phaFilePath);
+          digests[0] =
+              writeBatch(
+                  startTime,
+                  duration,
+                  metadata,
+                  batchId,
+                  phaDestination,
+                  phaFilePath,
+                  phaPartSize,
+                  phaPackets);
+        };
+    BatchWrite facilitatorWrite =
+        () -> {
+          // Write to Facilitator Output Destination
+          LOG.info("Facilitator Output: {}", facilitatorPath);
+          digests[1] =
+              writeBatch(
+                  startTime,
+                  duration,
+                  metadata,
+                  batchId,
+                  facilitatorDestination,
+                  facilitatorPath,
+                  facilitatorPartSize,
+                  facilitatorPackets);
+        };
 
     try {
-      // Write to PHA Output Destination
-      LOG.info("PHA Output: {}", phaFilePath);
-      writeBatch(
-          options,
-          startTime,
-          duration,
-          metadata,
-          batchId,
-          phaFilePath,
-          phaPackets,
-          options.getPhaAwsBucketRole(),
-          options.getPhaAwsBucketRegion());
-
-      // Write to Facilitator Output Destination
-      LOG.info("Facilitator Output: {}", facilitatorPath);
-      writeBatch(
-          options,
-          startTime,
-          duration,
-          metadata,
-          batchId,
-          facilitatorPath,
-          facilitatorPackets,
-          options.getFacilitatorAwsBucketRole(),
-          options.getFacilitatorAwsBucketRegion());
+      if (destinationExecutor != null) {
+        writeConcurrently(destinationExecutor, phaWrite, facilitatorWrite);
+      } else {
+        phaWrite.write();
+        facilitatorWrite.write();
+      }
+      if (ledger != null) {
+        // Only once the files of both destinations are written
+        Map<String, byte[]> destinations = new LinkedHashMap<>();
+        destinations.put(phaFilePath, digests[0]);
+        destinations.put(facilitatorPath, digests[1]);
+        ledger.commit(
+            aggregateId,
+            new BatchLedger.Record(
+                metadata.getMetricName(),
+                startTime,
+                duration,
+                batchId,
+                dataShares.size(),
+                destinations));
+      }
 
       successfulBatches.inc();
-      dataSharesInBatch.inc(phaPackets.size());
+      dataSharesInBatch.inc(dataShares.size());
     } catch (IOException | NoSuchAlgorithmException e) {
       LOG.error("Unable to serialize Packet/Header/Sig file for PHA or facilitator", e);
       failedBatches.inc();
-      failedDataShares.inc(phaPackets.size());
+      failedDataShares.inc(dataShares.size());
+    }
+  }
+
+  /**
+   * Runs writes on the executor and waits for all of them, so that a failed write doesn't leave
+   * another one running past the element. When interrupted, cancels the writes still running
+   * instead of waiting for them.
+   *
+   * @throws IOException or NoSuchAlgorithmException of the first write which failed, or an
+   *     IOException if interrupted, with the interrupt status of the thread set again
+   */
+  static void writeConcurrently(ExecutorService executor, BatchWrite... writes)
+      throws IOException, NoSuchAlgorithmException {
+    // Metrics are reported to the container of the calling thread
+    MetricsContainer metricsContainer = MetricsEnvironment.getCurrentContainer();
+    List<Future<Void>> futures = new ArrayList<>();
+    for (BatchWrite write : writes) {
+      futures.add(
+          executor.submit(
+              () -> {
+                try (Closeable ignored =
+                    MetricsEnvironment.scopedMetricsContainer(metricsContainer)) {
+                  write.write();
+                }
+                return null;
+              }));
+    }
+    Throwable failure = null;
+    for (Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        failure = failure == null ? e.getCause() : failure;
+      } catch (InterruptedException e) {
+        for (Future<Void> write : futures) {
+          write.cancel(true);
+        }
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while writing batch", e);
+      }
+    }
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    } else if (failure instanceof NoSuchAlgorithmException) {
+      throw (NoSuchAlgorithmException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure instanceof Error) {
+      throw (Error) failure;
+    } else if (failure != null) {
+      throw new IOException(failure);
     }
   }
 
-  /** Writes the triplet of files defined per batch of data shares (packet file, header, and sig) */
-  private void writeBatch(
-      IngestionPipelineOptions options,
+  /** Write of the files of a batch to one destination. */
+  interface BatchWrite {
+    void write() throws IOException, NoSuchAlgorithmException;
+  }
+
+  /**
+   * Writes the triplet of files defined per batch of data shares (packet file, header, and sig).
+   * With a part size, the packet file is written in parts along with their manifest instead.
+   *
+   * @return digest of the packet file, or of the manifest of its parts
+   */
+  private byte[] writeBatch(
       long startTime,
       long duration,
       DataShareMetadata metadata,
       UUID uuid,
+      Destination destination,
       String filenamePrefix,
-      List<PrioDataSharePacket> packets,
-      String awsBucketRole,
-      String awsBucketRegion)
+      long partSize,
+      Iterable<PrioDataSharePacket> packets)
       throws IOException, NoSuchAlgorithmException {
-
-    if (filenamePrefix.startsWith("s3://")) {
-      AWSFederatedAuthHelper.setupAWSAuth(options, awsBucketRole, awsBucketRegion);
-      FileSystems.setDefaultPipelineOptions(options);
-    }
-    // write PrioDataSharePackets in this batch to file
-    ByteBuffer packetsByteBuffer =
-        PrioSerializationHelper.serializeRecords(
-            packets, PrioDataSharePacket.class, PrioDataSharePacket.getClassSchema());
-    writeToFile(filenamePrefix + DATASHARE_PACKET_SUFFIX, packetsByteBuffer);
-
+    byte[] syncMarker = PrioSerializationHelper.syncMarker(uuid);
     MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-    byte[] packetsBytesHashDigest = sha256.digest(packetsByteBuffer.array());
+    if (skipIdenticalBatches) {
+      byte[] writtenDigest =
+          writtenDigest(
+              destination,
+              filenamePrefix,
+              uuid,
+              packets,
+              syncMarker,
+              packetFormat,
+              partSize,
+              sha256);
+      if (writtenDigest != null) {
+        LOG.info("Skipping batch identical to the one already written: {}", filenamePrefix);
+        skippedIdenticalBatches.inc();
+        return writtenDigest;
+      }
+    }
+    byte[] packetsBytesHashDigest;
+    if (partSize > 0) {
+      byte[] manifest =
+          writePacketParts(
+              destination, filenamePrefix, uuid, packets, syncMarker, packetFormat, partSize);
+      writeToFile(destination, filenamePrefix + PACKET_MANIFEST_SUFFIX, ByteBuffer.wrap(manifest));
+      packetsBytesHashDigest = sha256.digest(manifest);
+    } else {
+      // stream PrioDataSharePackets in this batch to file, digesting them on the way
+      String packetsFilename = filenamePrefix + DATASHARE_PACKET_SUFFIX;
+      LOG.info("Writing output file: {}", packetsFilename);
+      try (WritableByteChannel out = destination.create(packetsFilename)) {
+        PrioSerializationHelper.writeRecords(
+            packets,
+            PrioDataSharePacket.class,
+            PrioDataSharePacket.getClassSchema(),
+            syncMarker,
+            packetFormat,
+            new DigestOutputStream(Channels.newOutputStream(out), sha256));
+      }
+      packetsBytesHashDigest = sha256.digest();
+    }
     // create Header and write to file
     PrioIngestionHeader header =
         PrioSerializationHelper.createHeader(
@@ -219,30 +502,241 @@ public class BatchWriterFn extends DoFn<KV<DataShareMetadata, Iterable<DataShare
         PrioSerializationHelper.serializeRecords(
             ImmutableList.of(header),
             PrioIngestionHeader.class,
-            PrioIngestionHeader.getClassSchema());
-    writeToFile(filenamePrefix + INGESTION_HEADER_SUFFIX, headerBytes);
-
+            PrioIngestionHeader.getClassSchema(),
+            syncMarker,
+            headerFormat);
     byte[] hashHeader = sha256.digest(headerBytes.array());
-    Digest digestHeader = Digest.newBuilder().setSha256(ByteString.copyFrom(hashHeader)).build();
-
-    AsymmetricSignResponse result = client.asymmetricSign(keyVersionName, digestHeader);
-    PrioBatchSignature signature =
-        PrioBatchSignature.newBuilder()
-            .setBatchHeaderSignature(result.getSignature().asReadOnlyByteBuffer())
-            .setKeyIdentifier(keyVersionName.toString())
-            .build();
+
+    PrioBatchSignature signature;
+    try {
+      // Signed while the header is written when signing asynchronously
+      BatchSigner.Signature headerSignature = signer.sign(hashHeader);
+      writeToFile(destination, filenamePrefix + INGESTION_HEADER_SUFFIX, headerBytes);
+      signature =
+          PrioBatchSignature.newBuilder()
+              .setBatchHeaderSignature(ByteBuffer.wrap(headerSignature.get()))
+              .setKeyIdentifier(signer.getKeyIdentifier())
+              .build();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while signing batch header", e);
+    }
     ByteBuffer signatureBytes =
         PrioSerializationHelper.serializeRecords(
             ImmutableList.of(signature),
             PrioBatchSignature.class,
-            PrioBatchSignature.getClassSchema());
-    writeToFile(filenamePrefix + HEADER_SIGNATURE_SUFFIX, signatureBytes);
+            PrioBatchSignature.getClassSchema(),
+            null,
+            headerFormat);
+    writeToFile(destination, filenamePrefix + HEADER_SIGNATURE_SUFFIX, signatureBytes);
+    return packetsBytesHashDigest;
+  }
+
+  /**
+   * Checks whether a previous attempt already wrote the batch, by comparing the packet file digest
+   * in the header at the destination with the digest of the packets. The packets are only
+   * serialized to compute their digest when there is such a header, i.e. when the batch is retried.
+   *
+   * @return the packet file digest if the header and signature of the same packets are already
+   *     written, null otherwise
+   */
+  private static byte @Nullable [] writtenDigest(
+      Destination destination,
+      String filenamePrefix,
+      UUID uuid,
+      Iterable<PrioDataSharePacket> packets,
+      byte[] syncMarker,
+      AvroFileFormat packetFormat,
+      long partSize,
+      MessageDigest sha256)
+      throws IOException {
+    byte[] existingHeader = destination.read(filenamePrefix + INGESTION_HEADER_SUFFIX);
+    if (existingHeader == null) {
+      return null;
+    }
+    List<PrioIngestionHeader> headers;
+    try {
+      headers =
+          PrioSerializationHelper.deserializeRecords(PrioIngestionHeader.class, existingHeader);
+    } catch (IOException e) {
+      LOG.warn("Rewriting batch with unreadable header: {}", filenamePrefix, e);
+      return null;
+    }
+    if (headers.size() != 1) {
+      return null;
+    }
+    byte[] digest;
+    if (partSize > 0) {
+      digest =
+          sha256.digest(
+              writePacketParts(
+                  null, filenamePrefix, uuid, packets, syncMarker, packetFormat, partSize));
+    } else {
+      PrioSerializationHelper.writeRecords(
+          packets,
+          PrioDataSharePacket.class,
+          PrioDataSharePacket.getClassSchema(),
+          syncMarker,
+          packetFormat,
+          new DigestOutputStream(ByteStreams.nullOutputStream(), sha256));
+      digest = sha256.digest();
+    }
+    if (headers.get(0).getPacketFileDigest().equals(ByteBuffer.wrap(digest))
+        && destination.read(filenamePrefix + HEADER_SIGNATURE_SUFFIX) != null) {
+      return digest;
+    }
+    return null;
+  }
+
+  /**
+   * Writes packets into parts of about {@code partSize} bytes, one at a time, each retried on its
+   * own when its write fails.
+   *
+   * @param destination to write the parts to, or null to only compute their manifest
+   * @return the manifest of the parts
+   */
+  private static byte[] writePacketParts(
+      @Nullable Destination destination,
+      String filenamePrefix,
+      UUID uuid,
+      Iterable<PrioDataSharePacket> packets,
+      byte[] syncMarker,
+      AvroFileFormat packetFormat,
+      long partSize)
+      throws IOException {
+    String basename = filenamePrefix.substring(filenamePrefix.lastIndexOf('/') + 1);
+    String directory = filenamePrefix.substring(0, filenamePrefix.length() - basename.length());
+    ByteArrayOutputStream partBytes = new ByteArrayOutputStream();
+    List<PacketFileManifest.Part> parts = new ArrayList<>();
+    AvroFileEncoder.forClass(PrioDataSharePacket.class, PrioDataSharePacket.getClassSchema())
+        .writeParts(
+            packets,
+            syncMarker,
+            packetFormat,
+            partSize,
+            new AvroFileEncoder.PartSink() {
+              @Override
+              public OutputStream startPart(int part) {
+                partBytes.reset();
+                return partBytes;
+              }
+
+              @Override
+              public void finishPart(int part, long recordCount) throws IOException {
+                String filename = basename + packetPartSuffix(part);
+                byte[] contents = partBytes.toByteArray();
+                if (destination != null) {
+                  writePart(destination, directory + filename, contents);
+                }
+                parts.add(
+                    new PacketFileManifest.Part(
+                        filename, recordCount, contents.length, sha256(contents)));
+              }
+            });
+    return new PacketFileManifest(uuid, parts).toBytes();
+  }
+
+  private static void writePart(Destination destination, String filename, byte[] contents)
+      throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        writeToFile(destination, filename, ByteBuffer.wrap(contents));
+        packetFileParts.inc();
+        return;
+      } catch (IOException e) {
+        if (attempt == PACKET_PART_WRITE_ATTEMPTS) {
+          throw e;
+        }
+        LOG.warn("Retrying write of packet file part: {}", filename, e);
+        packetFilePartRetries.inc();
+      }
+    }
+  }
+
+  /** @return suffix of a part of a packet file, after the batch uuid like the other suffixes */
+  static String packetPartSuffix(int part) {
+    return String.format(".batch.part%05d.avro", part);
+  }
+
+  private static byte[] sha256(byte[] contents) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(contents);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is required of every Java platform", e);
+    }
+  }
+
+  /** @return packets of the shares for the given server, split from the shares as iterated */
+  private static Iterable<PrioDataSharePacket> packets(
+      List<DataShare> dataShares, int[] order, int server) {
+    return () ->
+        Arrays.stream(order)
+            .mapToObj(index -> PrioSerializationHelper.packetFor(dataShares.get(index), server))
+            .iterator();
+  }
+
+  /**
+   * Orders shares by uuid, or by document path for shares without one, independently of their order
+   * in the batch.
+   *
+   * <p>Indexes are sorted as primitive longs on a hash of the sort key, so only comparing shares
+   * whose hashes collide involves the keys themselves.
+   *
+   * @return indexes of the shares in canonical order
+   */
+  static int[] canonicalOrder(List<DataShare> dataShares) {
+    int size = dataShares.size();
+    long[] hashAndIndex = new long[size];
+    for (int i = 0; i < size; i++) {
+      hashAndIndex[i] = ((long) sortKey(dataShares.get(i)).hashCode() << 32) | i;
+    }
+    Arrays.sort(hashAndIndex);
+    int[] order = new int[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = (int) hashAndIndex[i];
+    }
+    for (int start = 0; start < size; ) {
+      int end = start + 1;
+      while (end < size && hashAndIndex[end] >>> 32 == hashAndIndex[start] >>> 32) {
+        end++;
+      }
+      if (end - start > 1) {
+        sortCollisions(dataShares, order, start, end);
+      }
+      start = end;
+    }
+    return order;
+  }
+
+  private static void sortCollisions(List<DataShare> dataShares, int[] order, int start, int end) {
+    Integer[] collisions = new Integer[end - start];
+    for (int i = start; i < end; i++) {
+      collisions[i - start] = order[i];
+    }
+    Arrays.sort(
+        collisions,
+        Comparator.<Integer, String>comparing(i -> sortKey(dataShares.get(i)))
+            .thenComparing(i -> String.valueOf(dataShares.get(i).getPath())));
+    for (int i = start; i < end; i++) {
+      order[i] = collisions[i - start];
+    }
+  }
+
+  private static String sortKey(DataShare dataShare) {
+    if (dataShare.getUuid() != null) {
+      return dataShare.getUuid();
+    }
+    return String.valueOf(dataShare.getPath());
   }
 
   static void writeToFile(String filename, ByteBuffer contents) throws IOException {
+    writeToFile(DestinationRegistry.fileSystems(), filename, contents);
+  }
+
+  static void writeToFile(Destination destination, String filename, ByteBuffer contents)
+      throws IOException {
     LOG.info("Writing output file: {}", filename);
-    ResourceId resourceId = FileSystems.matchNewResource(filename, false);
-    try (WritableByteChannel out = FileSystems.create(resourceId, MimeTypes.TEXT)) {
+    try (WritableByteChannel out = destination.create(filename)) {
       out.write(contents);
     }
   }
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.apache.beam.sdk.io.FileSystems;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Batch size, byte limit and number of shards to batch the shares of each metric with.
+ *
+ * <p>Limits default to the pipeline options, and can be overridden per metric name or per range of
+ * {@code bins} by a JSON policy file:
+ *
+ * <pre>{@code
+ * {
+ *   "metrics": {
+ *     "someMetric": {"batchSize": 500000, "shards": 16}
+ *   },
+ *   "bins": [
+ *     {"minBins": 100, "maxBins": 1000, "batchSize": 20000, "maxBytes": 268435456}
+ *   ]
+ * }
+ * }</pre>
+ *
+ * <p>A metric name override takes precedence over the first matching bins range. Limits missing
+ * from an override are taken from the options.
+ */
+public class BatchingPolicy implements Serializable {
+
+  private static final String METRICS = "metrics";
+  private static final String BINS = "bins";
+  private static final String MIN_BINS = "minBins";
+  private static final String MAX_BINS = "maxBins";
+  private static final String BATCH_SIZE = "batchSize";
+  private static final String MAX_BYTES = "maxBytes";
+  private static final String SHARDS = "shards";
+
+  /** Batch size which is picked on the workers from their heap size, see {@link AutoBatchSizer}. */
+  public static final long AUTO_BATCH_SIZE = 0;
+
+  private final Limits defaults;
+  private final Map<String, Limits> metricLimits;
+  private final List<BinsRange> binsLimits;
+  private final long minAutoBatchSize;
+  private final long maxAutoBatchSize;
+
+  BatchingPolicy(
+      Limits defaults,
+      Map<String, Limits> metricLimits,
+      List<BinsRange> binsLimits,
+      long minAutoBatchSize,
+      long maxAutoBatchSize) {
+    if (minAutoBatchSize <= 0 || maxAutoBatchSize < minAutoBatchSize) {
+      throw new IllegalArgumentException(
+          "Invalid automatic batch size bounds: " + minAutoBatchSize + ", " + maxAutoBatchSize);
+    }
+    this.defaults = defaults;
+    this.metricLimits = metricLimits;
+    this.binsLimits = binsLimits;
+    this.minAutoBatchSize = minAutoBatchSize;
+    this.maxAutoBatchSize = maxAutoBatchSize;
+  }
+
+  /** Policy applying the same limits to every metric. */
+  public static BatchingPolicy of(long batchSize, long maxBytes, long shards) {
+    return new BatchingPolicy(
+        new Limits(batchSize, maxBytes, shards),
+        new HashMap<>(),
+        new ArrayList<>(),
+        1,
+        Long.MAX_VALUE);
+  }
+
+  /** Bounds of the batch sizes picked for metrics with {@link #AUTO_BATCH_SIZE}. */
+  public BatchingPolicy withAutoBatchSizeBounds(long minBatchSize, long maxBatchSize) {
+    return new BatchingPolicy(defaults, metricLimits, binsLimits, minBatchSize, maxBatchSize);
+  }
+
+  /** Reads the policy file set in the options, if any, on top of the batching options. */
+  public static BatchingPolicy fromOptions(IngestionPipelineOptions options) {
+    BatchingPolicy policy =
+        of(options.getBatchSize(), options.getBatchMaxBytes(), options.getBatchShards())
+            .withAutoBatchSizeBounds(options.getMinAutoBatchSize(), options.getMaxAutoBatchSize());
+    if ("".equals(options.getBatchingPolicy())) {
+      return policy;
+    }
+    try (Reader reader =
+        Channels.newReader(
+            FileSystems.open(
+                FileSystems.matchSingleFileSpec(options.getBatchingPolicy()).resourceId()),
+            StandardCharsets.UTF_8.name())) {
+      return policy.withOverrides(reader);
+    } catch (IOException e) {
+      throw new IllegalArgumentException(
+          "Unable to read batching policy " + options.getBatchingPolicy(), e);
+    }
+  }
+
+  /** Parses a JSON policy, with this policy's defaults for limits it leaves out. */
+  BatchingPolicy withOverrides(String json) {
+    return withOverrides(new StringReader(json));
+  }
+
+  private BatchingPolicy withOverrides(Reader reader) {
+    JsonObject policyJson = new JsonParser().parse(reader).getAsJsonObject();
+    Map<String, Limits> metrics = new HashMap<>(metricLimits);
+    List<BinsRange> bins = new ArrayList<>(binsLimits);
+    if (policyJson.has(METRICS)) {
+      for (Entry<String, JsonElement> metric : policyJson.getAsJsonObject(METRICS).entrySet()) {
+        metrics.put(metric.getKey(), parseLimits(metric.getValue().getAsJsonObject()));
+      }
+    }
+    if (policyJson.has(BINS)) {
+      JsonArray ranges = policyJson.getAsJsonArray(BINS);
+      for (JsonElement range : ranges) {
+        JsonObject rangeJson = range.getAsJsonObject();
+        bins.add(
+            new BinsRange(
+                rangeJson.has(MIN_BINS) ? rangeJson.get(MIN_BINS).getAsInt() : Integer.MIN_VALUE,
+                rangeJson.has(MAX_BINS) ? rangeJson.get(MAX_BINS).getAsInt() : Integer.MAX_VALUE,
+                parseLimits(rangeJson)));
+      }
+    }
+    return new BatchingPolicy(defaults, metrics, bins, minAutoBatchSize, maxAutoBatchSize);
+  }
+
+  private Limits parseLimits(JsonObject limitsJson) {
+    return new Limits(
+        limitsJson.has(BATCH_SIZE)
+            ? limitsJson.get(BATCH_SIZE).getAsLong()
+            : defaults.getBatchSize(),
+        limitsJson.has(MAX_BYTES) ? limitsJson.get(MAX_BYTES).getAsLong() : defaults.getMaxBytes(),
+        limitsJson.has(SHARDS) ? limitsJson.get(SHARDS).getAsLong() : defaults.getShards());
+  }
+
+  public Limits limitsFor(@Nullable DataShareMetadata metadata) {
+    if (metadata == null) {
+      return defaults;
+    }
+    Limits limits = metricLimits.get(metadata.getMetricName());
+    if (limits != null) {
+      return limits;
+    }
+    if (metadata.hasBins()) {
+      for (BinsRange range : binsLimits) {
+        if (range.contains(metadata.getBinsValue())) {
+          return range.limits;
+        }
+      }
+    }
+    return defaults;
+  }
+
+  public Limits getDefaults() {
+    return defaults;
+  }
+
+  public long getMinAutoBatchSize() {
+    return minAutoBatchSize;
+  }
+
+  public long getMaxAutoBatchSize() {
+    return maxAutoBatchSize;
+  }
+
+  /**
+   * @return the batch size of the given limits, or the largest one that may be picked for {@link
+   *     #AUTO_BATCH_SIZE}
+   */
+  public long maxBatchSize(Limits limits) {
+    return limits.getBatchSize() == AUTO_BATCH_SIZE ? maxAutoBatchSize : limits.getBatchSize();
+  }
+
+  /** @return whether any metric is sharded automatically from share counts */
+  public boolean usesAutoShards() {
+    return allLimits().stream().anyMatch(l -> l.getShards() == ShardedKeyFn.AUTO_SHARDS);
+  }
+
+  /** @return whether all metrics are batched by the same fixed number of shares and nothing else */
+  public boolean isUniformCount() {
+    return allLimits().stream()
+        .allMatch(
+            l ->
+                l.getMaxBytes() == 0
+                    && l.getBatchSize() != AUTO_BATCH_SIZE
+                    && l.getBatchSize() == defaults.getBatchSize());
+  }
+
+  private List<Limits> allLimits() {
+    List<Limits> all = new ArrayList<>(metricLimits.values());
+    binsLimits.forEach(range -> all.add(range.limits));
+    all.add(defaults);
+    return all;
+  }
+
+  /**
+   * Batching limits of a metric. A byte limit of 0 bounds batches by number of shares only, and a
+   * batch size of {@link #AUTO_BATCH_SIZE} picks it from worker memory.
+   */
+  public static class Limits implements Serializable {
+
+    private final long batchSize;
+    private final long maxBytes;
+    private final long shards;
+
+    Limits(long batchSize, long maxBytes, long shards) {
+      if (batchSize < 0 || maxBytes < 0 || shards < 0) {
+        throw new IllegalArgumentException(
+            "Invalid batching limits: batchSize="
+                + batchSize
+                + ", maxBytes="
+                + maxBytes
+                + ", shards="
+                + shards);
+      }
+      this.batchSize = batchSize;
+      this.maxBytes = maxBytes;
+      this.shards = shards;
+    }
+
+    public long getBatchSize() {
+      return batchSize;
+    }
+
+    public long getMaxBytes() {
+      return maxBytes;
+    }
+
+    public long getShards() {
+      return shards;
+    }
+  }
+
+  private static class BinsRange implements Serializable {
+
+    private final int minBins;
+    private final int maxBins;
+    private final Limits limits;
+
+    BinsRange(int minBins, int maxBins, Limits limits) {
+      this.minBins = minBins;
+      this.maxBins = maxBins;
+      this.limits = limits;
+    }
+
+    boolean contains(int bins) {
+      return bins >= minBins && bins <= maxBins;
+    }
+  }
+}
@@ -43,7 +43,9 @@ public class DateFilterFn extends DoFn<DataShare, DataShare> {
           metricName, Metrics.counter(DateFilterFn.class, "dateFilterExcluded_" + metricName));
     }
 
-    if (c.element().getCreatedMs() == null || c.element().getCreatedMs() == 0) {
+    // Unset creation times read as 0.
+    long createdMs = c.element().getCreatedMsValue();
+    if (createdMs == 0) {
       LOG.warn("Skipping document with no creation timestamp: {}", c.element().getPath());
       return;
     }
@@ -54,8 +56,7 @@ public class DateFilterFn extends DoFn<DataShare, DataShare> {
             options.getStartTime(), options.getDuration(), 1, Clock.systemUTC());
     long duration = options.getDuration();
 
-    if (c.element().getCreatedMs() >= startTime * 1000
-        && c.element().getCreatedMs() < (startTime + duration) * 1000) {
+    if (createdMs >= startTime * 1000 && createdMs < (startTime + duration) * 1000) {
       LOG.debug("Included: {}", c.element());
       dateFilterIncluded.get(metricName).inc();
       c.output(c.element());
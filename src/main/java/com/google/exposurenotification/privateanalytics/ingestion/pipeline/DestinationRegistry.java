@@ -0,0 +1,465 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.beam.sdk.io.FileSystems;
+import org.apache.beam.sdk.io.fs.EmptyMatchTreatment;
+import org.apache.beam.sdk.io.fs.MatchResult;
+import org.apache.beam.sdk.io.fs.ResourceId;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Distribution;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.util.MimeTypes;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Destinations which batch files are written to, configured once per scheme, bucket, role and
+ * region and shared by the threads of a worker.
+ *
+ * <p>S3 buckets are written with an S3 client of their own, authenticated as the role of the
+ * destination, rather than through the S3 filesystem of {@link FileSystems}. That one is configured
+ * from the global default pipeline options, which would otherwise have to be reset before each
+ * write, racing with writes to buckets of other roles or regions. Large objects are uploaded in
+ * parts, several at a time, see {@link IngestionPipelineOptions#getS3UploadPartSize}. Files of
+ * other schemes are written through {@link FileSystems}.
+ */
+public class DestinationRegistry {
+
+  private static final String S3_SCHEME = "s3://";
+  // S3 requires parts of a multipart upload other than the last to be at least 5 MiB
+  private static final long MIN_S3_PART_SIZE = 5 << 20;
+  // Parts are buffered in arrays
+  private static final long MAX_S3_PART_SIZE = 1 << 30;
+
+  private static final Counter s3UploadedBytes =
+      Metrics.counter(DestinationRegistry.class, "s3UploadedBytes");
+
+  private static final Counter s3UploadMillis =
+      Metrics.counter(DestinationRegistry.class, "s3UploadMillis");
+
+  private static final Distribution s3UploadKibPerSecond =
+      Metrics.distribution(DestinationRegistry.class, "s3UploadKibPerSecond");
+
+  // Uploads parts of all S3 destinations of the worker, bounded per object by its channel
+  private static final ExecutorService S3_UPLOAD_EXECUTOR =
+      Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3-upload-%d").build());
+
+  private static final Destination FILE_SYSTEMS = new FileSystemsDestination();
+  private static final ConcurrentHashMap<String, Destination> DESTINATIONS =
+      new ConcurrentHashMap<>();
+
+  private DestinationRegistry() {}
+
+  /** Writes files of a destination, safe to use from concurrent threads. */
+  public interface Destination {
+
+    /** @return channel writing the file, which is only complete once the channel is closed */
+    WritableByteChannel create(String filename) throws IOException;
+
+    /** @return contents of the file, or null if it doesn't exist */
+    byte @Nullable [] read(String filename) throws IOException;
+  }
+
+  /**
+   * @param path of a file or prefix of files at the destination
+   * @param role AWS role to write S3 buckets as, or empty for the default pipeline credentials
+   * @param region AWS region of the S3 bucket, or empty for the default pipeline region
+   * @return the destination of files at the path
+   */
+  public static Destination forPath(
+      IngestionPipelineOptions options,
+      String path,
+      @Nullable String role,
+      @Nullable String region) {
+    if (!path.startsWith(S3_SCHEME)) {
+      return FILE_SYSTEMS;
+    }
+    String bucket = s3Bucket(path);
+    boolean defaultRole = role == null || role.isEmpty();
+    String bucketRegion = region == null || region.isEmpty() ? options.getAwsRegion() : region;
+    int partSize = options.getS3UploadPartSize().intValue();
+    int concurrency = options.getS3UploadConcurrency().intValue();
+    // Destinations keep the upload options they were created with
+    String key =
+        S3_SCHEME
+            + bucket
+            + "|"
+            + (defaultRole ? "" : role)
+            + "|"
+            + bucketRegion
+            + "|"
+            + partSize
+            + "|"
+            + concurrency;
+    return DESTINATIONS.computeIfAbsent(
+        key,
+        k -> {
+          AWSCredentialsProvider credentials =
+              defaultRole
+                  ? options.getAwsCredentialsProvider()
+                  : AWSFederatedAuthHelper.credentialsProvider(role, bucketRegion);
+          AmazonS3 s3 =
+              AmazonS3ClientBuilder.standard()
+                  .withCredentials(credentials)
+                  .withRegion(bucketRegion)
+                  .build();
+          return new S3Destination(s3, bucket, partSize, concurrency);
+        });
+  }
+
+  /**
+   * Fails before launching workers on S3 upload options they would reject.
+   *
+   * @throws IllegalArgumentException for a part size or concurrency out of bounds
+   */
+  static void checkOptions(IngestionPipelineOptions options) {
+    long partSize = options.getS3UploadPartSize();
+    if (partSize < MIN_S3_PART_SIZE || partSize > MAX_S3_PART_SIZE) {
+      throw new IllegalArgumentException(
+          "S3 upload part size must be between " + MIN_S3_PART_SIZE + " and " + MAX_S3_PART_SIZE);
+    }
+    if (options.getS3UploadConcurrency() < 1) {
+      throw new IllegalArgumentException("S3 upload concurrency must be at least 1");
+    }
+  }
+
+  /** @return the destination of files written through {@link FileSystems} */
+  static Destination fileSystems() {
+    return FILE_SYSTEMS;
+  }
+
+  static String s3Bucket(String path) {
+    int slash = path.indexOf('/', S3_SCHEME.length());
+    return path.substring(S3_SCHEME.length(), slash < 0 ? path.length() : slash);
+  }
+
+  static String s3Key(String path) {
+    int slash = path.indexOf('/', S3_SCHEME.length());
+    if (slash < 0) {
+      throw new IllegalArgumentException("No object key in S3 path: " + path);
+    }
+    return path.substring(slash + 1);
+  }
+
+  private static class FileSystemsDestination implements Destination {
+
+    @Override
+    public WritableByteChannel create(String filename) throws IOException {
+      ResourceId resourceId = FileSystems.matchNewResource(filename, false);
+      return FileSystems.create(resourceId, MimeTypes.TEXT);
+    }
+
+    @Override
+    public byte @Nullable [] read(String filename) throws IOException {
+      MatchResult match = FileSystems.match(filename, EmptyMatchTreatment.ALLOW);
+      if (match.status() == MatchResult.Status.NOT_FOUND || match.metadata().isEmpty()) {
+        return null;
+      }
+      try (InputStream in =
+          Channels.newInputStream(FileSystems.open(match.metadata().get(0).resourceId()))) {
+        return ByteStreams.toByteArray(in);
+      }
+    }
+  }
+
+  static class S3Destination implements Destination {
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final int partSize;
+    private final int concurrency;
+
+    S3Destination(AmazonS3 s3, String bucket, int partSize, int concurrency) {
+      this.s3 = s3;
+      this.bucket = bucket;
+      this.partSize = partSize;
+      this.concurrency = concurrency;
+    }
+
+    @Override
+    public WritableByteChannel create(String filename) throws IOException {
+      if (!s3Bucket(filename).equals(bucket)) {
+        throw new IllegalArgumentException(filename + " is not in bucket " + bucket);
+      }
+      return new S3WritableChannel(
+          s3, S3_UPLOAD_EXECUTOR, bucket, s3Key(filename), partSize, concurrency);
+    }
+
+    @Override
+    public byte @Nullable [] read(String filename) throws IOException {
+      try (S3Object object = s3.getObject(bucket, s3Key(filename));
+          InputStream in = object.getObjectContent()) {
+        return ByteStreams.toByteArray(in);
+      } catch (AmazonS3Exception e) {
+        if (e.getStatusCode() == 404) {
+          return null;
+        }
+        throw new IOException("Failed to read " + filename, e);
+      } catch (AmazonClientException e) {
+        throw new IOException("Failed to read " + filename, e);
+      }
+    }
+  }
+
+  /**
+   * Buffers the object being written in memory, and uploads it in a single request, or in parts of
+   * {@code partSize} bytes for objects larger than that. Parts are uploaded on the executor while
+   * the next ones are written, with up to {@code concurrency} of them in flight, and the object
+   * only appears once all of them are uploaded and the upload is completed.
+   */
+  private static class S3WritableChannel implements WritableByteChannel {
+
+    private final AmazonS3 s3;
+    private final ExecutorService executor;
+    private final String bucket;
+    private final String key;
+    private final int partSize;
+    // Bounds the parts buffered for upload, and so the memory of the channel
+    private final Semaphore partsInFlight;
+
+    // Null between parts, until the next one is written
+    private byte @Nullable [] buffer;
+    private int position;
+    private boolean open = true;
+    @Nullable private String uploadId;
+    private final List<Future<PartETag>> parts = new ArrayList<>();
+    private long uploadedBytes;
+    private long uploadStartNanos;
+
+    S3WritableChannel(
+        AmazonS3 s3,
+        ExecutorService executor,
+        String bucket,
+        String key,
+        int partSize,
+        int concurrency) {
+      this.s3 = s3;
+      this.executor = executor;
+      this.bucket = bucket;
+      this.key = key;
+      this.partSize = partSize;
+      this.partsInFlight = new Semaphore(concurrency);
+      this.buffer = new byte[Math.min(1024, partSize)];
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      if (!open) {
+        throw new ClosedChannelException();
+      }
+      int written = src.remaining();
+      while (src.hasRemaining()) {
+        if (buffer == null) {
+          buffer = new byte[partSize];
+        } else if (position == buffer.length) {
+          buffer = Arrays.copyOf(buffer, Math.min(partSize, buffer.length * 2));
+        }
+        int length = Math.min(src.remaining(), buffer.length - position);
+        src.get(buffer, position, length);
+        position += length;
+        if (position == partSize) {
+          uploadPart();
+        }
+      }
+      return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!open) {
+        return;
+      }
+      open = false;
+      try {
+        if (uploadId == null) {
+          uploadStartNanos = System.nanoTime();
+          ObjectMetadata metadata = objectMetadata();
+          metadata.setContentLength(position);
+          s3.putObject(
+              new PutObjectRequest(
+                  bucket, key, new ByteArrayInputStream(buffer, 0, position), metadata));
+          uploadedBytes = position;
+        } else {
+          if (position > 0) {
+            uploadPart();
+          }
+          s3.completeMultipartUpload(
+              new CompleteMultipartUploadRequest(bucket, key, uploadId, awaitParts()));
+        }
+      } catch (AmazonClientException e) {
+        abort();
+        throw new IOException("Failed to write s3://" + bucket + "/" + key, e);
+      } finally {
+        buffer = null;
+      }
+      long uploadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - uploadStartNanos);
+      s3UploadedBytes.inc(uploadedBytes);
+      s3UploadMillis.inc(uploadMillis);
+      // Objects uploaded within a millisecond are too small to tell the throughput of
+      if (uploadMillis > 0) {
+        s3UploadKibPerSecond.update(uploadedBytes * 1000 / 1024 / uploadMillis);
+      }
+    }
+
+    /** Hands the buffered part over to the executor, once fewer than the maximum are in flight. */
+    private void uploadPart() throws IOException {
+      try {
+        if (uploadId == null) {
+          uploadStartNanos = System.nanoTime();
+          uploadId =
+              s3.initiateMultipartUpload(
+                      new InitiateMultipartUploadRequest(bucket, key, objectMetadata()))
+                  .getUploadId();
+        }
+        partsInFlight.acquire();
+      } catch (AmazonClientException e) {
+        open = false;
+        throw new IOException("Failed to upload part of s3://" + bucket + "/" + key, e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        open = false;
+        awaitPartsAndAbort();
+        throw new IOException("Interrupted while uploading s3://" + bucket + "/" + key, e);
+      }
+      UploadPartRequest request =
+          new UploadPartRequest()
+              .withBucketName(bucket)
+              .withKey(key)
+              .withUploadId(uploadId)
+              .withPartNumber(parts.size() + 1)
+              .withInputStream(new ByteArrayInputStream(buffer, 0, position))
+              .withPartSize(position);
+      uploadedBytes += position;
+      parts.add(
+          executor.submit(
+              () -> {
+                try {
+                  return s3.uploadPart(request).getPartETag();
+                } finally {
+                  partsInFlight.release();
+                }
+              }));
+      // The part being uploaded keeps its buffer
+      buffer = null;
+      position = 0;
+      failOnFailedPart();
+    }
+
+    // Stops writing at the first part which failed, rather than once the object is closed
+    private void failOnFailedPart() throws IOException {
+      for (Future<PartETag> part : parts) {
+        if (part.isDone()) {
+          try {
+            Futures.getDone(part);
+          } catch (ExecutionException e) {
+            open = false;
+            awaitPartsAndAbort();
+            throw new IOException(
+                "Failed to upload part of s3://" + bucket + "/" + key, e.getCause());
+          }
+        }
+      }
+    }
+
+    /** @return tags of all parts, in order, once all of them are uploaded */
+    private List<PartETag> awaitParts() throws IOException {
+      List<PartETag> partETags = new ArrayList<>();
+      for (Future<PartETag> part : parts) {
+        try {
+          partETags.add(part.get());
+        } catch (ExecutionException e) {
+          awaitPartsAndAbort();
+          throw new IOException(
+              "Failed to upload part of s3://" + bucket + "/" + key, e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          awaitPartsAndAbort();
+          throw new IOException("Interrupted while uploading s3://" + bucket + "/" + key, e);
+        }
+      }
+      return partETags;
+    }
+
+    // Parts still uploading when the upload is aborted would be kept, so it waits for them first
+    private void awaitPartsAndAbort() {
+      for (Future<PartETag> part : parts) {
+        try {
+          Uninterruptibles.getUninterruptibly(part);
+        } catch (ExecutionException e) {
+          // Already failing
+        }
+      }
+      abort();
+    }
+
+    private void abort() {
+      if (uploadId != null) {
+        try {
+          s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        } catch (AmazonClientException e) {
+          // The bucket lifecycle has to clean the upload up
+        }
+        uploadId = null;
+      }
+    }
+
+    private static ObjectMetadata objectMetadata() {
+      ObjectMetadata metadata = new ObjectMetadata();
+      metadata.setContentType(MimeTypes.TEXT);
+      return metadata;
+    }
+  }
+}
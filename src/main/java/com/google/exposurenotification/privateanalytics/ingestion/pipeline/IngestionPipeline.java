@@ -15,22 +15,40 @@
  */
 package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.exposurenotification.privateanalytics.ingestion.attestation.AbstractDeviceAttestation;
 import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare;
 import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.ConstructDataSharesFn;
 import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShareBatchCoder;
 import com.google.exposurenotification.privateanalytics.ingestion.pipeline.FirestoreConnector.FirestoreReader;
+import com.google.exposurenotification.privateanalytics.ingestion.pipeline.InvalidDocumentQuarantine.QuarantineReader;
+import com.google.exposurenotification.privateanalytics.ingestion.pipeline.InvalidDocumentQuarantine.QuarantineWriter;
 import com.google.firestore.v1.Document;
+import java.nio.charset.StandardCharsets;
 import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.ServiceLoader;
 import java.util.UUID;
 import org.apache.beam.sdk.Pipeline;
 import org.apache.beam.sdk.PipelineResult;
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.SerializableCoder;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Distribution;
 import org.apache.beam.sdk.metrics.MetricResults;
+import org.apache.beam.sdk.metrics.Metrics;
 import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.apache.beam.sdk.transforms.Count;
 import org.apache.beam.sdk.transforms.Distinct;
 import org.apache.beam.sdk.transforms.DoFn;
 import org.apache.beam.sdk.transforms.GroupIntoBatches;
@@ -38,8 +56,12 @@ import org.apache.beam.sdk.transforms.MapElements;
 import org.apache.beam.sdk.transforms.ParDo;
 import org.apache.beam.sdk.transforms.SerializableFunction;
 import org.apache.beam.sdk.transforms.SimpleFunction;
+import org.apache.beam.sdk.transforms.View;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.PCollectionTuple;
+import org.apache.beam.sdk.values.PCollectionView;
+import org.apache.beam.sdk.values.TupleTagList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,6 +74,9 @@ public class IngestionPipeline {
 
   private static final Logger LOG = LoggerFactory.getLogger(IngestionPipeline.class);
 
+  private static final Distribution batchBytes =
+      Metrics.distribution(IngestionPipeline.class, "batchBytes");
+
   /**
    * Process input {@link PCollection<DataShare>}, and make them available for final serialization.
    * This encapsulates all the pipeline logic apart from I/O, for testability.
@@ -83,29 +108,54 @@ public class IngestionPipeline {
                     return KV.of(input.getDataShareMetadata(), input);
                   }
                 }));
-    return groupIntoBatches(unbatchedShares, options.getBatchSize());
+    return groupIntoBatches(unbatchedShares, options);
   }
 
   /** Perform the input, processing and output for the full ingestion pipeline. */
   static PipelineResult runIngestionPipeline(IngestionPipelineOptions options) {
+    // Fail before launching workers on codecs, block sizes and part sizes they would reject
+    AvroFileFormat.packetFormat(options);
+    AvroFileFormat.headerFormat(options);
+    DestinationRegistry.checkOptions(options);
     Pipeline pipeline = Pipeline.create(options);
     long startTime =
         IngestionPipelineOptions.calculatePipelineStart(
             options.getStartTime(), options.getDuration(), 1, Clock.systemUTC());
-    PCollection<DataShare> dataShares =
-        pipeline
-            .apply(new FirestoreReader(startTime))
-            // Ensure distinctness of data shares based on document path
-            .apply(
-                Distinct.<Document, String>withRepresentativeValueFn(
-                    // Not using a lambda here as Beam has trouble inferring a coder
-                    new SerializableFunction<Document, String>() {
-                      @Override
-                      public String apply(Document document) {
-                        return document.getName();
-                      }
-                    }))
-            .apply(ParDo.of(new ConstructDataSharesFn()));
+    PCollection<Document> documents =
+        "".equals(options.getQuarantineInput())
+            ? pipeline.apply(new FirestoreReader(startTime))
+            : pipeline.apply(new QuarantineReader(options.getQuarantineInput()));
+    // Ensure distinctness of data shares based on document path
+    PCollection<Document> distinctDocuments =
+        documents.apply(
+            Distinct.<Document, String>withRepresentativeValueFn(
+                // Not using a lambda here as Beam has trouble inferring a coder
+                new SerializableFunction<Document, String>() {
+                  @Override
+                  public String apply(Document document) {
+                    return document.getName();
+                  }
+                }));
+    PCollection<DataShare> dataShares;
+    if ("".equals(options.getQuarantineOutput())) {
+      dataShares = distinctDocuments.apply(ParDo.of(new ConstructDataSharesFn()));
+    } else {
+      PCollectionTuple constructed =
+          distinctDocuments.apply(
+              ParDo.of(new ConstructDataSharesFn(options.getQuarantineMaxPerBundle()))
+                  .withOutputTags(
+                      ConstructDataSharesFn.DATA_SHARES,
+                      TupleTagList.of(ConstructDataSharesFn.INVALID_DOCUMENTS)));
+      constructed
+          .get(ConstructDataSharesFn.INVALID_DOCUMENTS)
+          .apply(
+              "QuarantineInvalidDocuments",
+              new QuarantineWriter(
+                  quarantinePrefix(
+                      options.getQuarantineOutput(), startTime + options.getDuration()),
+                  options.getQuarantineDocuments()));
+      dataShares = constructed.get(ConstructDataSharesFn.DATA_SHARES);
+    }
     processDataShares(dataShares).apply("SerializePacketHeaderSig", ParDo.of(new BatchWriterFn()));
     return pipeline.run();
   }
@@ -176,23 +226,68 @@ public class IngestionPipeline {
   }
 
   private static PCollection<KV<DataShareMetadata, Iterable<DataShare>>> groupIntoBatches(
-      PCollection<KV<DataShareMetadata, DataShare>> serializedDataShares, long batchSize) {
-    return serializedDataShares
-        .apply(
+      PCollection<KV<DataShareMetadata, DataShare>> serializedDataShares,
+      IngestionPipelineOptions options) {
+    BatchingPolicy policy = BatchingPolicy.fromOptions(options);
+    PCollectionView<Map<String, Long>> counts = null;
+    List<PCollectionView<?>> sideInputs = new ArrayList<>();
+    if (policy.usesAutoShards()) {
+      counts =
+          serializedDataShares
+              .apply(
+                  "MetadataKeys",
+                  MapElements.via(
+                      new SimpleFunction<KV<DataShareMetadata, DataShare>, String>() {
+                        @Override
+                        public String apply(KV<DataShareMetadata, DataShare> input) {
+                          return input.getKey().toString();
+                        }
+                      }))
+              .apply("CountPerMetadata", Count.perElement())
+              .apply("CountsView", View.asMap());
+      sideInputs.add(counts);
+    }
+    PCollection<KV<String, KV<DataShareMetadata, DataShare>>> keyedShares =
+        serializedDataShares.apply(
             // Using AutoValue leads to problems with the coder being non-deterministic (using
             // @DefaultSchema(AutoValueSchema.class), so just manually constructing the key
             "KeyOnMetadata",
-            MapElements.via(
-                new SimpleFunction<
-                    KV<DataShareMetadata, DataShare>,
-                    KV<String, KV<DataShareMetadata, DataShare>>>() {
-                  @Override
-                  public KV<String, KV<DataShareMetadata, DataShare>> apply(
-                      KV<DataShareMetadata, DataShare> input) {
-                    return KV.of(input.getKey().toString(), input);
-                  }
-                }))
-        .apply("GroupIntoBatches", GroupIntoBatches.ofSize(batchSize))
+            ParDo.of(new ShardedKeyFn(policy, options.getMaxBatchShards(), counts))
+                .withSideInputs(sideInputs));
+    PCollection<KV<String, Iterable<KV<DataShareMetadata, DataShare>>>> groupedShares;
+    if (options.getPreBatchSize() > 0) {
+      groupedShares =
+          keyedShares
+              .apply("PreBatch", ParDo.of(new PreBatchFn(options.getPreBatchSize())))
+              .setCoder(WeightedBatchFn.inputCoder())
+              .apply("GroupIntoWeightedBatches", ParDo.of(new WeightedBatchFn(policy)));
+    } else if (policy.isUniformCount()) {
+      groupedShares =
+          keyedShares.apply(
+              "GroupIntoBatches", GroupIntoBatches.ofSize(policy.getDefaults().getBatchSize()));
+    } else {
+      groupedShares =
+          keyedShares
+              .apply(
+                  "SingleShareBatches",
+                  MapElements.via(
+                      new SimpleFunction<
+                          KV<String, KV<DataShareMetadata, DataShare>>,
+                          KV<String, KV<DataShareMetadata, Iterable<DataShare>>>>() {
+                        @Override
+                        public KV<String, KV<DataShareMetadata, Iterable<DataShare>>> apply(
+                            KV<String, KV<DataShareMetadata, DataShare>> input) {
+                          return KV.of(
+                              input.getKey(),
+                              KV.of(
+                                  input.getValue().getKey(),
+                                  Collections.singletonList(input.getValue().getValue())));
+                        }
+                      }))
+              .setCoder(WeightedBatchFn.inputCoder())
+              .apply("GroupIntoWeightedBatches", ParDo.of(new WeightedBatchFn(policy)));
+    }
+    return groupedShares
         .apply(
             "FlattenAndIdBatches",
             ParDo.of(
@@ -200,27 +295,93 @@ public class IngestionPipeline {
                     KV<String, Iterable<KV<DataShareMetadata, DataShare>>>,
                     KV<DataShareMetadata, Iterable<DataShare>>>() {
 
+                  private final Map<String, Counter> batchesPerMetric = new HashMap<>();
+
                   @ProcessElement
                   public void processElement(ProcessContext c) {
                     List<DataShare> packets = new ArrayList<>();
                     DataShareMetadata metadata = null;
+                    long bytes = 0;
                     for (KV<DataShareMetadata, DataShare> entry : c.element().getValue()) {
                       if (metadata == null) {
                         metadata = entry.getKey();
                       }
                       packets.add(entry.getValue());
+                      bytes += WeightedBatchFn.weightOf(entry.getValue());
                     }
+                    batchBytes.update(bytes);
+                    batchesPerMetric
+                        .computeIfAbsent(
+                            metadata.getMetricName(),
+                            metricName ->
+                                Metrics.counter(IngestionPipeline.class, "batches_" + metricName))
+                        .inc();
                     /*
                      * It's useful to assign batch ids at this stage rather than in BatchWriterFn
                      * because if DataFlowRunner retries a batch, we'll write to the same
                      * destination. Of course with a random batch id (as opposed to, e.g., numbered
-                     * batches) the destinations won't be the same if the entire pipeline is rerun.
+                     * batches) the destinations won't be the same if the entire pipeline is rerun,
+                     * unless batch ids are derived from the batch contents.
                      */
+                    IngestionPipelineOptions options =
+                        c.getPipelineOptions().as(IngestionPipelineOptions.class);
+                    String batchId;
+                    if (options.getDeterministicBatchIds()) {
+                      long startTime =
+                          IngestionPipelineOptions.calculatePipelineStart(
+                              options.getStartTime(), options.getDuration(), 1, Clock.systemUTC());
+                      batchId = contentBatchId(metadata, packets, startTime, options.getDuration());
+                    } else {
+                      batchId = UUID.randomUUID().toString();
+                    }
                     DataShareMetadata updatedMetadata =
-                        metadata.toBuilder().setBatchId(UUID.randomUUID().toString()).build();
+                        metadata.toBuilder().setBatchId(batchId).build();
                     c.output(KV.of(updatedMetadata, packets));
                   }
-                }));
+                }))
+        // Shares of a batch mostly repeat the same metric name, key ids and certificates.
+        .setCoder(
+            KvCoder.of(SerializableCoder.of(DataShareMetadata.class), DataShareBatchCoder.of()));
+  }
+
+  /**
+   * Derives a batch id from the metric, the window and the sorted ids of the shares in the batch,
+   * so that a rerun producing the same batch writes to the same destination.
+   */
+  static String contentBatchId(
+      DataShareMetadata metadata, List<DataShare> shares, long startTime, long duration) {
+    String[] ids = new String[shares.size()];
+    for (int i = 0; i < ids.length; i++) {
+      DataShare share = shares.get(i);
+      // Shares missing a uuid are still distinct by document path
+      ids[i] = share.getUuid() != null ? share.getUuid() : String.valueOf(share.getPath());
+    }
+    Arrays.sort(ids);
+    Hasher hasher =
+        Hashing.sha256()
+            .newHasher()
+            .putString(String.valueOf(metadata.getMetricName()), StandardCharsets.UTF_8)
+            .putLong(startTime)
+            .putLong(duration)
+            .putInt(ids.length);
+    for (String id : ids) {
+      hasher.putInt(id.length()).putString(id, StandardCharsets.UTF_8);
+    }
+    return hasher.hash().toString();
+  }
+
+  /** @return prefix of the quarantine files of the window ending at {@code endTime} */
+  static String quarantinePrefix(String quarantineOutput, long endTime) {
+    String date =
+        Instant.ofEpochSecond(endTime)
+            .atOffset(ZoneOffset.UTC)
+            .format(BatchWriterFn.DATE_TIME_FORMATTER);
+    // The date starts with a separator already
+    String directory =
+        quarantineOutput.endsWith("/")
+            ? quarantineOutput.substring(0, quarantineOutput.length() - 1)
+            : quarantineOutput;
+    return directory + date + "invalid-documents";
   }
 
   // Override manifest bucket (if present) with explicitly specified output path flag
@@ -169,13 +169,225 @@ public interface IngestionPipelineOptions extends DataflowPipelineOptions {
 
   void setPartitionCount(Long value);
 
-  /** Batch size of individual files. */
-  @Description("Batch size of individual files.")
+  /**
+   * Batch size of individual files. 0 picks it on each worker from its heap size, its number of
+   * harness threads, the batch writes in flight and the average size of shares, within {@code
+   * minAutoBatchSize} and {@code maxAutoBatchSize}.
+   */
+  @Description("Batch size of individual files. 0 picks it from worker memory.")
   @Default.Long(200000)
   Long getBatchSize();
 
   void setBatchSize(Long value);
 
+  /** Smallest batch size picked when {@code batchSize} is 0. */
+  @Description("Minimum batch size picked automatically.")
+  @Default.Long(1000)
+  Long getMinAutoBatchSize();
+
+  void setMinAutoBatchSize(Long value);
+
+  /** Largest batch size picked when {@code batchSize} is 0. */
+  @Description("Maximum batch size picked automatically.")
+  @Default.Long(200000)
+  Long getMaxAutoBatchSize();
+
+  void setMaxAutoBatchSize(Long value);
+
+  /**
+   * Number of shares per metric to gather within each bundle before shuffling them for batching,
+   * which cuts the per-element cost of batching large volumes. 0 shuffles shares one by one.
+   */
+  @Description("Number of shares per metric to gather within a bundle before batching. 0 disables.")
+  @Default.Long(0)
+  Long getPreBatchSize();
+
+  void setPreBatchSize(Long value);
+
+  /**
+   * Number of shards to spread the batching of each metric over, so that a large metric is not
+   * batched by a single worker. 1 batches each metric on a single key, 0 picks the number of shards
+   * per metric from its share count and the batch size, up to {@code maxBatchShards}.
+   */
+  @Description("Number of shards per metric for batching. 0 picks it from share counts.")
+  @Default.Long(1)
+  Long getBatchShards();
+
+  void setBatchShards(Long value);
+
+  /** Maximum number of shards per metric picked when {@code batchShards} is 0. */
+  @Description("Maximum number of shards per metric picked automatically.")
+  @Default.Long(64)
+  Long getMaxBatchShards();
+
+  void setMaxBatchShards(Long value);
+
+  /**
+   * Maximum total size in bytes of the encrypted payloads in a batch, on top of {@code batchSize}.
+   * 0 bounds batches by number of shares only.
+   */
+  @Description("Maximum encrypted payload bytes per batch. 0 for no limit.")
+  @Default.Long(0)
+  Long getBatchMaxBytes();
+
+  void setBatchMaxBytes(Long value);
+
+  /**
+   * Path of a JSON file, readable through Beam {@code FileSystems}, overriding {@code batchSize},
+   * {@code batchMaxBytes} and {@code batchShards} per metric name or range of bins. See {@link
+   * BatchingPolicy} for the format.
+   */
+  @Description("Path of a JSON file with batching limits per metric or range of bins.")
+  @Default.String("")
+  String getBatchingPolicy();
+
+  void setBatchingPolicy(String value);
+
+  /**
+   * Whether to derive batch ids from the contents of each batch instead of picking them at random,
+   * so that rerunning the pipeline over the same window overwrites the same output files.
+   */
+  @Description("Derive batch ids from batch contents so that reruns overwrite the same outputs.")
+  @Default.Boolean(false)
+  Boolean getDeterministicBatchIds();
+
+  void setDeterministicBatchIds(Boolean value);
+
+  /**
+   * Whether to write the files of a batch to the PHA and facilitator destinations concurrently
+   * rather than one after the other.
+   */
+  @Description("Write to the PHA and facilitator destinations concurrently.")
+  @Default.Boolean(false)
+  Boolean getParallelDestinationWrites();
+
+  void setParallelDestinationWrites(Boolean value);
+
+  /**
+   * Number of batches each writer thread may have in flight, so that the next batch is read and
+   * serialized while previous ones are uploaded and signed. 0 writes one batch at a time. Each
+   * thread then holds up to this many batches plus one, which automatic batch sizes account for.
+   */
+  @Description("Number of batches written concurrently by each writer. 0 writes them in turn.")
+  @Default.Long(0)
+  Long getBatchWritesInFlight();
+
+  void setBatchWritesInFlight(Long value);
+
+  /**
+   * Whether to check for a batch already written at its destination, e.g. by a retried bundle, and
+   * skip uploading and signing it again when its header has the same packet file digest. Batch
+   * paths only repeat across attempts when batch ids are deterministic.
+   */
+  @Description("Skip writing batches whose identical header and signature are already written.")
+  @Default.Boolean(false)
+  Boolean getSkipIdenticalBatches();
+
+  void setSkipIdenticalBatches(Boolean value);
+
+  /**
+   * Directory of the ledger of batches written completely, see {@link BatchLedger}. Batches already
+   * in the ledger are not written again, e.g. when rerunning a partially failed run with
+   * deterministic batch ids. Disabled if empty.
+   */
+  @Description("Directory of the ledger of completely written batches. Disabled if empty.")
+  @Default.String("")
+  String getLedgerOutput();
+
+  void setLedgerOutput(String value);
+
+  /**
+   * Avro codec of packet files, see {@link AvroFileFormat}: {@code null}, {@code deflate}, {@code
+   * snappy}, {@code xz} or {@code zstandard}, optionally with a compression level, e.g. {@code
+   * deflate:6}. The facilitator and PHA have to be able to read the codec.
+   */
+  @Description("Avro codec of packet files, e.g. null, deflate:6 or snappy.")
+  @Default.String("null")
+  String getPacketFileCodec();
+
+  void setPacketFileCodec(String value);
+
+  /**
+   * Approximate uncompressed size of the blocks of packet files in bytes, i.e. the Avro sync
+   * interval. Larger blocks compress better, smaller ones need less memory to read. 0 for the Avro
+   * default of 64 KiB.
+   */
+  @Description("Approximate size of the Avro blocks of packet files in bytes. 0 for the default.")
+  @Default.Long(0)
+  Long getPacketFileBlockSize();
+
+  void setPacketFileBlockSize(Long value);
+
+  /** Avro codec of header and signature files, see {@link #getPacketFileCodec()}. */
+  @Description("Avro codec of header and signature files, e.g. null or deflate.")
+  @Default.String("null")
+  String getHeaderFileCodec();
+
+  void setHeaderFileCodec(String value);
+
+  /**
+   * Size in bytes at which packet files are rolled over into a new part, see {@link
+   * PacketFileManifest}, for the destinations which read packet files in parts. Parts are uploaded,
+   * and retried, one at a time rather than as a single object. 0 writes single packet files.
+   */
+  @Description("Size in bytes of the parts of packet files, where supported. 0 for single files.")
+  @Default.Long(0)
+  Long getPacketFilePartSize();
+
+  void setPacketFilePartSize(Long value);
+
+  /** Whether the PHA reads packet files written in parts, along with their manifest. */
+  @Description("Whether the PHA reads packet files written in parts.")
+  @Default.Boolean(false)
+  Boolean getPhaPacketFileParts();
+
+  void setPhaPacketFileParts(Boolean value);
+
+  /** Whether the facilitator reads packet files written in parts, along with their manifest. */
+  @Description("Whether the facilitator reads packet files written in parts.")
+  @Default.Boolean(false)
+  Boolean getFacilitatorPacketFileParts();
+
+  void setFacilitatorPacketFileParts(Boolean value);
+
+  /**
+   * Size in bytes of the parts S3 objects larger than it are uploaded in, between 5 MiB and 1 GiB.
+   * Each object being written buffers up to {@link #getS3UploadConcurrency} parts plus the one
+   * being written in memory.
+   */
+  @Description("Size in bytes of the parts of S3 multipart uploads, at least 5 MiB.")
+  @Default.Long(32 << 20)
+  Long getS3UploadPartSize();
+
+  void setS3UploadPartSize(Long value);
+
+  /** Number of parts of each S3 object uploaded concurrently while the next one is written. */
+  @Description("Number of parts of each S3 object uploaded concurrently.")
+  @Default.Long(4)
+  Long getS3UploadConcurrency();
+
+  void setS3UploadConcurrency(Long value);
+
+  /**
+   * Number of KMS sign requests each worker may have in flight. Batch headers are then signed while
+   * they are written, rather than after. 0 signs one header at a time per writer thread.
+   */
+  @Description("Number of concurrent KMS sign requests per worker. 0 signs synchronously.")
+  @Default.Long(0)
+  Long getKmsSignsInFlight();
+
+  void setKmsSignsInFlight(Long value);
+
+  /**
+   * Maximum rate of KMS sign requests of each worker, e.g. the KMS quota of the project divided by
+   * the maximum number of workers. 0 for no limit.
+   */
+  @Description("Maximum KMS sign requests per second per worker. 0 for no limit.")
+  @Default.Long(0)
+  Long getKmsSignsPerSecond();
+
+  void setKmsSignsPerSecond(Long value);
+
   /** Batch size of Firestore batch deletes. */
   @Description("Batch size of Firestore deletes.")
   @Default.Long(100)
@@ -193,6 +405,24 @@ public interface IngestionPipelineOptions extends DataflowPipelineOptions {
 
   void setKeyResourceName(String value);
 
+  /**
+   * Name of the {@link BatchSigner} signing batch headers: {@code kms} for the KMS key of {@code
+   * keyResourceName}, {@code local} for the private key in {@code signingKeyFile}, or the name of
+   * another signer found through {@link java.util.ServiceLoader}.
+   */
+  @Description("Signer of batch headers: kms, local, or a provided signer.")
+  @Default.String(KmsBatchSigner.NAME)
+  String getBatchSigner();
+
+  void setBatchSigner(String value);
+
+  /** PKCS #8 ECDSA P-256 private key file signing batch headers with the {@code local} signer. */
+  @Description("Private key file of the local batch signer.")
+  @Default.String("")
+  String getSigningKeyFile();
+
+  void setSigningKeyFile(String value);
+
   /** Whether to check device hardware attestations */
   @Description("Verify device attestations")
   @Default.Boolean(true)
@@ -200,6 +430,40 @@ public interface IngestionPipelineOptions extends DataflowPipelineOptions {
 
   void setDeviceAttestation(Boolean value);
 
+  /**
+   * Directory to write documents which failed to parse as data shares to. Files are written under a
+   * subdirectory for the run's window, like batch outputs. Quarantine is disabled if empty.
+   */
+  @Description("Directory for quarantined invalid documents. Disabled if empty.")
+  @Default.String("")
+  String getQuarantineOutput();
+
+  void setQuarantineOutput(String value);
+
+  /** Whether to include the raw document in quarantine files, needed to re-ingest them. */
+  @Description("Include raw documents in quarantine files")
+  @Default.Boolean(false)
+  Boolean getQuarantineDocuments();
+
+  void setQuarantineDocuments(Boolean value);
+
+  /** Maximum number of invalid documents quarantined per bundle; excess is only counted. */
+  @Description("Maximum number of invalid documents quarantined per bundle.")
+  @Default.Long(1000)
+  Long getQuarantineMaxPerBundle();
+
+  void setQuarantineMaxPerBundle(Long value);
+
+  /**
+   * Quarantine file pattern to re-ingest instead of reading from Firestore. Set {@code startTime}
+   * and {@code duration} to the window of the run which quarantined the documents.
+   */
+  @Description("Quarantine file pattern to read documents from instead of Firestore.")
+  @Default.String("")
+  String getQuarantineInput();
+
+  void setQuarantineInput(String value);
+
   @Description("AWS region used by the AWS client")
   String getAwsRegion();
 
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.ConstructDataSharesFn;
+import com.google.firestore.v1.Document;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.nio.ByteBuffer;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.beam.sdk.coders.AvroCoder;
+import org.apache.beam.sdk.io.AvroIO;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.MapElements;
+import org.apache.beam.sdk.transforms.PTransform;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.SimpleFunction;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PBegin;
+import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.PDone;
+
+/**
+ * Quarantine for Firestore documents which could not be parsed into data shares.
+ *
+ * <p>Quarantined documents are written as deflate-compressed Avro records holding the document
+ * name, the failure reason and optionally the raw document, so that a spike in invalid documents
+ * can be inspected offline, and the quarantined set re-ingested after a fix.
+ */
+public class InvalidDocumentQuarantine {
+
+  static final String NAME = "name";
+  static final String REASON = "reason";
+  static final String DOCUMENT = "document";
+
+  static final Schema SCHEMA =
+      SchemaBuilder.record("InvalidDocument")
+          .namespace(InvalidDocumentQuarantine.class.getPackage().getName())
+          .fields()
+          .requiredString(NAME)
+          .requiredString(REASON)
+          .optionalBytes(DOCUMENT)
+          .endRecord();
+
+  static final String QUARANTINE_SUFFIX = ".avro";
+
+  /** Writes the output of {@link ConstructDataSharesFn#INVALID_DOCUMENTS} to quarantine files. */
+  public static class QuarantineWriter
+      extends PTransform<PCollection<KV<Document, String>>, PDone> {
+
+    private final String prefix;
+    private final boolean includeDocuments;
+
+    /**
+     * @param prefix file prefix of the quarantine files
+     * @param includeDocuments whether to store the raw documents, required for re-ingestion
+     */
+    public QuarantineWriter(String prefix, boolean includeDocuments) {
+      this.prefix = prefix;
+      this.includeDocuments = includeDocuments;
+    }
+
+    @Override
+    public PDone expand(PCollection<KV<Document, String>> input) {
+      return input
+          .apply(
+              "ToQuarantineRecord",
+              MapElements.via(
+                  new SimpleFunction<KV<Document, String>, GenericRecord>() {
+                    @Override
+                    public GenericRecord apply(KV<Document, String> input) {
+                      GenericRecord record = new GenericData.Record(SCHEMA);
+                      record.put(NAME, input.getKey().getName());
+                      record.put(REASON, input.getValue());
+                      if (includeDocuments) {
+                        record.put(DOCUMENT, ByteBuffer.wrap(input.getKey().toByteArray()));
+                      }
+                      return record;
+                    }
+                  }))
+          .setCoder(AvroCoder.of(SCHEMA))
+          .apply(
+              "WriteQuarantine",
+              AvroIO.writeGenericRecords(SCHEMA)
+                  .to(prefix)
+                  .withSuffix(QUARANTINE_SUFFIX)
+                  .withCodec(CodecFactory.deflateCodec(CodecFactory.DEFAULT_DEFLATE_LEVEL)));
+    }
+  }
+
+  /** Reads quarantined documents back for re-ingestion. */
+  public static class QuarantineReader extends PTransform<PBegin, PCollection<Document>> {
+
+    private static final Counter missingDocuments =
+        Metrics.counter(QuarantineReader.class, "quarantine-missingDocument");
+
+    private final String filepattern;
+
+    public QuarantineReader(String filepattern) {
+      this.filepattern = filepattern;
+    }
+
+    @Override
+    public PCollection<Document> expand(PBegin input) {
+      return input
+          .apply("ReadQuarantine", AvroIO.readGenericRecords(SCHEMA).from(filepattern))
+          .apply(
+              "ParseQuarantinedDocuments",
+              ParDo.of(
+                  new DoFn<GenericRecord, Document>() {
+                    @ProcessElement
+                    public void processElement(ProcessContext c)
+                        throws InvalidProtocolBufferException {
+                      ByteBuffer document = (ByteBuffer) c.element().get(DOCUMENT);
+                      if (document == null) {
+                        // Quarantined without the raw document, nothing to re-ingest.
+                        missingDocuments.inc();
+                        return;
+                      }
+                      c.output(Document.parseFrom(document));
+                    }
+                  }));
+    }
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.gax.core.BackgroundResource;
+import com.google.api.gax.rpc.UnaryCallable;
+import com.google.auto.service.AutoService;
+import com.google.cloud.kms.v1.AsymmetricSignRequest;
+import com.google.cloud.kms.v1.AsymmetricSignResponse;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import com.google.cloud.kms.v1.Digest;
+import com.google.cloud.kms.v1.KeyManagementServiceClient;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.beam.sdk.metrics.Distribution;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Signs batch headers with the Cloud KMS key of {@code --keyResourceName}. One client is shared by
+ * the writer threads of a worker, from the setup of the first writer to the teardown of the last,
+ * along with the limits on KMS requests, as KMS quotas are per project rather than per thread.
+ */
+@AutoService(BatchSigner.class)
+public class KmsBatchSigner extends BatchSigner {
+
+  public static final String NAME = "kms";
+
+  private static final Logger LOG = LoggerFactory.getLogger(KmsBatchSigner.class);
+  private static final Duration KMS_WAIT_TIME = Duration.ofSeconds(30);
+
+  private static final Distribution signLatency =
+      Metrics.distribution(KmsBatchSigner.class, "signLatencyMs");
+
+  private static SharedClient shared;
+  private static int users;
+
+  private SharedClient client;
+  private CryptoKeyVersionName keyVersionName;
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public void setup(IngestionPipelineOptions options) throws IOException {
+    keyVersionName = CryptoKeyVersionName.parse(options.getKeyResourceName());
+    synchronized (KmsBatchSigner.class) {
+      if (shared == null) {
+        shared = new SharedClient(KeyManagementServiceClient.create());
+      }
+      users++;
+      client = shared;
+    }
+    client.setLimits(options.getKmsSignsInFlight(), options.getKmsSignsPerSecond());
+  }
+
+  /** Shuts the client down once released by all the writers of the worker. */
+  @Override
+  public void teardown() {
+    if (client == null) {
+      return;
+    }
+    boolean last;
+    synchronized (KmsBatchSigner.class) {
+      last = --users == 0;
+      if (last) {
+        shared = null;
+      }
+    }
+    if (last) {
+      client.shutdown();
+    }
+    client = null;
+  }
+
+  @Override
+  public String getKeyIdentifier() {
+    return keyVersionName.toString();
+  }
+
+  /**
+   * Starts signing a SHA-256 digest, waiting for the limits on sign requests first.
+   *
+   * @return the signature, which is only awaited when signing synchronously
+   */
+  @Override
+  public Signature sign(byte[] sha256) throws IOException, InterruptedException {
+    return client.sign(keyVersionName, sha256);
+  }
+
+  /** Sends the sign requests of a worker, within the limits set by its writers. */
+  static class SharedClient {
+
+    private final UnaryCallable<AsymmetricSignRequest, AsymmetricSignResponse> signCallable;
+    private final BackgroundResource resource;
+    private long signsInFlight = -1;
+    private long signsPerSecond = -1;
+    @Nullable private Semaphore permits;
+    @Nullable private RateLimiter rateLimiter;
+
+    private SharedClient(KeyManagementServiceClient client) {
+      this(client.asymmetricSignCallable(), client);
+    }
+
+    /**
+     * @param signCallable sends the sign requests, synchronously or not
+     * @param resource released on shutdown, once no more requests are sent
+     */
+    SharedClient(
+        UnaryCallable<AsymmetricSignRequest, AsymmetricSignResponse> signCallable,
+        BackgroundResource resource) {
+      this.signCallable = signCallable;
+      this.resource = resource;
+    }
+
+    /**
+     * Limits the sign requests of the worker.
+     *
+     * @param signsInFlight number of concurrent requests, or 0 to sign synchronously
+     * @param signsPerSecond maximum rate of requests, or 0 for no limit
+     */
+    synchronized void setLimits(long signsInFlight, long signsPerSecond) {
+      if (this.signsInFlight == signsInFlight && this.signsPerSecond == signsPerSecond) {
+        return;
+      }
+      this.signsInFlight = signsInFlight;
+      this.signsPerSecond = signsPerSecond;
+      permits = signsInFlight > 0 ? new Semaphore((int) signsInFlight) : null;
+      rateLimiter = signsPerSecond > 0 ? RateLimiter.create(signsPerSecond) : null;
+    }
+
+    Signature sign(CryptoKeyVersionName keyVersionName, byte[] sha256) throws InterruptedException {
+      Semaphore permits;
+      RateLimiter rateLimiter;
+      synchronized (this) {
+        permits = this.permits;
+        rateLimiter = this.rateLimiter;
+      }
+      if (rateLimiter != null) {
+        rateLimiter.acquire();
+      }
+      AsymmetricSignRequest request =
+          AsymmetricSignRequest.newBuilder()
+              .setName(keyVersionName.toString())
+              .setDigest(Digest.newBuilder().setSha256(ByteString.copyFrom(sha256)))
+              .build();
+      long start = System.nanoTime();
+      if (permits == null) {
+        AsymmetricSignResponse response = signCallable.call(request);
+        signLatency.update(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return () -> response.getSignature().toByteArray();
+      }
+      permits.acquire();
+      ApiFuture<AsymmetricSignResponse> response;
+      try {
+        response = signCallable.futureCall(request);
+      } catch (RuntimeException e) {
+        permits.release();
+        throw e;
+      }
+      AtomicLong end = new AtomicLong();
+      response.addListener(
+          () -> {
+            end.set(System.nanoTime());
+            permits.release();
+          },
+          MoreExecutors.directExecutor());
+      return () -> {
+        try {
+          byte[] signature = response.get().getSignature().toByteArray();
+          // Recorded on the awaiting thread, which reports metrics of the bundle. The listener
+          // may not have run yet when the response is already available.
+          long finished = end.get() != 0 ? end.get() : System.nanoTime();
+          signLatency.update(TimeUnit.NANOSECONDS.toMillis(finished - start));
+          return signature;
+        } catch (ExecutionException e) {
+          throw new IOException("Failed to sign with " + keyVersionName, e.getCause());
+        }
+      };
+    }
+
+    void shutdown() {
+      resource.shutdown();
+      LOG.info("Waiting for KMS Client to shutdown.");
+      try {
+        resource.awaitTermination(KMS_WAIT_TIME.toMillis(), TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        LOG.warn("Interrupted while waiting for client shutdown", e);
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import com.google.common.io.BaseEncoding;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Manifest of the packet file of a batch written in parts, for destinations which read packet files
+ * rolled over into parts. Each part is an Avro file of consecutive packets of the batch:
+ *
+ * <pre>{@code
+ * {
+ *   "batchUuid": "0f8fad5b-d9cb-469f-a165-70867728950e",
+ *   "parts": [
+ *     {
+ *       "filename": "0f8fad5b-d9cb-469f-a165-70867728950e.batch.part00000.avro",
+ *       "packetCount": 52000,
+ *       "size": 67110912,
+ *       "digest": "9f86d0..."
+ *     },
+ *     ...
+ *   ]
+ * }
+ * }</pre>
+ *
+ * Part filenames are relative to the directory of the manifest, and digests are the SHA-256 of the
+ * parts. The packet file digest of the batch header is the SHA-256 of the manifest itself, so the
+ * header signature covers every part.
+ */
+public class PacketFileManifest {
+
+  private static final String BATCH_UUID = "batchUuid";
+  private static final String PARTS = "parts";
+  private static final String FILENAME = "filename";
+  private static final String PACKET_COUNT = "packetCount";
+  private static final String SIZE = "size";
+  private static final String DIGEST = "digest";
+
+  private final UUID batchUuid;
+  private final List<Part> parts;
+
+  public PacketFileManifest(UUID batchUuid, List<Part> parts) {
+    this.batchUuid = batchUuid;
+    this.parts = new ArrayList<>(parts);
+  }
+
+  public UUID getBatchUuid() {
+    return batchUuid;
+  }
+
+  public List<Part> getParts() {
+    return parts;
+  }
+
+  /** @return the manifest as written, always the same bytes for the same parts */
+  byte[] toBytes() {
+    JsonObject json = new JsonObject();
+    json.addProperty(BATCH_UUID, batchUuid.toString());
+    JsonArray partsJson = new JsonArray();
+    for (Part part : parts) {
+      JsonObject partJson = new JsonObject();
+      partJson.addProperty(FILENAME, part.filename);
+      partJson.addProperty(PACKET_COUNT, part.packetCount);
+      partJson.addProperty(SIZE, part.size);
+      partJson.addProperty(DIGEST, BaseEncoding.base16().lowerCase().encode(part.digest));
+      partsJson.add(partJson);
+    }
+    json.add(PARTS, partsJson);
+    return json.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  static PacketFileManifest fromBytes(byte[] contents) {
+    JsonObject json =
+        new JsonParser().parse(new String(contents, StandardCharsets.UTF_8)).getAsJsonObject();
+    List<Part> parts = new ArrayList<>();
+    for (JsonElement part : json.getAsJsonArray(PARTS)) {
+      JsonObject partJson = part.getAsJsonObject();
+      parts.add(
+          new Part(
+              partJson.get(FILENAME).getAsString(),
+              partJson.get(PACKET_COUNT).getAsLong(),
+              partJson.get(SIZE).getAsLong(),
+              BaseEncoding.base16().lowerCase().decode(partJson.get(DIGEST).getAsString())));
+    }
+    return new PacketFileManifest(UUID.fromString(json.get(BATCH_UUID).getAsString()), parts);
+  }
+
+  /** Part of a packet file. */
+  public static class Part {
+
+    private final String filename;
+    private final long packetCount;
+    private final long size;
+    private final byte[] digest;
+
+    public Part(String filename, long packetCount, long size, byte[] digest) {
+      this.filename = filename;
+      this.packetCount = packetCount;
+      this.size = size;
+      this.digest = digest;
+    }
+
+    /** @return filename of the part, relative to the directory of the manifest */
+    public String getFilename() {
+      return filename;
+    }
+
+    public long getPacketCount() {
+      return packetCount;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    /** @return SHA-256 digest of the part */
+    public byte[] getDigest() {
+      return digest;
+    }
+  }
+}
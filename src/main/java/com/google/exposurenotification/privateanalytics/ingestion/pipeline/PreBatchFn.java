@@ -0,0 +1,103 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.apache.beam.sdk.metrics.Distribution;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.values.KV;
+
+/**
+ * Gathers the keyed shares of a bundle into mini-batches of up to {@code maxSize} shares per key,
+ * so that they are shuffled and batched by {@link WeightedBatchFn} a mini-batch at a time instead
+ * of one share at a time.
+ *
+ * <p>Incomplete mini-batches are emitted at the end of the bundle, so at most one mini-batch per
+ * key and window is held in memory.
+ */
+public class PreBatchFn
+    extends DoFn<
+        KV<String, KV<DataShareMetadata, DataShare>>,
+        KV<String, KV<DataShareMetadata, Iterable<DataShare>>>> {
+
+  private static final Distribution miniBatchSize =
+      Metrics.distribution(PreBatchFn.class, "miniBatchSize");
+
+  private final long maxSize;
+
+  private transient Map<BoundedWindow, Map<String, KV<DataShareMetadata, List<DataShare>>>> buffers;
+
+  public PreBatchFn(long maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("Mini-batch size must be positive");
+    }
+    this.maxSize = maxSize;
+  }
+
+  @StartBundle
+  public void startBundle() {
+    buffers = new HashMap<>();
+  }
+
+  @ProcessElement
+  public void processElement(
+      @Element KV<String, KV<DataShareMetadata, DataShare>> element,
+      BoundedWindow window,
+      OutputReceiver<KV<String, KV<DataShareMetadata, Iterable<DataShare>>>> out) {
+    KV<DataShareMetadata, List<DataShare>> buffer =
+        buffers
+            .computeIfAbsent(window, w -> new HashMap<>())
+            .computeIfAbsent(
+                element.getKey(), k -> KV.of(element.getValue().getKey(), new ArrayList<>()));
+    buffer.getValue().add(element.getValue().getValue());
+    if (buffer.getValue().size() >= maxSize) {
+      buffers.get(window).remove(element.getKey());
+      miniBatchSize.update(buffer.getValue().size());
+      out.output(
+          KV.of(
+              element.getKey(),
+              KV.<DataShareMetadata, Iterable<DataShare>>of(buffer.getKey(), buffer.getValue())));
+    }
+  }
+
+  @FinishBundle
+  public void finishBundle(FinishBundleContext context) {
+    for (Entry<BoundedWindow, Map<String, KV<DataShareMetadata, List<DataShare>>>> windowBuffers :
+        buffers.entrySet()) {
+      BoundedWindow window = windowBuffers.getKey();
+      for (Entry<String, KV<DataShareMetadata, List<DataShare>>> buffer :
+          windowBuffers.getValue().entrySet()) {
+        miniBatchSize.update(buffer.getValue().getValue().size());
+        context.output(
+            KV.of(
+                buffer.getKey(),
+                KV.<DataShareMetadata, Iterable<DataShare>>of(
+                    buffer.getValue().getKey(), buffer.getValue().getValue())),
+            window.maxTimestamp(),
+            window);
+      }
+    }
+    buffers = null;
+  }
+}
@@ -18,9 +18,9 @@ package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
 import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare;
 import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
 import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.EncryptedShare;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -30,13 +30,12 @@ import org.abetterinternet.prio.v1.PrioDataSharePacket;
 import org.abetterinternet.prio.v1.PrioIngestionHeader;
 import org.apache.avro.Schema;
 import org.apache.avro.file.DataFileReader;
-import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.file.SeekableByteArrayInput;
 import org.apache.avro.io.DatumReader;
-import org.apache.avro.io.DatumWriter;
 import org.apache.avro.specific.SpecificDatumReader;
-import org.apache.avro.specific.SpecificDatumWriter;
 import org.apache.avro.specific.SpecificRecordBase;
 import org.apache.avro.util.Utf8;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,19 +51,64 @@ public class PrioSerializationHelper {
 
   public static <T extends SpecificRecordBase> ByteBuffer serializeRecords(
       List<T> records, Class<T> recordClass, Schema schema) throws IOException {
-    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-    DatumWriter<T> dataShareDatumWriter = new SpecificDatumWriter<>(recordClass);
-    try (DataFileWriter<T> dataFileWriter = new DataFileWriter<>(dataShareDatumWriter)) {
-      dataFileWriter.create(schema, outputStream);
+    return serializeRecords(records, recordClass, schema, null);
+  }
 
-      for (T record : records) {
-        dataFileWriter.append(record);
-      }
+  /**
+   * Serializes records into an Avro file. With a given sync marker, instead of a random one, the
+   * same records always serialize to the same bytes.
+   */
+  public static <T extends SpecificRecordBase> ByteBuffer serializeRecords(
+      List<T> records, Class<T> recordClass, Schema schema, @Nullable byte[] syncMarker)
+      throws IOException {
+    return serializeRecords(records, recordClass, schema, syncMarker, AvroFileFormat.DEFAULT);
+  }
+
+  /**
+   * Serializes records into an Avro file of the given codec and block size. Writers and encoders
+   * are reused by the calling thread, so serializing the small files of many batches doesn't set
+   * them up again for each file.
+   */
+  public static <T extends SpecificRecordBase> ByteBuffer serializeRecords(
+      List<T> records,
+      Class<T> recordClass,
+      Schema schema,
+      @Nullable byte[] syncMarker,
+      AvroFileFormat format)
+      throws IOException {
+    return AvroFileEncoder.forClass(recordClass, schema)
+        .encode(records, syncMarker(syncMarker), format);
+  }
 
-      dataFileWriter.flush();
-      dataFileWriter.close();
+  /**
+   * Streams records into an Avro file written to the given stream, which is closed afterwards.
+   * Records are encoded one block at a time, so they need not all be held in memory.
+   */
+  public static <T extends SpecificRecordBase> void writeRecords(
+      Iterable<T> records,
+      Class<T> recordClass,
+      Schema schema,
+      @Nullable byte[] syncMarker,
+      AvroFileFormat format,
+      OutputStream outputStream)
+      throws IOException {
+    try (OutputStream out = outputStream) {
+      AvroFileEncoder.forClass(recordClass, schema)
+          .write(records, syncMarker(syncMarker), format, out);
     }
-    return ByteBuffer.wrap(outputStream.toByteArray());
+  }
+
+  // A random sync marker unless one is given, as written by DataFileWriter
+  private static byte[] syncMarker(@Nullable byte[] syncMarker) {
+    return syncMarker != null ? syncMarker : syncMarker(UUID.randomUUID());
+  }
+
+  /** @return a 16 byte Avro sync marker derived from a batch uuid */
+  public static byte[] syncMarker(UUID uuid) {
+    return ByteBuffer.allocate(16)
+        .putLong(uuid.getMostSignificantBits())
+        .putLong(uuid.getLeastSignificantBits())
+        .array();
   }
 
   public static <T extends SpecificRecordBase> List<T> deserializeRecords(
@@ -87,6 +131,20 @@ public class PrioSerializationHelper {
     return results;
   }
 
+  /** @return records of an Avro file held in memory */
+  public static <T extends SpecificRecordBase> List<T> deserializeRecords(
+      Class<T> recordClass, byte[] contents) throws IOException {
+    DatumReader<T> datumReader = new SpecificDatumReader<>(recordClass);
+    List<T> results = new ArrayList<>();
+    try (DataFileReader<T> dataFileReader =
+        new DataFileReader<>(new SeekableByteArrayInput(contents), datumReader)) {
+      while (dataFileReader.hasNext()) {
+        results.add(dataFileReader.next());
+      }
+    }
+    return results;
+  }
+
   public static PrioIngestionHeader createHeader(
       DataShareMetadata metadata, byte[] digest, UUID uuid, long startTime, long duration) {
     return PrioIngestionHeader.newBuilder()
@@ -106,17 +164,22 @@ public class PrioSerializationHelper {
   public static List<PrioDataSharePacket> splitPackets(DataShare dataShare) {
     List<EncryptedShare> encryptedDataShares = dataShare.getEncryptedDataShares();
     List<PrioDataSharePacket> splitDataShares = new ArrayList<>();
-    for (EncryptedShare encryptedShare : encryptedDataShares) {
-      splitDataShares.add(
-          PrioDataSharePacket.newBuilder()
-              .setEncryptedPayload(ByteBuffer.wrap(encryptedShare.getEncryptedPayload()))
-              .setEncryptionKeyId(null)
-              .setRPit(dataShare.getRPit())
-              .setUuid(dataShare.getUuid())
-              .setVersionConfiguration(null)
-              .setDeviceNonce(null)
-              .build());
+    for (int server = 0; server < encryptedDataShares.size(); server++) {
+      splitDataShares.add(packetFor(dataShare, server));
     }
     return splitDataShares;
   }
+
+  /** @return the packet of a data share for a single server */
+  public static PrioDataSharePacket packetFor(DataShare dataShare, int server) {
+    EncryptedShare encryptedShare = dataShare.getEncryptedDataShares().get(server);
+    return PrioDataSharePacket.newBuilder()
+        .setEncryptedPayload(ByteBuffer.wrap(encryptedShare.getEncryptedPayload()))
+        .setEncryptionKeyId(null)
+        .setRPit(dataShare.getRPitValue())
+        .setUuid(dataShare.getUuid())
+        .setVersionConfiguration(null)
+        .setDeviceNonce(null)
+        .build();
+  }
 }
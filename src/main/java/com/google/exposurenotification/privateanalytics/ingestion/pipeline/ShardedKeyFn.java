@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import com.google.common.hash.Hashing;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
+import com.google.exposurenotification.privateanalytics.ingestion.pipeline.BatchingPolicy.Limits;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollectionView;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Keys data shares for batching on their metadata and a shard, so that the shares of a single large
+ * metric can be batched by several workers in parallel.
+ *
+ * <p>Shares are assigned to shards by a hash of their document path. With a single shard the key is
+ * the metadata alone. In auto mode, the number of shards of each metric is the number of full
+ * batches its shares make up, capped by {@code maxShards}.
+ */
+public class ShardedKeyFn
+    extends DoFn<KV<DataShareMetadata, DataShare>, KV<String, KV<DataShareMetadata, DataShare>>> {
+
+  /** Value of the shards option which picks the number of shards from per-metric share counts. */
+  public static final long AUTO_SHARDS = 0;
+
+  private final BatchingPolicy policy;
+  private final long maxShards;
+  private final @Nullable PCollectionView<Map<String, Long>> counts;
+
+  /**
+   * @param policy number of shards and batch size per metric, shards possibly {@link #AUTO_SHARDS}
+   * @param counts share counts per metadata key, required with {@link #AUTO_SHARDS}
+   */
+  public ShardedKeyFn(
+      BatchingPolicy policy, long maxShards, @Nullable PCollectionView<Map<String, Long>> counts) {
+    if (policy.usesAutoShards() && counts == null) {
+      throw new IllegalArgumentException("Automatic sharding requires share counts");
+    }
+    this.policy = policy;
+    this.maxShards = maxShards;
+    this.counts = counts;
+  }
+
+  @ProcessElement
+  public void processElement(ProcessContext c) {
+    DataShareMetadata metadata = c.element().getKey();
+    String key = metadata.toString();
+    Limits limits = policy.limitsFor(metadata);
+    long numShards = limits.getShards();
+    if (numShards == AUTO_SHARDS) {
+      Long count = c.sideInput(counts).get(key);
+      numShards = shardsFor(count == null ? 0 : count, policy.maxBatchSize(limits), maxShards);
+    }
+    if (numShards > 1) {
+      key = key + "/" + shardOf(c.element().getValue().getPath(), numShards);
+    }
+    c.output(KV.of(key, c.element()));
+  }
+
+  /** @return number of full or partial batches of {@code count} shares, within [1, maxShards] */
+  static long shardsFor(long count, long batchSize, long maxShards) {
+    long batches = (count + batchSize - 1) / batchSize;
+    return Math.max(1, Math.min(batches, maxShards));
+  }
+
+  static long shardOf(@Nullable String path, long shards) {
+    if (path == null) {
+      return 0;
+    }
+    return Math.floorMod(
+        Hashing.murmur3_32().hashString(path, StandardCharsets.UTF_8).asInt(), shards);
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.EncryptedShare;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShareBatchCoder;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShareCoder;
+import com.google.exposurenotification.privateanalytics.ingestion.pipeline.BatchingPolicy.Limits;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.beam.runners.dataflow.options.DataflowPipelineDebugOptions;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.SerializableCoder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.coders.VarLongCoder;
+import org.apache.beam.sdk.options.PipelineOptions;
+import org.apache.beam.sdk.state.BagState;
+import org.apache.beam.sdk.state.StateSpec;
+import org.apache.beam.sdk.state.StateSpecs;
+import org.apache.beam.sdk.state.TimeDomain;
+import org.apache.beam.sdk.state.Timer;
+import org.apache.beam.sdk.state.TimerSpec;
+import org.apache.beam.sdk.state.TimerSpecs;
+import org.apache.beam.sdk.state.ValueState;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.values.KV;
+
+/**
+ * Groups keyed data shares into batches bounded both by number of shares and by the total size of
+ * their encrypted payloads, like {@code GroupIntoBatches} does by count alone. Limits can differ
+ * per metric, as set by a {@link BatchingPolicy}.
+ *
+ * <p>Input elements are groups of shares with the same metadata, either single shares or
+ * mini-batches from {@link PreBatchFn}, so that state is accessed once per group. A share is never
+ * split, so a single share larger than {@code maxBytes} forms its own batch.
+ */
+public class WeightedBatchFn
+    extends DoFn<
+        KV<String, KV<DataShareMetadata, Iterable<DataShare>>>,
+        KV<String, Iterable<KV<DataShareMetadata, DataShare>>>> {
+
+  private final BatchingPolicy policy;
+
+  @StateId("batch")
+  private final StateSpec<BagState<KV<DataShareMetadata, DataShare>>> batchSpec =
+      StateSpecs.bag(
+          KvCoder.of(SerializableCoder.of(DataShareMetadata.class), DataShareCoder.of()));
+
+  @StateId("count")
+  private final StateSpec<ValueState<Long>> countSpec = StateSpecs.value(VarLongCoder.of());
+
+  @StateId("bytes")
+  private final StateSpec<ValueState<Long>> bytesSpec = StateSpecs.value(VarLongCoder.of());
+
+  @TimerId("endOfWindow")
+  private final TimerSpec endOfWindowSpec = TimerSpecs.timer(TimeDomain.EVENT_TIME);
+
+  // Per DoFn instance, and so per worker harness thread
+  private transient AutoBatchSizer autoBatchSizer;
+
+  public WeightedBatchFn(BatchingPolicy policy) {
+    this.policy = policy;
+  }
+
+  /** @return coder for the input of this function, which shares are all of the same metadata */
+  public static Coder<KV<String, KV<DataShareMetadata, Iterable<DataShare>>>> inputCoder() {
+    return KvCoder.of(
+        StringUtf8Coder.of(),
+        KvCoder.of(SerializableCoder.of(DataShareMetadata.class), DataShareBatchCoder.of()));
+  }
+
+  @StartBundle
+  public void startBundle(StartBundleContext context) {
+    if (autoBatchSizer == null) {
+      PipelineOptions options = context.getPipelineOptions();
+      int threads =
+          options.as(DataflowPipelineDebugOptions.class).getNumberOfWorkerHarnessThreads();
+      autoBatchSizer =
+          new AutoBatchSizer(
+              policy.getMinAutoBatchSize(),
+              policy.getMaxAutoBatchSize(),
+              Runtime.getRuntime().maxMemory(),
+              // Dataflow runs one harness thread per core for batch jobs unless configured
+              threads > 0 ? threads : Runtime.getRuntime().availableProcessors(),
+              options.as(IngestionPipelineOptions.class).getBatchWritesInFlight());
+    }
+  }
+
+  @ProcessElement
+  public void processElement(
+      @Element KV<String, KV<DataShareMetadata, Iterable<DataShare>>> element,
+      BoundedWindow window,
+      @StateId("batch") BagState<KV<DataShareMetadata, DataShare>> batch,
+      @StateId("count") ValueState<Long> count,
+      @StateId("bytes") ValueState<Long> bytes,
+      @TimerId("endOfWindow") Timer endOfWindow,
+      OutputReceiver<KV<String, Iterable<KV<DataShareMetadata, DataShare>>>> out)
+      throws IOException {
+    endOfWindow.set(window.maxTimestamp());
+    DataShareMetadata metadata = element.getValue().getKey();
+    Limits limits = policy.limitsFor(metadata);
+    long maxBytes = limits.getMaxBytes() > 0 ? limits.getMaxBytes() : Long.MAX_VALUE;
+    long batchCount = count.read() == null ? 0 : count.read();
+    long batchBytes = bytes.read() == null ? 0 : bytes.read();
+    for (DataShare share : element.getValue().getValue()) {
+      long maxCount = limits.getBatchSize();
+      if (maxCount == BatchingPolicy.AUTO_BATCH_SIZE) {
+        autoBatchSizer.observe(share);
+        maxCount = autoBatchSizer.batchSize();
+      }
+      long weight = weightOf(share);
+      if (batchCount > 0 && batchBytes + weight > maxBytes) {
+        flush(element.getKey(), batch, count, bytes, out);
+        batchCount = 0;
+        batchBytes = 0;
+      }
+      batch.add(KV.of(metadata, share));
+      batchCount++;
+      batchBytes += weight;
+      if (batchCount >= maxCount || batchBytes >= maxBytes) {
+        flush(element.getKey(), batch, count, bytes, out);
+        batchCount = 0;
+        batchBytes = 0;
+      }
+    }
+    if (batchCount > 0) {
+      count.write(batchCount);
+      bytes.write(batchBytes);
+    }
+  }
+
+  @OnTimer("endOfWindow")
+  public void onEndOfWindow(
+      @Key String key,
+      @StateId("batch") BagState<KV<DataShareMetadata, DataShare>> batch,
+      @StateId("count") ValueState<Long> count,
+      @StateId("bytes") ValueState<Long> bytes,
+      OutputReceiver<KV<String, Iterable<KV<DataShareMetadata, DataShare>>>> out) {
+    flush(key, batch, count, bytes, out);
+  }
+
+  private static void flush(
+      String key,
+      BagState<KV<DataShareMetadata, DataShare>> batch,
+      ValueState<Long> count,
+      ValueState<Long> bytes,
+      OutputReceiver<KV<String, Iterable<KV<DataShareMetadata, DataShare>>>> out) {
+    List<KV<DataShareMetadata, DataShare>> shares = new ArrayList<>();
+    batch.read().forEach(shares::add);
+    if (!shares.isEmpty()) {
+      out.output(KV.of(key, shares));
+    }
+    batch.clear();
+    count.clear();
+    bytes.clear();
+  }
+
+  /** @return total size of the encrypted payloads of a share */
+  static long weightOf(DataShare share) {
+    long weight = 0;
+    if (share.getEncryptedDataShares() != null) {
+      for (EncryptedShare encryptedShare : share.getEncryptedDataShares()) {
+        if (encryptedShare.getEncryptedPayload() != null) {
+          weight += encryptedShare.getEncryptedPayload().length;
+        }
+      }
+    }
+    return weight;
+  }
+}
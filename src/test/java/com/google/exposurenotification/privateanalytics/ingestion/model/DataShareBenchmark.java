@@ -0,0 +1,124 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.model;
+
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.InvalidDataShareException;
+import com.google.firestore.v1.ArrayValue;
+import com.google.firestore.v1.Document;
+import com.google.firestore.v1.MapValue;
+import com.google.firestore.v1.Value;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link DataShare#from(Document)} on valid and invalid documents.
+ *
+ * <p>Invalid documents fail at different depths: a missing payload is rejected immediately, a wrong
+ * type in the Prio parameters after the payload fields, and a missing signature only after the
+ * whole payload has been parsed. See the README for how to run.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DataShareBenchmark {
+
+  @Param({"missingPayload", "wrongPrioParamType", "missingSignature"})
+  public String invalidCase;
+
+  private Document valid;
+  private Document invalid;
+
+  @Setup
+  public void setUp() {
+    valid = createDocument(DataShareTest.createPrioParams(), true).build();
+    switch (invalidCase) {
+      case "missingPayload":
+        invalid =
+            createDocument(DataShareTest.createPrioParams(), true)
+                .removeFields(DataShare.PAYLOAD)
+                .build();
+        break;
+      case "wrongPrioParamType":
+        Map<String, Value> prioParams = DataShareTest.createPrioParams();
+        prioParams.put(DataShare.BINS, Value.newBuilder().setStringValue("two").build());
+        invalid = createDocument(prioParams, true).build();
+        break;
+      case "missingSignature":
+        invalid = createDocument(DataShareTest.createPrioParams(), false).build();
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown invalid case: " + invalidCase);
+    }
+  }
+
+  @Benchmark
+  public DataShare parseValid() {
+    return DataShare.from(valid);
+  }
+
+  @Benchmark
+  public Object parseInvalid() {
+    try {
+      return DataShare.from(invalid);
+    } catch (InvalidDataShareException e) {
+      return e;
+    }
+  }
+
+  private static Document.Builder createDocument(
+      Map<String, Value> prioParams, boolean withSignature) {
+    Map<String, Value> payload =
+        DataShareTest.createPayload(
+            DataShareTest.CREATED, prioParams, DataShareTest.createEncryptedDataShares());
+    Document.Builder builder =
+        Document.newBuilder()
+            .setName("uuid/path/metric")
+            .putFields(
+                DataShare.PAYLOAD,
+                Value.newBuilder().setMapValue(MapValue.newBuilder().putAllFields(payload)).build())
+            .putFields(
+                DataShare.CERT_CHAIN,
+                Value.newBuilder()
+                    .setArrayValue(
+                        ArrayValue.newBuilder()
+                            .addValues(Value.newBuilder().setStringValue("cert1"))
+                            .addValues(Value.newBuilder().setStringValue("cert2")))
+                    .build());
+    if (withSignature) {
+      builder.putFields(
+          DataShare.SIGNATURE,
+          Value.newBuilder()
+              .setStringValue(Base64.getEncoder().encodeToString("signature".getBytes()))
+              .build());
+    }
+    return builder;
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.model;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.beam.sdk.coders.CoderRegistry;
+import org.apache.beam.sdk.coders.SerializableCoder;
+import org.apache.beam.sdk.testing.CoderProperties;
+import org.apache.beam.sdk.util.CoderUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Unit tests for {@link DataShareCoder}, {@link DataShareBatchCoder} and {@link StringInterner}.
+ */
+@RunWith(JUnit4.class)
+public class DataShareCoderTest {
+
+  @Test
+  public void testDefaultCoder() throws Exception {
+    assertThat(CoderRegistry.createDefault().getCoder(DataShare.class))
+        .isEqualTo(DataShareCoder.of());
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    DataShare full = DataShareTest.createFakeDataShare(DataShareTest.CREATED, "path/metric");
+    DataShare sparse =
+        DataShare.builder()
+            .setPath("path")
+            .setDataShareMetadata(
+                DataShareMetadata.builder().setMetricName("metric").setBatchId("batch").build())
+            .setCertificateChain(Arrays.asList("cert1", null))
+            .build();
+    CoderProperties.coderDecodeEncodeEqual(DataShareCoder.of(), full);
+    CoderProperties.coderDecodeEncodeEqual(DataShareCoder.of(), sparse);
+    CoderProperties.coderDecodeEncodeEqual(DataShareCoder.of(), DataShare.builder().build());
+    CoderProperties.coderDeterministic(DataShareCoder.of(), full, full);
+  }
+
+  @Test
+  public void testBatchRoundTrip() throws Exception {
+    List<DataShare> batch = new ArrayList<>();
+    long separatelyEncodedSize = 0;
+    for (int i = 0; i < 10; i++) {
+      DataShare share = DataShareTest.createFakeDataShare(DataShareTest.CREATED, "path" + i + "/m");
+      batch.add(share);
+      separatelyEncodedSize += CoderUtils.encodeToByteArray(DataShareCoder.of(), share).length;
+    }
+    Iterable<DataShare> decoded =
+        CoderUtils.clone(DataShareBatchCoder.of(), (Iterable<DataShare>) batch);
+    assertThat(decoded).containsExactlyElementsIn(batch).inOrder();
+    assertThat(CoderUtils.encodeToByteArray(DataShareBatchCoder.of(), batch).length)
+        .isLessThan((int) separatelyEncodedSize);
+
+    // Decoded shares of a batch share their repeated strings, but not the leaf certificates of
+    // their devices.
+    List<DataShare> decodedList = (List<DataShare>) decoded;
+    assertThat(decodedList.get(1).getCertificateChain().get(1))
+        .isSameInstanceAs(decodedList.get(0).getCertificateChain().get(1));
+    assertThat(decodedList.get(1).getCertificateChain().get(0))
+        .isNotSameInstanceAs(decodedList.get(0).getCertificateChain().get(0));
+    assertThat(decodedList.get(1).getDataShareMetadata().getMetricName())
+        .isSameInstanceAs(decodedList.get(0).getDataShareMetadata().getMetricName());
+  }
+
+  @Test
+  public void testSmallerThanSerialization() throws Exception {
+    DataShare share = DataShareTest.createFakeDataShare(DataShareTest.CREATED, "path/metric");
+    assertThat(CoderUtils.encodeToByteArray(DataShareCoder.of(), share).length)
+        .isLessThan(
+            CoderUtils.encodeToByteArray(SerializableCoder.of(DataShare.class), share).length);
+  }
+
+  @Test
+  public void testParsedStringsAreInterned() {
+    DataShare first = DataShareTest.createFakeDataShare(DataShareTest.CREATED, "path1/metric");
+    DataShare second = DataShareTest.createFakeDataShare(DataShareTest.CREATED, "path2/metric");
+    assertThat(second.getDataShareMetadata().getMetricName())
+        .isSameInstanceAs(first.getDataShareMetadata().getMetricName());
+    assertThat(second.getEncryptedDataShares().get(0).getEncryptionKeyId())
+        .isSameInstanceAs(first.getEncryptedDataShares().get(0).getEncryptionKeyId());
+  }
+
+  @Test
+  public void testInternerIsBounded() {
+    StringInterner interner = new StringInterner(1);
+    String a = new String("a");
+    assertThat(interner.intern(a)).isSameInstanceAs(a);
+    assertThat(interner.intern(new String("a"))).isSameInstanceAs(a);
+    String b = new String("b");
+    assertThat(interner.intern(b)).isSameInstanceAs(b);
+    assertThat(interner.intern(new String("b"))).isNotSameInstanceAs(b);
+    assertThat(interner.size()).isEqualTo(1);
+    assertThat(interner.intern(null)).isNull();
+  }
+}
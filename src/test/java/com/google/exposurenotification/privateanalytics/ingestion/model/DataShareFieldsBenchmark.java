@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.model;
+
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for reading and building the numeric fields of {@link DataShare}, comparing the
+ * primitive accessors with the boxed compatibility accessors. See the README for how to run.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DataShareFieldsBenchmark {
+
+  private static final int SHARES = 1000;
+  private static final long START_MS = 1000L;
+  private static final long END_MS = 2_000_000L;
+
+  private final List<DataShare> shares = new ArrayList<>(SHARES);
+
+  @Setup
+  public void setUp() {
+    for (int i = 0; i < SHARES; i++) {
+      shares.add(DataShare.builder().setCreatedMs(i * 3000L).setRPit(i).build());
+    }
+  }
+
+  /** Date filtering as done by {@code DateFilterFn}, reading the creation time once unboxed. */
+  @Benchmark
+  public int filterPrimitive() {
+    int included = 0;
+    for (DataShare share : shares) {
+      long createdMs = share.getCreatedMsValue();
+      if (createdMs != 0 && createdMs >= START_MS && createdMs < END_MS) {
+        included++;
+      }
+    }
+    return included;
+  }
+
+  /** Date filtering through the nullable boxed accessor. */
+  @Benchmark
+  public int filterBoxed() {
+    int included = 0;
+    for (DataShare share : shares) {
+      if (share.getCreatedMs() != null
+          && share.getCreatedMs() != 0
+          && share.getCreatedMs() >= START_MS
+          && share.getCreatedMs() < END_MS) {
+        included++;
+      }
+    }
+    return included;
+  }
+
+  @Benchmark
+  public DataShareMetadata buildMetadata() {
+    return DataShareMetadata.builder()
+        .setBins(DataShareTest.BINS)
+        .setEpsilon(DataShareTest.EPSILON)
+        .setHammingWeight(DataShareTest.HAMMING_WEIGHT)
+        .setNumberOfServers(DataShare.NUMBER_OF_SERVERS)
+        .setPrime(DataShare.PRIME)
+        .setMetricName("metric")
+        .build();
+  }
+}
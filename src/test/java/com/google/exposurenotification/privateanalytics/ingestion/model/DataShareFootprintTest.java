@@ -0,0 +1,82 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.model;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.openjdk.jol.info.GraphLayout;
+
+/**
+ * Checks the in-memory layout of {@link DataShare} with JOL. {@code
+ * GraphLayout.parseInstance(share).toFootprint()} prints the full breakdown.
+ */
+@RunWith(JUnit4.class)
+public class DataShareFootprintTest {
+
+  @Test
+  public void testParsedShareHoldsNoBoxedNumbers() {
+    DataShare share = DataShareTest.createFakeDataShare(DataShareTest.CREATED, "path/metric");
+    GraphLayout layout = GraphLayout.parseInstance(share);
+    assertThat(layout.getClasses()).containsNoneOf(Long.class, Integer.class, Double.class);
+  }
+
+  @Test
+  public void testPresence() {
+    DataShareMetadata unset = DataShareMetadata.builder().build();
+    assertThat(unset.hasBins()).isFalse();
+    assertThat(unset.getBins()).isNull();
+    assertThat(unset.getBinsValue()).isEqualTo(0);
+
+    DataShareMetadata set = unset.toBuilder().setBins(0).setPrime(7L).build();
+    assertThat(set.hasBins()).isTrue();
+    assertThat(set.getBins()).isEqualTo(0);
+    assertThat(set.getPrime()).isEqualTo(7L);
+    assertThat(set).isNotEqualTo(unset);
+    assertThat(set.toBuilder().setBins((Integer) null).setPrime((Long) null).build())
+        .isEqualTo(unset);
+
+    DataShare share = DataShare.builder().setCreatedMs(0L).build();
+    assertThat(share.hasCreatedMs()).isTrue();
+    assertThat(share.getCreatedMs()).isEqualTo(0L);
+    assertThat(share.hasRPit()).isFalse();
+    assertThat(share.getRPit()).isNull();
+    assertThat(share.getSchemaVersion()).isNull();
+  }
+
+  @Test
+  public void testMetadataToString() {
+    assertThat(
+            DataShareTest.createDataShareMetadata().toBuilder().setBatchId("id").build().toString())
+        .isEqualTo(
+            "DataShareMetadata{epsilon="
+                + DataShareTest.EPSILON
+                + ", prime="
+                + DataShare.PRIME
+                + ", bins="
+                + DataShareTest.BINS
+                + ", numberOfServers="
+                + DataShare.NUMBER_OF_SERVERS
+                + ", hammingWeight="
+                + DataShareTest.HAMMING_WEIGHT
+                + ", metricName="
+                + DataShareTest.createDataShareMetadata().getMetricName()
+                + ", batchId=id}");
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.model;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.InvalidDataShareException;
+import com.google.firestore.v1.ArrayValue;
+import com.google.firestore.v1.Document;
+import com.google.firestore.v1.Value;
+import com.google.firestore.v1.Value.ValueTypeCase;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link DataShareParsers} and {@link DocumentField}. */
+@RunWith(JUnit4.class)
+public class DataShareParsersTest {
+
+  @Test
+  public void testSupportedSchemaVersions() {
+    for (int version = 1; version <= DataShare.LATEST_SCHEMA_VERSION; version++) {
+      assertThat(DataShareParsers.forSchemaVersion(version).getSchemaVersion()).isEqualTo(version);
+    }
+    assertThat(DataShareParsers.getSupportedSchemaVersions()).contains(1);
+    assertThat(DataShareParsers.getSupportedSchemaVersions())
+        .contains(DataShare.LATEST_SCHEMA_VERSION);
+    assertThat(DataShareParsers.forSchemaVersion(0)).isNull();
+    assertThat(DataShareParsers.forSchemaVersion(-1)).isNull();
+    assertThat(DataShareParsers.forSchemaVersion(Integer.MAX_VALUE)).isNull();
+  }
+
+  @Test
+  public void testParserMatchesFrom() {
+    Map<String, Value> payload =
+        DataShareTest.createPayload(
+            DataShareTest.CREATED,
+            DataShareTest.createPrioParams(),
+            DataShareTest.createEncryptedDataShares());
+    DataShare expected = DataShareTest.createFakeDataShare(DataShareTest.CREATED, "path/metric");
+    DataShare parsed = parse(payload, expected, "cert1", "cert2");
+
+    assertThat(parsed.getDataShareMetadata()).isEqualTo(expected.getDataShareMetadata());
+    assertThat(parsed.getEncryptedDataShares()).isEqualTo(expected.getEncryptedDataShares());
+    assertThat(parsed.getCertificateChain()).isEqualTo(expected.getCertificateChain());
+  }
+
+  @Test
+  public void testInternsOnlyIssuerCertificates() {
+    Map<String, Value> payload =
+        DataShareTest.createPayload(
+            DataShareTest.CREATED,
+            DataShareTest.createPrioParams(),
+            DataShareTest.createEncryptedDataShares());
+    DataShare expected = DataShareTest.createFakeDataShare(DataShareTest.CREATED, "path/metric");
+    String leaf = "leaf-" + UUID.randomUUID();
+    String intermediate = "intermediate-" + UUID.randomUUID();
+
+    DataShare parsed = parse(payload, expected, leaf, intermediate);
+
+    assertThat(parsed.getCertificateChain()).containsExactly(leaf, intermediate).inOrder();
+    assertThat(StringInterner.shared().contains(leaf)).isFalse();
+    assertThat(StringInterner.shared().contains(intermediate)).isTrue();
+  }
+
+  // Path, creation time, uuid and schema version are set by DataShare.from
+  private static DataShare parse(Map<String, Value> payload, DataShare expected, String... certs) {
+    ArrayValue.Builder certChain = ArrayValue.newBuilder();
+    for (String cert : certs) {
+      certChain.addValues(Value.newBuilder().setStringValue(cert));
+    }
+    Document doc =
+        Document.newBuilder()
+            .setName("path/metric")
+            .putFields(DataShare.SIGNATURE, Value.newBuilder().setStringValue("sig").build())
+            .putFields(DataShare.CERT_CHAIN, Value.newBuilder().setArrayValue(certChain).build())
+            .build();
+    DataShare.Builder builder =
+        DataShare.builder()
+            .setPath(doc.getName())
+            .setCreatedMs(expected.getCreatedMs())
+            .setUuid(expected.getUuid())
+            .setSchemaVersion(2);
+    DataShareParsers.forSchemaVersion(2).parse(doc, payload, builder);
+    return builder.build();
+  }
+
+  @Test
+  public void testDocumentField() {
+    DocumentField field = DocumentField.of("bins", "prioParams", ValueTypeCase.INTEGER_VALUE);
+    Map<String, Value> source = new HashMap<>();
+    assertThat(field.find(source)).isNull();
+
+    InvalidDataShareException missing =
+        assertThrows(InvalidDataShareException.class, () -> field.require(source));
+    assertThat(missing)
+        .hasMessageThat()
+        .isEqualTo("Missing required field: 'bins' from 'prioParams'");
+
+    source.put("bins", Value.newBuilder().setStringValue("two").build());
+    InvalidDataShareException wrongType =
+        assertThrows(InvalidDataShareException.class, () -> field.find(source));
+    assertThat(wrongType)
+        .hasMessageThat()
+        .isEqualTo("Error casting 'bins' from 'prioParams' to INTEGER_VALUE");
+
+    source.put("bins", Value.newBuilder().setIntegerValue(2).build());
+    assertThat(field.require(source).getIntegerValue()).isEqualTo(2);
+  }
+}
@@ -353,6 +353,32 @@ public class DataShareTest {
     assertThat(e).hasMessageThat().contains("Invalid schema version: " + invalidSchemaVersion);
   }
 
+  /** Test that missing payload fields are reported before an unsupported schema version. */
+  @Test
+  public void testMissingUuidReportedBeforeSchemaVersion() {
+    Map<String, Value> samplePayload =
+        createPayload(CREATED, createPrioParams(), createEncryptedDataShares());
+    samplePayload.replace(
+        DataShare.SCHEMA_VERSION,
+        Value.newBuilder().setIntegerValue(DataShare.LATEST_SCHEMA_VERSION + 1).build());
+    samplePayload.remove(DataShare.UUID);
+    document =
+        Document.newBuilder()
+            .setName(PATH_ID)
+            .putFields(
+                DataShare.PAYLOAD,
+                Value.newBuilder()
+                    .setMapValue(MapValue.newBuilder().putAllFields(samplePayload).build())
+                    .build())
+            .build();
+
+    InvalidDataShareException e =
+        assertThrows(InvalidDataShareException.class, () -> DataShare.from(document));
+
+    assertThat(e).hasMessageThat().contains(DataShare.UUID);
+    assertThat(e).hasMessageThat().doesNotContain("schema version");
+  }
+
   /** Test with smaller schema version. */
   @Test
   public void testSmallerSchemaVersion() {
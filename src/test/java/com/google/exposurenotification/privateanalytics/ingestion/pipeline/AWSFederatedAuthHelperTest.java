@@ -0,0 +1,101 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.amazonaws.services.securitytoken.model.Credentials;
+import com.google.exposurenotification.privateanalytics.ingestion.pipeline.AWSFederatedAuthHelper.CredentialsCache;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link AWSFederatedAuthHelper}. */
+@RunWith(JUnit4.class)
+public class AWSFederatedAuthHelperTest {
+
+  private static final Instant NOW = Instant.ofEpochSecond(1600000000);
+  private static final Duration SESSION = Duration.ofHours(1);
+
+  private final List<String> assumed = new ArrayList<>();
+
+  private Credentials assumeRole(String role, String region, Instant now) {
+    assumed.add(role + "|" + region);
+    return new Credentials()
+        .withAccessKeyId("key" + assumed.size())
+        .withSecretAccessKey("secret")
+        .withSessionToken("token")
+        .withExpiration(Date.from(now.plus(SESSION)));
+  }
+
+  @Test
+  public void testCredentialsCachedPerRoleAndRegion() throws Exception {
+    Clock clock = Clock.fixed(NOW, ZoneOffset.UTC);
+    CredentialsCache cache =
+        new CredentialsCache(
+            (role, region) -> assumeRole(role, region, NOW),
+            clock,
+            AWSFederatedAuthHelper.REFRESH_MARGIN);
+
+    assertThat(cache.getCredentials("pha", "us-west-1").getAWSAccessKeyId()).isEqualTo("key1");
+    assertThat(cache.getCredentials("pha", "us-west-1").getAWSAccessKeyId()).isEqualTo("key1");
+    assertThat(cache.getCredentials("facilitator", "us-west-1").getAWSAccessKeyId())
+        .isEqualTo("key2");
+    assertThat(cache.getCredentials("pha", "eu-west-1").getAWSAccessKeyId()).isEqualTo("key3");
+    assertThat(assumed).containsExactly("pha|us-west-1", "facilitator|us-west-1", "pha|eu-west-1");
+  }
+
+  @Test
+  public void testCredentialsRefreshedBeforeExpiry() throws Exception {
+    Instant[] now = {NOW};
+    Clock clock =
+        new Clock() {
+          @Override
+          public ZoneOffset getZone() {
+            return ZoneOffset.UTC;
+          }
+
+          @Override
+          public Clock withZone(ZoneId zone) {
+            return this;
+          }
+
+          @Override
+          public Instant instant() {
+            return now[0];
+          }
+        };
+    CredentialsCache cache =
+        new CredentialsCache(
+            (role, region) -> assumeRole(role, region, now[0]),
+            clock,
+            AWSFederatedAuthHelper.REFRESH_MARGIN);
+
+    assertThat(cache.getCredentials("pha", "us-west-1").getAWSAccessKeyId()).isEqualTo("key1");
+    now[0] = NOW.plus(SESSION).minus(AWSFederatedAuthHelper.REFRESH_MARGIN).minusSeconds(1);
+    assertThat(cache.getCredentials("pha", "us-west-1").getAWSAccessKeyId()).isEqualTo("key1");
+    now[0] = now[0].plusSeconds(1);
+    assertThat(cache.getCredentials("pha", "us-west-1").getAWSAccessKeyId()).isEqualTo("key2");
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Strings;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.EncryptedShare;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShareBatchCoder;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShareCoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import org.apache.beam.sdk.testing.PAssert;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.transforms.Values;
+import org.apache.beam.sdk.util.CoderUtils;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.openjdk.jol.info.GraphLayout;
+
+/** Unit tests for {@link AutoBatchSizer}. */
+@RunWith(JUnit4.class)
+public class AutoBatchSizerTest {
+
+  public transient IngestionPipelineOptions options =
+      TestPipeline.testingPipelineOptions().as(IngestionPipelineOptions.class);
+
+  @Rule public final transient TestPipeline pipeline = TestPipeline.fromOptions(options);
+
+  @Test
+  public void testBatchSizeFor() {
+    // 1 GiB per thread, half of it for batches of 1 KiB shares held 3 times over
+    assertThat(AutoBatchSizer.batchSizeFor(1L << 30, 1024, 1, Long.MAX_VALUE))
+        .isEqualTo((1L << 30) / 2 / 1024 / 3);
+    assertThat(AutoBatchSizer.batchSizeFor(1L << 30, 1024, 1, 1000)).isEqualTo(1000);
+    assertThat(AutoBatchSizer.batchSizeFor(1L << 20, 1 << 20, 10, 1000)).isEqualTo(10);
+  }
+
+  @Test
+  public void testObserve() throws Exception {
+    AutoBatchSizer sizer = new AutoBatchSizer(1, Long.MAX_VALUE, 1L << 30, 4, 0);
+    sizer.observe(createShare("small", 10));
+    long smallShareBatchSize = sizer.batchSize();
+    for (int i = 0; i < AutoBatchSizer.SAMPLE_EVERY * 10; i++) {
+      sizer.observe(createShare("large" + i, 10_000));
+    }
+    assertThat(sizer.batchSize()).isLessThan(smallShareBatchSize);
+  }
+
+  @Test
+  public void testBatchWritesInFlight() throws Exception {
+    DataShare share = createShare("share", 1000);
+    AutoBatchSizer oneAtATime = new AutoBatchSizer(1, Long.MAX_VALUE, 1L << 30, 4, 0);
+    AutoBatchSizer threeInFlight = new AutoBatchSizer(1, Long.MAX_VALUE, 1L << 30, 4, 3);
+    oneAtATime.observe(share);
+    threeInFlight.observe(share);
+
+    // Three batches being written and the one being read share the heap of the thread
+    assertThat(threeInFlight.batchSize()).isEqualTo(oneAtATime.batchSize() / 4);
+    long shareBytes = CoderUtils.encodeToByteArray(DataShareCoder.of(), share).length;
+    assertThat(threeInFlight.batchSize())
+        .isEqualTo(AutoBatchSizer.batchSizeFor((1L << 30) / 4 / 4, shareBytes, 1, Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testMemoryPerSerializedByte() throws Exception {
+    String issuer = Strings.repeat("i", 1500);
+    String root = Strings.repeat("r", 1500);
+    for (int payloadBytes : new int[] {16, 256, 4096}) {
+      assertDecodedFootprintWithinBound(payloadBytes, Collections.emptyList());
+      assertDecodedFootprintWithinBound(payloadBytes, Arrays.asList(issuer, root));
+    }
+  }
+
+  @Test
+  public void testAutoBatchSize() {
+    options.setStartTime(1L);
+    options.setDuration(2L);
+    options.setBatchSize(BatchingPolicy.AUTO_BATCH_SIZE);
+    options.setMinAutoBatchSize(2L);
+    options.setMaxAutoBatchSize(2L);
+    options.setDeviceAttestation(false);
+
+    List<DataShare> inputData = new ArrayList<>();
+    for (int i = 0; i < 9; i++) {
+      inputData.add(createShare("id" + i, 100));
+    }
+
+    PCollection<KV<DataShareMetadata, Iterable<DataShare>>> batches =
+        IngestionPipeline.processDataShares(pipeline.apply(Create.of(inputData)));
+
+    PAssert.that(batches.apply(Values.create()))
+        .satisfies(
+            values -> {
+              int total = 0;
+              for (Iterable<DataShare> batch : values) {
+                int size = 0;
+                for (DataShare unused : batch) {
+                  size++;
+                }
+                assertThat(size).isAtMost(2);
+                total += size;
+              }
+              assertThat(total).isEqualTo(9);
+              return null;
+            });
+    pipeline.run().waitUntilFinish();
+  }
+
+  private static void assertDecodedFootprintWithinBound(int payloadBytes, List<String> issuers)
+      throws Exception {
+    List<DataShare> shares = new ArrayList<>();
+    long serializedBytes = 0;
+    for (int i = 0; i < 100; i++) {
+      DataShare share = createSignedShare(i, payloadBytes, issuers);
+      shares.add(share);
+      serializedBytes += CoderUtils.encodeToByteArray(DataShareCoder.of(), share).length;
+    }
+    // Shares as BatchWriterFn reads them, with the issuer certificates interned
+    Iterable<DataShare> decoded =
+        CoderUtils.decodeFromByteArray(
+            DataShareBatchCoder.of(),
+            CoderUtils.encodeToByteArray(DataShareBatchCoder.of(), shares));
+    List<DataShare> batch = new ArrayList<>();
+    decoded.forEach(batch::add);
+
+    // The remaining byte per serialized byte is for the serialized batch itself
+    assertThat(GraphLayout.parseInstance(batch).totalSize())
+        .isAtMost((AutoBatchSizer.MEMORY_PER_SERIALIZED_BYTE - 1) * serializedBytes);
+  }
+
+  private static DataShare createSignedShare(int index, int payloadBytes, List<String> issuers) {
+    Random random = new Random(index);
+    List<EncryptedShare> encryptedShares = new ArrayList<>();
+    for (int server = 0; server < DataShare.NUMBER_OF_SERVERS; server++) {
+      byte[] payload = new byte[payloadBytes];
+      random.nextBytes(payload);
+      encryptedShares.add(
+          EncryptedShare.builder()
+              .setEncryptedPayload(payload)
+              .setEncryptionKeyId("projects/p/locations/l/keyRings/r/cryptoKeys/server" + server)
+              .build());
+    }
+    String uuid = new UUID(random.nextLong(), random.nextLong()).toString();
+    List<String> certificateChain = new ArrayList<>();
+    if (!issuers.isEmpty()) {
+      certificateChain.add(Strings.repeat(Integer.toString(index), 1000));
+      certificateChain.addAll(issuers);
+    }
+    return DataShare.builder()
+        .setPath("uuid/" + uuid + "/metric")
+        .setCreatedMs(1000L)
+        .setUuid(uuid)
+        .setRPit(random.nextLong())
+        .setSchemaVersion(2)
+        .setEncryptedDataShares(encryptedShares)
+        .setDataShareMetadata(
+            DataShareMetadata.builder()
+                .setMetricName("metric")
+                .setBins(32)
+                .setEpsilon(1.0)
+                .setPrime(DataShare.PRIME)
+                .setNumberOfServers(DataShare.NUMBER_OF_SERVERS)
+                .setHammingWeight(1)
+                .build())
+        .setSignature(Strings.repeat("s", 96))
+        .setCertificateChain(certificateChain)
+        .build();
+  }
+
+  private static DataShare createShare(String path, int payloadBytes) {
+    return DataShare.builder()
+        .setPath(path)
+        .setCreatedMs(1000L)
+        .setEncryptedDataShares(
+            Collections.singletonList(
+                EncryptedShare.builder()
+                    .setEncryptedPayload(new byte[payloadBytes])
+                    .setEncryptionKeyId("key")
+                    .build()))
+        .setDataShareMetadata(DataShareMetadata.builder().setMetricName("metric").build())
+        .build();
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import org.abetterinternet.prio.v1.PrioDataSharePacket;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link AvroFileEncoder}. */
+@RunWith(JUnit4.class)
+public class AvroFileEncoderTest {
+
+  private static final byte[] SYNC_MARKER =
+      PrioSerializationHelper.syncMarker(UUID.fromString("0f8fad5b-d9cb-469f-a165-70867728950e"));
+
+  @Test
+  public void testEncodesLikeDataFileWriter() throws IOException {
+    List<PrioDataSharePacket> packets = createPackets(100);
+    AvroFileEncoder<PrioDataSharePacket> encoder = encoder();
+    assertThat(encoder.encode(packets, SYNC_MARKER, AvroFileFormat.DEFAULT))
+        .isEqualTo(dataFileWriter(packets, CodecFactory.nullCodec(), 0));
+    // Several blocks, compressed
+    assertThat(encoder.encode(packets, SYNC_MARKER, AvroFileFormat.of("deflate:6", 256)))
+        .isEqualTo(dataFileWriter(packets, CodecFactory.deflateCodec(6), 256));
+    assertThat(encoder.encode(packets, SYNC_MARKER, AvroFileFormat.of("snappy", 64)))
+        .isEqualTo(dataFileWriter(packets, CodecFactory.snappyCodec(), 64));
+    assertThat(encoder.encode(packets, SYNC_MARKER, AvroFileFormat.of("xz:3", 512)))
+        .isEqualTo(dataFileWriter(packets, CodecFactory.xzCodec(3), 512));
+    assertThat(encoder.encode(packets, SYNC_MARKER, AvroFileFormat.of("zstandard", 512)))
+        .isEqualTo(
+            dataFileWriter(
+                packets, CodecFactory.zstandardCodec(CodecFactory.DEFAULT_ZSTANDARD_LEVEL), 512));
+    assertThat(encoder.encode(packets, SYNC_MARKER, AvroFileFormat.of("zstandard:-5", 0)))
+        .isEqualTo(dataFileWriter(packets, CodecFactory.zstandardCodec(-5), 0));
+    assertThat(encoder.encode(new ArrayList<>(), SYNC_MARKER, AvroFileFormat.DEFAULT))
+        .isEqualTo(dataFileWriter(new ArrayList<>(), CodecFactory.nullCodec(), 0));
+  }
+
+  @Test
+  public void testEncodesAfterLargeBlocks() throws IOException {
+    List<PrioDataSharePacket> packets = createPackets(100);
+    List<PrioDataSharePacket> largePackets = new ArrayList<>();
+    for (PrioDataSharePacket packet : packets) {
+      largePackets.add(
+          PrioDataSharePacket.newBuilder(packet)
+              .setEncryptedPayload(ByteBuffer.wrap(new byte[1 << 15]))
+              .build());
+    }
+    AvroFileEncoder<PrioDataSharePacket> encoder = encoder();
+    // A file larger than the buffers the encoder keeps
+    assertThat(encoder.encode(largePackets, SYNC_MARKER, AvroFileFormat.of("deflate", 1 << 23)))
+        .isEqualTo(dataFileWriter(largePackets, CodecFactory.deflateCodec(-1), 1 << 23));
+    assertThat(encoder.encode(packets, SYNC_MARKER, AvroFileFormat.of("deflate", 256)))
+        .isEqualTo(dataFileWriter(packets, CodecFactory.deflateCodec(-1), 256));
+  }
+
+  @Test
+  public void testWritesParts() throws IOException {
+    List<PrioDataSharePacket> packets = createPackets(100);
+    List<byte[]> parts = new ArrayList<>();
+    List<Long> recordCounts = new ArrayList<>();
+    ByteArrayOutputStream part = new ByteArrayOutputStream();
+    encoder()
+        .writeParts(
+            packets,
+            SYNC_MARKER,
+            AvroFileFormat.of("null", 128),
+            1024,
+            new AvroFileEncoder.PartSink() {
+              @Override
+              public OutputStream startPart(int index) {
+                assertThat(index).isEqualTo(parts.size());
+                part.reset();
+                return part;
+              }
+
+              @Override
+              public void finishPart(int index, long recordCount) {
+                parts.add(part.toByteArray());
+                recordCounts.add(recordCount);
+              }
+            });
+
+    assertThat(parts.size()).isGreaterThan(1);
+    List<PrioDataSharePacket> written = new ArrayList<>();
+    for (int i = 0; i < parts.size(); i++) {
+      if (i < parts.size() - 1) {
+        assertThat(parts.get(i).length).isAtLeast(1024);
+      }
+      List<PrioDataSharePacket> partPackets =
+          PrioSerializationHelper.deserializeRecords(PrioDataSharePacket.class, parts.get(i));
+      assertThat((long) partPackets.size()).isEqualTo(recordCounts.get(i));
+      written.addAll(partPackets);
+    }
+    assertThat(written).isEqualTo(packets);
+  }
+
+  @Test
+  public void testWritesEmptyPart() throws IOException {
+    List<Long> recordCounts = new ArrayList<>();
+    encoder()
+        .writeParts(
+            new ArrayList<>(),
+            SYNC_MARKER,
+            AvroFileFormat.DEFAULT,
+            1024,
+            new AvroFileEncoder.PartSink() {
+              @Override
+              public OutputStream startPart(int index) {
+                return new ByteArrayOutputStream();
+              }
+
+              @Override
+              public void finishPart(int index, long recordCount) {
+                recordCounts.add(recordCount);
+              }
+            });
+    assertThat(recordCounts).containsExactly(0L);
+  }
+
+  @Test
+  public void testReusesEncoderOfThread() {
+    assertThat(encoder()).isSameInstanceAs(encoder());
+  }
+
+  @Test
+  public void testEncodesWhileInUse() throws IOException {
+    List<PrioDataSharePacket> packets = createPackets(10);
+    List<ByteBuffer> nested = new ArrayList<>();
+    // Encodes a file of the same class while iterating the records of another
+    Iterable<PrioDataSharePacket> encodingRecords =
+        () -> {
+          Iterator<PrioDataSharePacket> iterator = packets.iterator();
+          return new Iterator<PrioDataSharePacket>() {
+            @Override
+            public boolean hasNext() {
+              return iterator.hasNext();
+            }
+
+            @Override
+            public PrioDataSharePacket next() {
+              try {
+                nested.add(
+                    PrioSerializationHelper.serializeRecords(
+                        packets,
+                        PrioDataSharePacket.class,
+                        PrioDataSharePacket.getClassSchema(),
+                        SYNC_MARKER));
+              } catch (IOException e) {
+                throw new AssertionError(e);
+              }
+              return iterator.next();
+            }
+          };
+        };
+
+    ByteBuffer outer = encoder().encode(encodingRecords, SYNC_MARKER, AvroFileFormat.DEFAULT);
+
+    assertThat(outer).isEqualTo(dataFileWriter(packets, CodecFactory.nullCodec(), 0));
+    assertThat(nested).hasSize(10);
+    assertThat(nested.get(9)).isEqualTo(outer);
+  }
+
+  private static AvroFileEncoder<PrioDataSharePacket> encoder() {
+    return AvroFileEncoder.forClass(
+        PrioDataSharePacket.class, PrioDataSharePacket.getClassSchema());
+  }
+
+  private static ByteBuffer dataFileWriter(
+      List<PrioDataSharePacket> packets, CodecFactory codec, int syncInterval) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (DataFileWriter<PrioDataSharePacket> writer =
+        new DataFileWriter<>(new SpecificDatumWriter<>(PrioDataSharePacket.class))) {
+      writer.setCodec(codec);
+      if (syncInterval > 0) {
+        writer.setSyncInterval(syncInterval);
+      }
+      writer.create(PrioDataSharePacket.getClassSchema(), out, SYNC_MARKER);
+      for (PrioDataSharePacket packet : packets) {
+        writer.append(packet);
+      }
+    }
+    return ByteBuffer.wrap(out.toByteArray());
+  }
+
+  private static List<PrioDataSharePacket> createPackets(int count) {
+    List<PrioDataSharePacket> packets = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      packets.add(
+          PrioDataSharePacket.newBuilder()
+              .setDeviceNonce(ByteBuffer.wrap(new byte[] {0x07, 0x08, 0x09}))
+              .setEncryptionKeyId("key1")
+              .setRPit(i)
+              .setUuid("uuid" + i)
+              .setVersionConfiguration("v1.0")
+              .setEncryptedPayload(ByteBuffer.wrap(new byte[] {0x01, 0x02, 0x03, 0x04, 0x05}))
+              .build());
+    }
+    return packets;
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.abetterinternet.prio.v1.PrioDataSharePacket;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.SeekableByteArrayInput;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link AvroFileFormat}. */
+@RunWith(JUnit4.class)
+public class AvroFileFormatTest {
+
+  @Test
+  public void testRejectsUnknownCodecs() {
+    assertThrows(IllegalArgumentException.class, () -> AvroFileFormat.of("gzip", 0));
+    assertThrows(IllegalArgumentException.class, () -> AvroFileFormat.of("snappy:3", 0));
+    assertThrows(IllegalArgumentException.class, () -> AvroFileFormat.of("deflate:fast", 0));
+    assertThrows(IllegalArgumentException.class, () -> AvroFileFormat.of("deflate:10", 0));
+  }
+
+  @Test
+  public void testChecksCompressionLevels() {
+    assertThrows(IllegalArgumentException.class, () -> AvroFileFormat.of("deflate:-1", 0));
+    assertThrows(IllegalArgumentException.class, () -> AvroFileFormat.of("xz:10", 0));
+    IllegalArgumentException e =
+        assertThrows(IllegalArgumentException.class, () -> AvroFileFormat.of("zstandard:23", 0));
+    assertThat(e)
+        .hasMessageThat()
+        .isEqualTo("Compression level of Avro codec zstandard must be between -131072 and 22");
+    assertThrows(IllegalArgumentException.class, () -> AvroFileFormat.of("zstandard:-131073", 0));
+    assertThat(AvroFileFormat.of("zstandard:22", 0).toString()).isEqualTo("zstandard:22");
+    assertThat(AvroFileFormat.of("zstandard:-5", 0).toString()).isEqualTo("zstandard:-5");
+    assertThat(AvroFileFormat.of("xz:0", 0).toString()).isEqualTo("xz:0");
+  }
+
+  @Test
+  public void testRejectsBlockSizesOutOfBounds() {
+    assertThrows(IllegalArgumentException.class, () -> AvroFileFormat.of("null", 16));
+    assertThrows(IllegalArgumentException.class, () -> AvroFileFormat.of("null", 1L << 31));
+    assertThat(AvroFileFormat.of("null", 1 << 20).toString())
+        .isEqualTo("null with blocks of 1048576 bytes");
+  }
+
+  @Test
+  public void testDeflateRoundTrip() throws IOException {
+    assertRoundTrip(AvroFileFormat.of("deflate:9", 0), DataFileConstants.DEFLATE_CODEC);
+  }
+
+  @Test
+  public void testSnappyRoundTrip() throws IOException {
+    assertRoundTrip(AvroFileFormat.of("snappy", 1024), DataFileConstants.SNAPPY_CODEC);
+  }
+
+  @Test
+  public void testDefaultIsUncompressed() throws IOException {
+    assertRoundTrip(AvroFileFormat.DEFAULT, DataFileConstants.NULL_CODEC);
+  }
+
+  private static void assertRoundTrip(AvroFileFormat format, String codec) throws IOException {
+    List<PrioDataSharePacket> packets = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      packets.add(
+          PrioDataSharePacket.newBuilder()
+              .setDeviceNonce(ByteBuffer.wrap(new byte[] {0x07, 0x08, 0x09}))
+              .setEncryptionKeyId("key1")
+              .setRPit(i)
+              .setUuid("uuid" + i)
+              .setVersionConfiguration("v1.0")
+              .setEncryptedPayload(ByteBuffer.wrap(new byte[] {0x01, 0x02, 0x03, 0x04, 0x05}))
+              .build());
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PrioSerializationHelper.writeRecords(
+        packets,
+        PrioDataSharePacket.class,
+        PrioDataSharePacket.getClassSchema(),
+        null,
+        format,
+        out);
+    byte[] file = out.toByteArray();
+
+    try (DataFileReader<PrioDataSharePacket> reader =
+        new DataFileReader<>(
+            new SeekableByteArrayInput(file),
+            new SpecificDatumReader<>(PrioDataSharePacket.class))) {
+      assertThat(reader.getMetaString(DataFileConstants.CODEC)).isEqualTo(codec);
+    }
+    assertThat(PrioSerializationHelper.deserializeRecords(PrioDataSharePacket.class, file))
+        .isEqualTo(packets);
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link BatchLedger}. */
+@RunWith(JUnit4.class)
+public class BatchLedgerTest {
+
+  @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @Test
+  public void testCommit() throws Exception {
+    BatchLedger ledger = new BatchLedger(tmpFolder.getRoot().getAbsolutePath());
+    String aggregateId = "metric/2020/09/13/13/26/";
+    UUID batchUuid = UUID.nameUUIDFromBytes(new byte[] {1});
+    Map<String, byte[]> destinations = new LinkedHashMap<>();
+    destinations.put("gs://pha/" + aggregateId + batchUuid, new byte[] {1, 2});
+    destinations.put("s3://facilitator/" + aggregateId + batchUuid, new byte[] {(byte) 0xff});
+
+    assertThat(ledger.isCommitted(aggregateId, batchUuid)).isFalse();
+    assertThat(ledger.read(aggregateId, batchUuid)).isNull();
+
+    ledger.commit(
+        aggregateId,
+        new BatchLedger.Record("metric", 1600000000L, 3600L, batchUuid, 10, destinations));
+
+    assertThat(ledger.isCommitted(aggregateId, batchUuid)).isTrue();
+    assertThat(ledger.isCommitted(aggregateId, UUID.nameUUIDFromBytes(new byte[] {2}))).isFalse();
+    BatchLedger.Record record = ledger.read(aggregateId, batchUuid);
+    assertThat(record.getMetric()).isEqualTo("metric");
+    assertThat(record.getStartTime()).isEqualTo(1600000000L);
+    assertThat(record.getDuration()).isEqualTo(3600L);
+    assertThat(record.getBatchUuid()).isEqualTo(batchUuid);
+    assertThat(record.getShareCount()).isEqualTo(10);
+    assertThat(record.getDestinations().keySet())
+        .containsExactlyElementsIn(destinations.keySet())
+        .inOrder();
+    assertThat(record.getDestinations().get("s3://facilitator/" + aggregateId + batchUuid))
+        .isEqualTo(new byte[] {(byte) 0xff});
+  }
+}
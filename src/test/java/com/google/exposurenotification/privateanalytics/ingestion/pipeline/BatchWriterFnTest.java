@@ -0,0 +1,472 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.base.Throwables;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.EncryptedShare;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShareBatchCoder;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.abetterinternet.prio.v1.PrioBatchSignature;
+import org.abetterinternet.prio.v1.PrioDataSharePacket;
+import org.abetterinternet.prio.v1.PrioIngestionHeader;
+import org.apache.beam.sdk.Pipeline.PipelineExecutionException;
+import org.apache.beam.sdk.PipelineResult;
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.SerializableCoder;
+import org.apache.beam.sdk.metrics.MetricNameFilter;
+import org.apache.beam.sdk.metrics.MetricResult;
+import org.apache.beam.sdk.metrics.MetricsFilter;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.values.KV;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link BatchWriterFn}. */
+@RunWith(JUnit4.class)
+public class BatchWriterFnTest {
+
+  public transient IngestionPipelineOptions options =
+      TestPipeline.testingPipelineOptions().as(IngestionPipelineOptions.class);
+
+  @Rule public final transient TestPipeline pipeline = TestPipeline.fromOptions(options);
+
+  @Rule public transient TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @Test
+  public void testWriteBatch() throws Exception {
+    KeyPair keyPair = LocalBatchSignerTest.generateKeyPair();
+    File phaDir = tmpFolder.newFolder("pha");
+    File facilitatorDir = tmpFolder.newFolder("facilitator");
+    setUpOutputs(phaDir, facilitatorDir, keyPair);
+
+    writeBatch(3);
+    pipeline.run().waitUntilFinish();
+
+    for (File dir : new File[] {phaDir, facilitatorDir}) {
+      String prefix = batchPrefix(dir);
+      List<PrioDataSharePacket> packets =
+          PrioSerializationHelper.deserializeRecords(
+              PrioDataSharePacket.class, prefix + BatchWriterFn.DATASHARE_PACKET_SUFFIX);
+      assertThat(packets).hasSize(3);
+      List<PrioIngestionHeader> header =
+          PrioSerializationHelper.deserializeRecords(
+              PrioIngestionHeader.class, prefix + BatchWriterFn.INGESTION_HEADER_SUFFIX);
+      assertThat(header.get(0).getName().toString()).isEqualTo("metric");
+      List<PrioBatchSignature> signature =
+          PrioSerializationHelper.deserializeRecords(
+              PrioBatchSignature.class, prefix + BatchWriterFn.HEADER_SIGNATURE_SUFFIX);
+      assertThat(signature.get(0).getKeyIdentifier().toString())
+          .isEqualTo(options.getSigningKeyFile());
+      assertThat(
+              LocalBatchSignerTest.verify(
+                  keyPair,
+                  Files.readAllBytes(
+                      new File(prefix + BatchWriterFn.INGESTION_HEADER_SUFFIX).toPath()),
+                  toArray(signature.get(0).getBatchHeaderSignature())))
+          .isTrue();
+    }
+  }
+
+  @Test
+  public void testSkipIdenticalBatches() throws Exception {
+    File phaDir = tmpFolder.newFolder("pha");
+    File facilitatorDir = tmpFolder.newFolder("facilitator");
+    setUpOutputs(phaDir, facilitatorDir, LocalBatchSignerTest.generateKeyPair());
+    options.setSkipIdenticalBatches(true);
+
+    writeBatch(3);
+    pipeline.run().waitUntilFinish();
+    File signatureFile = new File(batchPrefix(phaDir) + BatchWriterFn.HEADER_SIGNATURE_SUFFIX);
+    byte[] firstSignature = Files.readAllBytes(signatureFile.toPath());
+
+    // Rerun the same batch, as a retried bundle would
+    PipelineResult result = pipeline.run();
+    result.waitUntilFinish();
+
+    assertThat(counter(result, "skippedIdenticalBatches")).isEqualTo(2);
+    // ECDSA signatures are randomized, so the signature would differ if written again
+    assertThat(Files.readAllBytes(signatureFile.toPath())).isEqualTo(firstSignature);
+  }
+
+  @Test
+  public void testLedger() throws Exception {
+    File phaDir = tmpFolder.newFolder("pha");
+    File facilitatorDir = tmpFolder.newFolder("facilitator");
+    File ledgerDir = tmpFolder.newFolder("ledger");
+    setUpOutputs(phaDir, facilitatorDir, LocalBatchSignerTest.generateKeyPair());
+    options.setLedgerOutput(ledgerDir.getAbsolutePath());
+
+    writeBatch(3);
+    pipeline.run().waitUntilFinish();
+    File signatureFile = new File(batchPrefix(phaDir) + BatchWriterFn.HEADER_SIGNATURE_SUFFIX);
+    byte[] firstSignature = Files.readAllBytes(signatureFile.toPath());
+
+    List<String> records = new ArrayList<>();
+    try (Stream<Path> paths = Files.walk(ledgerDir.toPath())) {
+      paths
+          .map(Path::toString)
+          .filter(path -> path.endsWith(BatchLedger.LEDGER_SUFFIX))
+          .forEach(records::add);
+    }
+    assertThat(records).hasSize(1);
+    BatchLedger.Record record =
+        BatchLedger.Record.fromJson(new String(Files.readAllBytes(Path.of(records.get(0)))));
+    assertThat(record.getMetric()).isEqualTo("metric");
+    assertThat(record.getShareCount()).isEqualTo(3);
+    assertThat(record.getDestinations().keySet())
+        .containsExactly(batchPrefix(phaDir), batchPrefix(facilitatorDir))
+        .inOrder();
+
+    // A rerun skips the committed batch altogether
+    PipelineResult result = pipeline.run();
+    result.waitUntilFinish();
+
+    assertThat(counter(result, "skippedCommittedBatches")).isEqualTo(1);
+    assertThat(Files.readAllBytes(signatureFile.toPath())).isEqualTo(firstSignature);
+  }
+
+  @Test
+  public void testPacketFileParts() throws Exception {
+    File phaDir = tmpFolder.newFolder("pha");
+    File facilitatorDir = tmpFolder.newFolder("facilitator");
+    setUpOutputs(phaDir, facilitatorDir, LocalBatchSignerTest.generateKeyPair());
+    options.setPacketFileBlockSize(64L);
+    options.setPacketFilePartSize(256L);
+    options.setPhaPacketFileParts(true);
+    options.setSkipIdenticalBatches(true);
+
+    writeBatch(50);
+    PipelineResult result = pipeline.run();
+    result.waitUntilFinish();
+
+    String prefix = batchPrefix(phaDir);
+    assertThat(new File(prefix + BatchWriterFn.DATASHARE_PACKET_SUFFIX).exists()).isFalse();
+    byte[] manifestBytes =
+        Files.readAllBytes(Path.of(prefix + BatchWriterFn.PACKET_MANIFEST_SUFFIX));
+    PacketFileManifest manifest = PacketFileManifest.fromBytes(manifestBytes);
+    assertThat(manifest.getParts().size()).isGreaterThan(1);
+    assertThat(counter(result, "packetFileParts")).isEqualTo(manifest.getParts().size());
+    List<PrioDataSharePacket> packets = new ArrayList<>();
+    for (PacketFileManifest.Part part : manifest.getParts()) {
+      byte[] contents = Files.readAllBytes(Path.of(prefix).resolveSibling(part.getFilename()));
+      assertThat(contents).hasLength((int) part.getSize());
+      assertThat(MessageDigest.getInstance("SHA-256").digest(contents)).isEqualTo(part.getDigest());
+      List<PrioDataSharePacket> partPackets =
+          PrioSerializationHelper.deserializeRecords(PrioDataSharePacket.class, contents);
+      assertThat(partPackets).hasSize((int) part.getPacketCount());
+      packets.addAll(partPackets);
+    }
+    assertThat(packets).hasSize(50);
+    // The header signs the manifest, which holds the digests of the parts
+    PrioIngestionHeader header =
+        PrioSerializationHelper.deserializeRecords(
+                PrioIngestionHeader.class, prefix + BatchWriterFn.INGESTION_HEADER_SUFFIX)
+            .get(0);
+    assertThat(toArray(header.getPacketFileDigest()))
+        .isEqualTo(MessageDigest.getInstance("SHA-256").digest(manifestBytes));
+    // Destinations which don't declare support get a single packet file
+    assertThat(
+            PrioSerializationHelper.deserializeRecords(
+                PrioDataSharePacket.class,
+                batchPrefix(facilitatorDir) + BatchWriterFn.DATASHARE_PACKET_SUFFIX))
+        .hasSize(50);
+
+    // A retry computes the same manifest, without writing the parts again
+    result = pipeline.run();
+    result.waitUntilFinish();
+    assertThat(counter(result, "skippedIdenticalBatches")).isEqualTo(2);
+  }
+
+  @Test
+  public void testParallelDestinationWrites() throws Exception {
+    File phaDir = tmpFolder.newFolder("pha");
+    File facilitatorDir = tmpFolder.newFolder("facilitator");
+    setUpOutputs(phaDir, facilitatorDir, LocalBatchSignerTest.generateKeyPair());
+    options.setParallelDestinationWrites(true);
+
+    writeBatch(3);
+    PipelineResult result = pipeline.run();
+    result.waitUntilFinish();
+
+    for (File dir : new File[] {phaDir, facilitatorDir}) {
+      String prefix = batchPrefix(dir);
+      assertThat(
+              PrioSerializationHelper.deserializeRecords(
+                  PrioDataSharePacket.class, prefix + BatchWriterFn.DATASHARE_PACKET_SUFFIX))
+          .hasSize(3);
+      assertThat(new File(prefix + BatchWriterFn.HEADER_SIGNATURE_SUFFIX).exists()).isTrue();
+    }
+    assertThat(counter(result, "successfulBatches")).isEqualTo(1);
+    assertThat(counter(result, "failedBatches")).isEqualTo(0);
+  }
+
+  @Test
+  public void testParallelDestinationWritesFailure() throws Exception {
+    File phaDir = tmpFolder.newFolder("pha");
+    // Files can't be created below a regular file
+    File facilitatorDir = new File(tmpFolder.newFile("facilitator"), "dir");
+    setUpOutputs(phaDir, facilitatorDir, LocalBatchSignerTest.generateKeyPair());
+    options.setParallelDestinationWrites(true);
+
+    writeBatch(3);
+    PipelineResult result = pipeline.run();
+    result.waitUntilFinish();
+
+    assertThat(counter(result, "failedBatches")).isEqualTo(1);
+    assertThat(counter(result, "failedDataShares")).isEqualTo(3);
+    assertThat(counter(result, "successfulBatches")).isEqualTo(0);
+  }
+
+  @Test
+  public void testBatchWritesInFlight() throws Exception {
+    File phaDir = tmpFolder.newFolder("pha");
+    File facilitatorDir = tmpFolder.newFolder("facilitator");
+    setUpOutputs(phaDir, facilitatorDir, LocalBatchSignerTest.generateKeyPair());
+    options.setBatchWritesInFlight(2L);
+
+    List<KV<DataShareMetadata, Iterable<DataShare>>> batches = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      batches.add(batch("metric" + i, 3));
+    }
+    writeBatches(batches);
+    PipelineResult result = pipeline.run();
+    result.waitUntilFinish();
+
+    // All batches are written once their bundles finish
+    for (File dir : new File[] {phaDir, facilitatorDir}) {
+      assertThat(filesWithSuffix(dir, BatchWriterFn.DATASHARE_PACKET_SUFFIX)).hasSize(5);
+      assertThat(filesWithSuffix(dir, BatchWriterFn.INGESTION_HEADER_SUFFIX)).hasSize(5);
+      assertThat(filesWithSuffix(dir, BatchWriterFn.HEADER_SIGNATURE_SUFFIX)).hasSize(5);
+    }
+    assertThat(counter(result, "successfulBatches")).isEqualTo(5);
+  }
+
+  @Test
+  public void testBatchWritesInFlightFailure() throws Exception {
+    File phaDir = tmpFolder.newFolder("pha");
+    File facilitatorDir = tmpFolder.newFolder("facilitator");
+    setUpOutputs(phaDir, facilitatorDir, LocalBatchSignerTest.generateKeyPair());
+    options.setBatchWritesInFlight(2L);
+
+    List<KV<DataShareMetadata, Iterable<DataShare>>> batches = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      batches.add(batch("metric" + i, 3));
+    }
+    // Packets require a uuid, so serializing this batch fails on the writer thread
+    batches.add(batch("invalid", List.of(share(null, 0))));
+    writeBatches(batches);
+
+    PipelineExecutionException e = assertThrows(PipelineExecutionException.class, pipeline::run);
+    assertThat(
+            Throwables.getCausalChain(e).stream()
+                .map(Throwable::getMessage)
+                .collect(Collectors.toList()))
+        .contains("Failed to write batch");
+  }
+
+  private void setUpOutputs(File phaDir, File facilitatorDir, KeyPair keyPair) throws Exception {
+    options.setStartTime(1600000000L);
+    options.setDuration(3600L);
+    options.setPhaOutput(phaDir.getAbsolutePath());
+    options.setFacilitatorOutput(facilitatorDir.getAbsolutePath());
+    options.setBatchSigner(LocalBatchSigner.NAME);
+    options.setSigningKeyFile(
+        LocalBatchSignerTest.writePemKey(tmpFolder.newFile("key.pem"), keyPair).getAbsolutePath());
+  }
+
+  private void writeBatch(int size) {
+    writeBatches(List.of(batch("metric", size)));
+  }
+
+  private void writeBatches(List<KV<DataShareMetadata, Iterable<DataShare>>> batches) {
+    pipeline
+        .apply(
+            Create.of(batches)
+                .withCoder(
+                    KvCoder.of(
+                        SerializableCoder.of(DataShareMetadata.class), DataShareBatchCoder.of())))
+        .apply(ParDo.of(new BatchWriterFn()));
+  }
+
+  private static KV<DataShareMetadata, Iterable<DataShare>> batch(String metricName, int size) {
+    List<DataShare> shares = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      shares.add(share("uuid" + i, i));
+    }
+    return batch(metricName, shares);
+  }
+
+  private static KV<DataShareMetadata, Iterable<DataShare>> batch(
+      String metricName, List<DataShare> shares) {
+    DataShareMetadata metadata =
+        DataShareMetadata.builder()
+            .setMetricName(metricName)
+            .setBatchId("batch")
+            .setEpsilon(1.0)
+            .setPrime(4293918721L)
+            .setBins(2)
+            .setNumberOfServers(2)
+            .setHammingWeight(1)
+            .build();
+    return KV.of(metadata, shares);
+  }
+
+  private static DataShare share(@Nullable String uuid, int i) {
+    return DataShare.builder()
+        .setUuid(uuid)
+        .setRPit(i)
+        .setEncryptedDataShares(
+            List.of(
+                EncryptedShare.builder()
+                    .setEncryptedPayload(("pha" + i).getBytes())
+                    .setEncryptionKeyId("pha-key")
+                    .build(),
+                EncryptedShare.builder()
+                    .setEncryptedPayload(("facilitator" + i).getBytes())
+                    .setEncryptionKeyId("facilitator-key")
+                    .build()))
+        .build();
+  }
+
+  private static List<String> filesWithSuffix(File dir, String suffix) throws IOException {
+    List<String> files = new ArrayList<>();
+    try (Stream<Path> paths = Files.walk(dir.toPath())) {
+      paths.map(Path::toString).filter(path -> path.endsWith(suffix)).forEach(files::add);
+    }
+    return files;
+  }
+
+  /** @return path of the files of the single batch written to a directory, without suffix */
+  private static String batchPrefix(File dir) throws IOException {
+    List<String> headers = filesWithSuffix(dir, BatchWriterFn.INGESTION_HEADER_SUFFIX);
+    assertThat(headers).hasSize(1);
+    return headers
+        .get(0)
+        .substring(0, headers.get(0).length() - BatchWriterFn.INGESTION_HEADER_SUFFIX.length());
+  }
+
+  /** @return value of the counter, 0 if it was never incremented */
+  private static long counter(PipelineResult result, String name) {
+    Iterator<MetricResult<Long>> counters =
+        result
+            .metrics()
+            .queryMetrics(
+                MetricsFilter.builder()
+                    .addNameFilter(MetricNameFilter.named(BatchWriterFn.class, name))
+                    .build())
+            .getCounters()
+            .iterator();
+    return counters.hasNext() ? counters.next().getCommitted() : 0;
+  }
+
+  private static byte[] toArray(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  @Test
+  public void testWriteConcurrentlyCancelsWritesWhenInterrupted() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    CountDownLatch started = new CountDownLatch(2);
+    CountDownLatch cancelled = new CountDownLatch(2);
+    BatchWriterFn.BatchWrite write =
+        () -> {
+          started.countDown();
+          try {
+            Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+          } catch (InterruptedException e) {
+            cancelled.countDown();
+          }
+        };
+    AtomicReference<Throwable> thrown = new AtomicReference<>();
+    Thread writer =
+        new Thread(
+            () -> {
+              try {
+                BatchWriterFn.writeConcurrently(executor, write, write);
+              } catch (Throwable e) {
+                thrown.set(e);
+              }
+            });
+    try {
+      writer.start();
+      started.await();
+      writer.interrupt();
+      writer.join(TimeUnit.SECONDS.toMillis(10));
+
+      assertThat(cancelled.await(10, TimeUnit.SECONDS)).isTrue();
+      assertThat(thrown.get()).isInstanceOf(IOException.class);
+      assertThat(thrown.get()).hasCauseThat().isInstanceOf(InterruptedException.class);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testCanonicalOrder() {
+    List<DataShare> shares = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      shares.add(DataShare.builder().setUuid("uuid" + i).setPath("path" + i).build());
+    }
+    // "Aa" and "BB" have the same String hash code
+    shares.add(DataShare.builder().setUuid("BB").setPath("pathBB").build());
+    shares.add(DataShare.builder().setUuid("Aa").setPath("pathAa").build());
+    shares.add(DataShare.builder().setPath("noUuid").build());
+
+    List<String> expected = uuidsInOrder(shares);
+    Collections.shuffle(shares, new Random(1));
+    assertThat(uuidsInOrder(shares)).isEqualTo(expected);
+    assertThat(expected.indexOf("Aa")).isEqualTo(expected.indexOf("BB") - 1);
+  }
+
+  private static List<String> uuidsInOrder(List<DataShare> shares) {
+    List<String> uuids = new ArrayList<>();
+    for (int index : BatchWriterFn.canonicalOrder(shares)) {
+      uuids.add(String.valueOf(shares.get(index).getUuid()));
+    }
+    return uuids;
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
+import com.google.exposurenotification.privateanalytics.ingestion.pipeline.BatchingPolicy.Limits;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.beam.sdk.testing.PAssert;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link BatchingPolicy}. */
+@RunWith(JUnit4.class)
+public class BatchingPolicyTest {
+
+  private static final String POLICY =
+      "{\"metrics\": {\"bigMetric\": {\"batchSize\": 3, \"shards\": 0}},"
+          + " \"bins\": [{\"minBins\": 100, \"maxBins\": 1000, \"maxBytes\": 4096},"
+          + " {\"minBins\": 500, \"batchSize\": 7}]}";
+
+  public transient IngestionPipelineOptions options =
+      TestPipeline.testingPipelineOptions().as(IngestionPipelineOptions.class);
+
+  @Rule public final transient TestPipeline pipeline = TestPipeline.fromOptions(options);
+
+  @Rule public final transient TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @Test
+  public void testLimitsFor() {
+    BatchingPolicy policy = BatchingPolicy.of(10, 0, 1).withOverrides(POLICY);
+
+    Limits big = policy.limitsFor(metadata("bigMetric", 500));
+    assertThat(big.getBatchSize()).isEqualTo(3);
+    assertThat(big.getMaxBytes()).isEqualTo(0);
+    assertThat(big.getShards()).isEqualTo(ShardedKeyFn.AUTO_SHARDS);
+
+    // First matching range wins
+    Limits wide = policy.limitsFor(metadata("wideMetric", 500));
+    assertThat(wide.getBatchSize()).isEqualTo(10);
+    assertThat(wide.getMaxBytes()).isEqualTo(4096);
+
+    assertThat(policy.limitsFor(metadata("widestMetric", 5000)).getBatchSize()).isEqualTo(7);
+    assertThat(policy.limitsFor(metadata("smallMetric", 10)))
+        .isSameInstanceAs(policy.getDefaults());
+    assertThat(policy.limitsFor(DataShareMetadata.builder().setMetricName("noBins").build()))
+        .isSameInstanceAs(policy.getDefaults());
+
+    assertThat(policy.usesAutoShards()).isTrue();
+    assertThat(policy.isUniformCount()).isFalse();
+    assertThat(BatchingPolicy.of(10, 0, 1).isUniformCount()).isTrue();
+    assertThat(BatchingPolicy.of(10, 0, 1).usesAutoShards()).isFalse();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidLimits() {
+    BatchingPolicy.of(10, 0, 1).withOverrides("{\"metrics\": {\"m\": {\"batchSize\": -1}}}");
+  }
+
+  @Test
+  public void testPolicyAppliedPerMetric() throws Exception {
+    File policyFile = tmpFolder.newFile("policy.json");
+    Files.write(policyFile.toPath(), POLICY.getBytes(StandardCharsets.UTF_8));
+    options.setStartTime(1L);
+    options.setDuration(2L);
+    options.setBatchSize(100L);
+    options.setBatchingPolicy(policyFile.getPath());
+    options.setDeviceAttestation(false);
+
+    List<DataShare> inputData = new ArrayList<>();
+    for (int i = 0; i < 9; i++) {
+      inputData.add(share("big" + i, metadata("bigMetric", 10)));
+      inputData.add(share("small" + i, metadata("smallMetric", 10)));
+    }
+
+    PCollection<KV<DataShareMetadata, Iterable<DataShare>>> batches =
+        IngestionPipeline.processDataShares(pipeline.apply(Create.of(inputData)));
+
+    PAssert.that(batches)
+        .satisfies(
+            values -> {
+              int bigShares = 0;
+              int smallBatches = 0;
+              for (KV<DataShareMetadata, Iterable<DataShare>> batch : values) {
+                int size = 0;
+                for (DataShare unused : batch.getValue()) {
+                  size++;
+                }
+                if ("bigMetric".equals(batch.getKey().getMetricName())) {
+                  assertThat(size).isAtMost(3);
+                  bigShares += size;
+                } else {
+                  assertThat(size).isEqualTo(9);
+                  smallBatches++;
+                }
+              }
+              assertThat(bigShares).isEqualTo(9);
+              assertThat(smallBatches).isEqualTo(1);
+              return null;
+            });
+    pipeline.run().waitUntilFinish();
+  }
+
+  private static DataShareMetadata metadata(String metricName, int bins) {
+    return DataShareMetadata.builder().setMetricName(metricName).setBins(bins).build();
+  }
+
+  private static DataShare share(String path, DataShareMetadata metadata) {
+    return DataShare.builder()
+        .setPath(path)
+        .setCreatedMs(1000L)
+        .setDataShareMetadata(metadata)
+        .build();
+  }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.google.common.io.ByteStreams;
+import com.google.exposurenotification.privateanalytics.ingestion.pipeline.DestinationRegistry.Destination;
+import com.google.exposurenotification.privateanalytics.ingestion.pipeline.DestinationRegistry.S3Destination;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link DestinationRegistry}. */
+@RunWith(JUnit4.class)
+public class DestinationRegistryTest {
+
+  @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @Test
+  public void testForPath() {
+    IngestionPipelineOptions options = PipelineOptionsFactory.as(IngestionPipelineOptions.class);
+    Destination pha = DestinationRegistry.forPath(options, "s3://pha/a/b", "role", "us-west-1");
+
+    assertThat(DestinationRegistry.forPath(options, "s3://pha/c", "role", "us-west-1"))
+        .isSameInstanceAs(pha);
+    assertThat(DestinationRegistry.forPath(options, "s3://pha/a/b", "other", "us-west-1"))
+        .isNotSameInstanceAs(pha);
+    assertThat(DestinationRegistry.forPath(options, "s3://pha/a/b", "role", "eu-west-1"))
+        .isNotSameInstanceAs(pha);
+    assertThat(DestinationRegistry.forPath(options, "s3://facilitator/a", "role", "us-west-1"))
+        .isNotSameInstanceAs(pha);
+    assertThat(DestinationRegistry.forPath(options, "gs://pha/a", "role", "us-west-1"))
+        .isSameInstanceAs(DestinationRegistry.fileSystems());
+
+    IngestionPipelineOptions otherPartSize =
+        PipelineOptionsFactory.as(IngestionPipelineOptions.class);
+    otherPartSize.setS3UploadPartSize(2 * options.getS3UploadPartSize());
+    assertThat(DestinationRegistry.forPath(otherPartSize, "s3://pha/a/b", "role", "us-west-1"))
+        .isNotSameInstanceAs(pha);
+    IngestionPipelineOptions otherConcurrency =
+        PipelineOptionsFactory.as(IngestionPipelineOptions.class);
+    otherConcurrency.setS3UploadConcurrency(options.getS3UploadConcurrency() + 1);
+    assertThat(DestinationRegistry.forPath(otherConcurrency, "s3://pha/a/b", "role", "us-west-1"))
+        .isNotSameInstanceAs(pha);
+    assertThat(
+            DestinationRegistry.forPath(
+                PipelineOptionsFactory.as(IngestionPipelineOptions.class),
+                "s3://pha/a/b",
+                "role",
+                "us-west-1"))
+        .isSameInstanceAs(pha);
+  }
+
+  @Test
+  public void testS3Path() {
+    assertThat(DestinationRegistry.s3Bucket("s3://bucket/some/key")).isEqualTo("bucket");
+    assertThat(DestinationRegistry.s3Key("s3://bucket/some/key")).isEqualTo("some/key");
+    assertThat(DestinationRegistry.s3Bucket("s3://bucket")).isEqualTo("bucket");
+  }
+
+  @Test
+  public void testFileSystemsDestination() throws IOException {
+    File file = new File(tmpFolder.getRoot(), "file");
+    try (WritableByteChannel out =
+        DestinationRegistry.fileSystems().create(file.getAbsolutePath())) {
+      out.write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+    }
+    assertThat(Files.readAllBytes(file.toPath())).isEqualTo(new byte[] {1, 2, 3});
+    assertThat(DestinationRegistry.fileSystems().read(file.getAbsolutePath()))
+        .isEqualTo(new byte[] {1, 2, 3});
+    assertThat(
+            DestinationRegistry.fileSystems()
+                .read(new File(tmpFolder.getRoot(), "missing").getAbsolutePath()))
+        .isNull();
+  }
+
+  @Test
+  public void testS3SingleRequest() throws IOException {
+    FakeS3 s3 = new FakeS3();
+    Destination destination = new S3Destination(s3, "bucket", 10, 1);
+    try (WritableByteChannel out = destination.create("s3://bucket/key")) {
+      out.write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+    }
+    assertThat(s3.objects.get("key")).isEqualTo(new byte[] {1, 2, 3});
+    assertThat(s3.parts).isEmpty();
+    assertThat(destination.read("s3://bucket/key")).isEqualTo(new byte[] {1, 2, 3});
+    assertThat(destination.read("s3://bucket/missing")).isNull();
+  }
+
+  @Test
+  public void testS3MultipartUpload() throws IOException {
+    FakeS3 s3 = new FakeS3();
+    Destination destination = new S3Destination(s3, "bucket", 10, 1);
+    byte[] contents = contents(25);
+    try (WritableByteChannel out = destination.create("s3://bucket/key")) {
+      out.write(ByteBuffer.wrap(contents, 0, 7));
+      out.write(ByteBuffer.wrap(contents, 7, 18));
+    }
+    assertThat(s3.objects.get("key")).isEqualTo(contents);
+    assertThat(s3.maxPartsInFlight).isEqualTo(1);
+  }
+
+  @Test
+  public void testS3ConcurrentMultipartUpload() throws IOException {
+    FakeS3 s3 = new FakeS3();
+    // The first parts are only uploaded once all of them are in flight
+    s3.partsStarted = new CountDownLatch(3);
+    Destination destination = new S3Destination(s3, "bucket", 10, 3);
+    byte[] contents = contents(75);
+    try (WritableByteChannel out = destination.create("s3://bucket/key")) {
+      out.write(ByteBuffer.wrap(contents));
+    }
+    assertThat(s3.objects.get("key")).isEqualTo(contents);
+    assertThat(s3.maxPartsInFlight).isEqualTo(3);
+    assertThat(s3.parts).isEmpty();
+  }
+
+  @Test
+  public void testS3FailedPartAbortsUpload() throws IOException {
+    FakeS3 s3 = new FakeS3();
+    s3.failedPartNumber = 2;
+    Destination destination = new S3Destination(s3, "bucket", 10, 2);
+    WritableByteChannel out = destination.create("s3://bucket/key");
+    IOException e =
+        assertThrows(
+            IOException.class,
+            () -> {
+              out.write(ByteBuffer.wrap(contents(75)));
+              out.close();
+            });
+    assertThat(e).hasCauseThat().isInstanceOf(AmazonS3Exception.class);
+    assertThat(out.isOpen()).isFalse();
+    assertThat(s3.objects).doesNotContainKey("key");
+    assertThat(s3.parts).isEmpty();
+  }
+
+  @Test
+  public void testCheckOptions() {
+    IngestionPipelineOptions options = PipelineOptionsFactory.as(IngestionPipelineOptions.class);
+    DestinationRegistry.checkOptions(options);
+    options.setS3UploadPartSize(1024L);
+    assertThrows(IllegalArgumentException.class, () -> DestinationRegistry.checkOptions(options));
+    options.setS3UploadPartSize(5L << 20);
+    options.setS3UploadConcurrency(0L);
+    assertThrows(IllegalArgumentException.class, () -> DestinationRegistry.checkOptions(options));
+  }
+
+  private static byte[] contents(int size) {
+    byte[] contents = new byte[size];
+    for (int i = 0; i < contents.length; i++) {
+      contents[i] = (byte) i;
+    }
+    return contents;
+  }
+
+  /**
+   * S3 stand-in keeping objects and parts of multipart uploads in memory. Parts are uploaded
+   * concurrently, as S3 accepts them.
+   */
+  static class FakeS3 extends AbstractAmazonS3 {
+
+    final Map<String, byte[]> objects = new HashMap<>();
+    final Map<String, TreeMap<Integer, byte[]>> parts = new HashMap<>();
+    // Part uploads wait for each other to start, if set
+    @Nullable CountDownLatch partsStarted;
+    int failedPartNumber;
+    int maxPartsInFlight;
+    private int partsInFlight;
+
+    @Override
+    public synchronized PutObjectResult putObject(PutObjectRequest request) {
+      objects.put(request.getKey(), read(request.getInputStream()));
+      return new PutObjectResult();
+    }
+
+    @Override
+    public synchronized S3Object getObject(String bucketName, String key) {
+      byte[] contents = objects.get(key);
+      if (contents == null) {
+        AmazonS3Exception notFound = new AmazonS3Exception("Not found");
+        notFound.setStatusCode(404);
+        throw notFound;
+      }
+      S3Object object = new S3Object();
+      object.setObjectContent(new ByteArrayInputStream(contents));
+      return object;
+    }
+
+    @Override
+    public synchronized InitiateMultipartUploadResult initiateMultipartUpload(
+        InitiateMultipartUploadRequest request) {
+      InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+      result.setUploadId(request.getKey() + "-upload");
+      parts.put(result.getUploadId(), new TreeMap<>());
+      return result;
+    }
+
+    @Override
+    public UploadPartResult uploadPart(UploadPartRequest request) {
+      synchronized (this) {
+        maxPartsInFlight = Math.max(maxPartsInFlight, ++partsInFlight);
+      }
+      try {
+        if (partsStarted != null) {
+          partsStarted.countDown();
+          assertThat(partsStarted.await(10, TimeUnit.SECONDS)).isTrue();
+        }
+        if (request.getPartNumber() == failedPartNumber) {
+          throw new AmazonS3Exception("Part failed");
+        }
+        byte[] part = read(request.getInputStream());
+        synchronized (this) {
+          parts.get(request.getUploadId()).put(request.getPartNumber(), part);
+        }
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      } finally {
+        synchronized (this) {
+          partsInFlight--;
+        }
+      }
+      UploadPartResult result = new UploadPartResult();
+      result.setPartNumber(request.getPartNumber());
+      result.setETag("etag" + request.getPartNumber());
+      return result;
+    }
+
+    @Override
+    public synchronized CompleteMultipartUploadResult completeMultipartUpload(
+        CompleteMultipartUploadRequest request) {
+      TreeMap<Integer, byte[]> uploaded = parts.remove(request.getUploadId());
+      ByteArrayOutputStream object = new ByteArrayOutputStream();
+      for (PartETag partETag : request.getPartETags()) {
+        object.writeBytes(uploaded.get(partETag.getPartNumber()));
+      }
+      objects.put(request.getKey(), object.toByteArray());
+      return new CompleteMultipartUploadResult();
+    }
+
+    @Override
+    public synchronized void abortMultipartUpload(AbortMultipartUploadRequest request) {
+      parts.remove(request.getUploadId());
+    }
+
+    private static byte[] read(InputStream in) {
+      try {
+        return ByteStreams.toByteArray(in);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+}
@@ -15,6 +15,8 @@
  */
 package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
 
+import static com.google.common.truth.Truth.assertThat;
+
 import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare;
 import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
 import java.util.ArrayList;
@@ -107,4 +109,73 @@ public class IngestionPipelineTest {
     PAssert.that(actualOutput.apply(Values.create())).containsInAnyOrder(expectedValues);
     pipeline.run().waitUntilFinish();
   }
+
+  @Test
+  public void testContentBatchId() {
+    DataShareMetadata meta = DataShareMetadata.builder().setMetricName("sampleMetric").build();
+    DataShare share1 = DataShare.builder().setUuid("uuid1").setPath("id1").build();
+    DataShare share2 = DataShare.builder().setUuid("uuid2").setPath("id2").build();
+    DataShare share3 = DataShare.builder().setPath("id3").build();
+
+    String batchId =
+        IngestionPipeline.contentBatchId(meta, Arrays.asList(share1, share2, share3), 1L, 2L);
+    assertThat(
+            IngestionPipeline.contentBatchId(meta, Arrays.asList(share3, share2, share1), 1L, 2L))
+        .isEqualTo(batchId);
+    assertThat(IngestionPipeline.contentBatchId(meta, Arrays.asList(share1, share2), 1L, 2L))
+        .isNotEqualTo(batchId);
+    assertThat(
+            IngestionPipeline.contentBatchId(meta, Arrays.asList(share1, share2, share3), 3L, 2L))
+        .isNotEqualTo(batchId);
+    assertThat(
+            IngestionPipeline.contentBatchId(
+                meta.toBuilder().setMetricName("otherMetric").build(),
+                Arrays.asList(share1, share2, share3),
+                1L,
+                2L))
+        .isNotEqualTo(batchId);
+  }
+
+  @Test
+  public void testQuarantinePrefix() {
+    // 2020-09-13T12:26:40Z
+    long endTime = 1_600_000_000L;
+    assertThat(IngestionPipeline.quarantinePrefix("gs://bucket/quarantine", endTime))
+        .isEqualTo("gs://bucket/quarantine/2020/09/13/12/26/invalid-documents");
+    assertThat(IngestionPipeline.quarantinePrefix("gs://bucket/quarantine/", endTime))
+        .isEqualTo("gs://bucket/quarantine/2020/09/13/12/26/invalid-documents");
+  }
+
+  @Test
+  public void processDataSharesDeterministicBatchIds() {
+    options.setStartTime(1L);
+    options.setDuration(2L);
+    options.setBatchSize(10L);
+    options.setDeterministicBatchIds(true);
+    options.setDeviceAttestation(false);
+
+    DataShareMetadata meta = DataShareMetadata.builder().setMetricName("sampleMetric").build();
+    List<DataShare> inputData =
+        Arrays.asList(
+            DataShare.builder()
+                .setUuid("uuid1")
+                .setPath("id1")
+                .setCreatedMs(1000L)
+                .setDataShareMetadata(meta)
+                .build(),
+            DataShare.builder()
+                .setUuid("uuid2")
+                .setPath("id2")
+                .setCreatedMs(2000L)
+                .setDataShareMetadata(meta)
+                .build());
+
+    PCollection<KV<DataShareMetadata, Iterable<DataShare>>> actualOutput =
+        IngestionPipeline.processDataShares(pipeline.apply(Create.of(inputData)));
+
+    String expectedBatchId = IngestionPipeline.contentBatchId(meta, inputData, 1L, 2L);
+    PAssert.that(actualOutput.apply(Keys.create()))
+        .containsInAnyOrder(meta.toBuilder().setBatchId(expectedBatchId).build());
+    pipeline.run().waitUntilFinish();
+  }
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.ConstructDataSharesFn;
+import com.google.exposurenotification.privateanalytics.ingestion.pipeline.InvalidDocumentQuarantine.QuarantineReader;
+import com.google.exposurenotification.privateanalytics.ingestion.pipeline.InvalidDocumentQuarantine.QuarantineWriter;
+import com.google.firestore.v1.Document;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.beam.sdk.testing.PAssert;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Count;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.transforms.Flatten;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.values.PCollectionTuple;
+import org.apache.beam.sdk.values.TupleTagList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link InvalidDocumentQuarantine}. */
+@RunWith(JUnit4.class)
+public class InvalidDocumentQuarantineTest {
+
+  @Rule public final transient TestPipeline pipeline = TestPipeline.create();
+
+  @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @Test
+  public void testQuarantineIsRateLimited() throws IOException {
+    List<Document> invalidDocuments = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      invalidDocuments.add(Document.newBuilder().setName("path/" + i + "/metric").build());
+    }
+    PCollectionTuple constructed =
+        pipeline
+            // Flattening a single element keeps all documents in one bundle.
+            .apply(Create.of(Collections.singletonList(invalidDocuments)))
+            .apply(Flatten.iterables())
+            .apply(
+                ParDo.of(new ConstructDataSharesFn(2))
+                    .withOutputTags(
+                        ConstructDataSharesFn.DATA_SHARES,
+                        TupleTagList.of(ConstructDataSharesFn.INVALID_DOCUMENTS)));
+    PAssert.thatSingleton(
+            constructed
+                .get(ConstructDataSharesFn.DATA_SHARES)
+                .apply("CountShares", Count.globally()))
+        .isEqualTo(0L);
+    String prefix = tmpFolder.getRoot().getAbsolutePath() + "/invalid-documents";
+    constructed
+        .get(ConstructDataSharesFn.INVALID_DOCUMENTS)
+        .apply(new QuarantineWriter(prefix, true));
+    pipeline.run().waitUntilFinish();
+
+    List<GenericRecord> records = new ArrayList<>();
+    for (File file : tmpFolder.getRoot().listFiles()) {
+      if (!file.getName().startsWith("invalid-documents")) {
+        continue;
+      }
+      try (DataFileReader<GenericRecord> reader =
+          new DataFileReader<>(file, new GenericDatumReader<>(InvalidDocumentQuarantine.SCHEMA))) {
+        assertThat(reader.getMetaString("avro.codec")).isEqualTo("deflate");
+        reader.forEach(records::add);
+      }
+    }
+    assertThat(records).hasSize(2);
+    for (GenericRecord record : records) {
+      Document document =
+          Document.parseFrom((ByteBuffer) record.get(InvalidDocumentQuarantine.DOCUMENT));
+      assertThat(invalidDocuments).contains(document);
+      assertThat(record.get(InvalidDocumentQuarantine.NAME).toString())
+          .isEqualTo(document.getName());
+      assertThat(record.get(InvalidDocumentQuarantine.REASON).toString())
+          .isEqualTo("Missing required field: payload");
+    }
+  }
+
+  @Test
+  public void testReadQuarantine() throws IOException {
+    Document document = Document.newBuilder().setName("path/metric").build();
+    File file = tmpFolder.newFile("invalid-documents.avro");
+    try (DataFileWriter<GenericRecord> writer =
+        new DataFileWriter<>(new GenericDatumWriter<>(InvalidDocumentQuarantine.SCHEMA))) {
+      writer.create(InvalidDocumentQuarantine.SCHEMA, file);
+      GenericRecord withDocument = new GenericData.Record(InvalidDocumentQuarantine.SCHEMA);
+      withDocument.put(InvalidDocumentQuarantine.NAME, document.getName());
+      withDocument.put(InvalidDocumentQuarantine.REASON, "reason");
+      withDocument.put(InvalidDocumentQuarantine.DOCUMENT, ByteBuffer.wrap(document.toByteArray()));
+      writer.append(withDocument);
+      GenericRecord withoutDocument = new GenericData.Record(InvalidDocumentQuarantine.SCHEMA);
+      withoutDocument.put(InvalidDocumentQuarantine.NAME, "other/metric");
+      withoutDocument.put(InvalidDocumentQuarantine.REASON, "reason");
+      writer.append(withoutDocument);
+    }
+
+    PAssert.that(pipeline.apply(new QuarantineReader(file.getAbsolutePath())))
+        .containsInAnyOrder(document);
+    pipeline.run().waitUntilFinish();
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.core.BackgroundResource;
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.api.gax.rpc.UnaryCallable;
+import com.google.cloud.kms.v1.AsymmetricSignRequest;
+import com.google.cloud.kms.v1.AsymmetricSignResponse;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import com.google.exposurenotification.privateanalytics.ingestion.pipeline.BatchSigner.Signature;
+import com.google.exposurenotification.privateanalytics.ingestion.pipeline.KmsBatchSigner.SharedClient;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for the limits on sign requests of {@link KmsBatchSigner}. */
+@RunWith(JUnit4.class)
+public class KmsBatchSignerTest {
+
+  private static final CryptoKeyVersionName KEY =
+      CryptoKeyVersionName.of("project", "location", "keyRing", "key", "1");
+  private static final byte[] DIGEST = "digest".getBytes(StandardCharsets.UTF_8);
+  private static final long TIMEOUT_SECONDS = 10;
+
+  private FakeKms kms;
+  private SharedClient client;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    kms = new FakeKms();
+    client = new SharedClient(kms, kms);
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    client.shutdown();
+    assertThat(kms.isShutdown()).isTrue();
+  }
+
+  @Test
+  public void testSignSynchronously() throws Exception {
+    client.setLimits(0, 0);
+
+    assertThat(client.sign(KEY, DIGEST).get()).isEqualTo(DIGEST);
+    assertThat(kms.requestTimes).hasSize(1);
+  }
+
+  @Test
+  public void testSignAsynchronously() throws Exception {
+    client.setLimits(1, 0);
+    kms.respond = false;
+
+    Signature signature = client.sign(KEY, DIGEST);
+    kms.pending.get(0).set(response(DIGEST));
+
+    assertThat(signature.get()).isEqualTo(DIGEST);
+  }
+
+  @Test
+  public void testPermitReleasedWhenSignFails() throws Exception {
+    client.setLimits(1, 0);
+    kms.respond = false;
+
+    Signature signature = client.sign(KEY, DIGEST);
+    kms.pending.get(0).setException(new IllegalStateException("quota exceeded"));
+
+    IOException e = assertThrows(IOException.class, signature::get);
+    assertThat(e).hasCauseThat().hasMessageThat().isEqualTo("quota exceeded");
+    kms.respond = true;
+    assertThat(signInBackground().get(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isEqualTo(DIGEST);
+  }
+
+  @Test
+  public void testPermitReleasedWhenRequestThrows() throws Exception {
+    client.setLimits(1, 0);
+    kms.failure = new IllegalStateException("channel closed");
+
+    assertThrows(IllegalStateException.class, () -> client.sign(KEY, DIGEST));
+    kms.failure = null;
+    assertThat(signInBackground().get(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isEqualTo(DIGEST);
+  }
+
+  @Test
+  public void testSignsInFlightLimited() throws Exception {
+    client.setLimits(2, 0);
+    kms.respond = false;
+    Signature first = client.sign(KEY, DIGEST);
+    client.sign(KEY, DIGEST);
+
+    Future<byte[]> third =
+        executor.submit(
+            () -> {
+              Signature signature = client.sign(KEY, DIGEST);
+              kms.pending.get(2).set(response(DIGEST));
+              return signature.get();
+            });
+    assertThrows(TimeoutException.class, () -> third.get(200, TimeUnit.MILLISECONDS));
+    assertThat(kms.requestTimes).hasSize(2);
+
+    kms.pending.get(0).set(response(DIGEST));
+    assertThat(first.get()).isEqualTo(DIGEST);
+    assertThat(third.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isEqualTo(DIGEST);
+    assertThat(kms.requestTimes).hasSize(3);
+  }
+
+  @Test
+  public void testSignsPerSecondLimited() throws Exception {
+    int signsPerSecond = 20;
+    int requests = 11;
+    client.setLimits(0, signsPerSecond);
+
+    for (int i = 0; i < requests; i++) {
+      client.sign(KEY, DIGEST).get();
+    }
+
+    // The first requests may use the permits stored since the limiter was created.
+    long elapsedMs =
+        TimeUnit.NANOSECONDS.toMillis(kms.requestTimes.get(requests - 1) - kms.requestTimes.get(0));
+    assertThat(elapsedMs).isAtLeast(TimeUnit.SECONDS.toMillis(requests - 3) / signsPerSecond);
+  }
+
+  private Future<byte[]> signInBackground() {
+    return executor.submit(() -> client.sign(KEY, DIGEST).get());
+  }
+
+  private static AsymmetricSignResponse response(byte[] signature) {
+    return AsymmetricSignResponse.newBuilder().setSignature(ByteString.copyFrom(signature)).build();
+  }
+
+  /** Answers sign requests with their digest, or leaves them pending. */
+  private static class FakeKms extends UnaryCallable<AsymmetricSignRequest, AsymmetricSignResponse>
+      implements BackgroundResource {
+
+    final List<Long> requestTimes = Collections.synchronizedList(new ArrayList<>());
+    final List<SettableApiFuture<AsymmetricSignResponse>> pending =
+        Collections.synchronizedList(new ArrayList<>());
+    volatile boolean respond = true;
+    @Nullable volatile RuntimeException failure;
+    private volatile boolean shutdown;
+
+    @Override
+    public ApiFuture<AsymmetricSignResponse> futureCall(
+        AsymmetricSignRequest request, ApiCallContext context) {
+      if (failure != null) {
+        throw failure;
+      }
+      requestTimes.add(System.nanoTime());
+      SettableApiFuture<AsymmetricSignResponse> response = SettableApiFuture.create();
+      if (respond) {
+        response.set(response(request.getDigest().getSha256().toByteArray()));
+      } else {
+        pending.add(response);
+      }
+      return response;
+    }
+
+    @Override
+    public void shutdown() {
+      shutdown = true;
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return shutdown;
+    }
+
+    @Override
+    public void shutdownNow() {
+      shutdown = true;
+    }
+
+    @Override
+    public boolean awaitTermination(long duration, TimeUnit unit) {
+      return shutdown;
+    }
+
+    @Override
+    public void close() {
+      shutdown = true;
+    }
+  }
+}
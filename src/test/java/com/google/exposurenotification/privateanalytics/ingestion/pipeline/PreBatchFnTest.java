@@ -0,0 +1,135 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShareCoder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.SerializableCoder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.testing.PAssert;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.Values;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link PreBatchFn}. */
+@RunWith(JUnit4.class)
+public class PreBatchFnTest {
+
+  public transient IngestionPipelineOptions options =
+      TestPipeline.testingPipelineOptions().as(IngestionPipelineOptions.class);
+
+  @Rule public final transient TestPipeline pipeline = TestPipeline.fromOptions(options);
+
+  @Test
+  public void testMiniBatches() {
+    List<KV<String, KV<DataShareMetadata, DataShare>>> inputData = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      for (String metricName : new String[] {"metric1", "metric2"}) {
+        DataShareMetadata metadata = DataShareMetadata.builder().setMetricName(metricName).build();
+        inputData.add(
+            KV.of(
+                metadata.toString(),
+                KV.of(metadata, DataShare.builder().setPath(metricName + i).build())));
+      }
+    }
+
+    PCollection<KV<String, KV<DataShareMetadata, Iterable<DataShare>>>> miniBatches =
+        pipeline
+            .apply(
+                Create.of(inputData)
+                    .withCoder(
+                        KvCoder.of(
+                            StringUtf8Coder.of(),
+                            KvCoder.of(
+                                SerializableCoder.of(DataShareMetadata.class),
+                                DataShareCoder.of()))))
+            .apply(ParDo.of(new PreBatchFn(3)))
+            .setCoder(WeightedBatchFn.inputCoder());
+
+    PAssert.that(miniBatches.apply(Values.create()))
+        .satisfies(
+            values -> {
+              Set<String> paths = new HashSet<>();
+              for (KV<DataShareMetadata, Iterable<DataShare>> miniBatch : values) {
+                int size = 0;
+                for (DataShare share : miniBatch.getValue()) {
+                  assertThat(share.getPath()).startsWith(miniBatch.getKey().getMetricName());
+                  paths.add(share.getPath());
+                  size++;
+                }
+                assertThat(size).isAtMost(3);
+              }
+              assertThat(paths).hasSize(20);
+              return null;
+            });
+    pipeline.run().waitUntilFinish();
+  }
+
+  @Test
+  public void testPreBatchedBatches() {
+    options.setStartTime(1L);
+    options.setDuration(2L);
+    options.setBatchSize(10L);
+    options.setPreBatchSize(4L);
+    options.setDeviceAttestation(false);
+
+    DataShareMetadata meta = DataShareMetadata.builder().setMetricName("metric").build();
+    List<DataShare> inputData = new ArrayList<>();
+    for (int i = 0; i < 25; i++) {
+      inputData.add(
+          DataShare.builder()
+              .setPath("id" + i)
+              .setCreatedMs(1000L)
+              .setDataShareMetadata(meta)
+              .build());
+    }
+
+    PCollection<KV<DataShareMetadata, Iterable<DataShare>>> batches =
+        IngestionPipeline.processDataShares(pipeline.apply(Create.of(inputData)));
+
+    PAssert.that(batches.apply(Values.create()))
+        .satisfies(
+            values -> {
+              int total = 0;
+              for (Iterable<DataShare> batch : values) {
+                int size = 0;
+                for (DataShare unused : batch) {
+                  size++;
+                }
+                assertThat(size).isAtMost(10);
+                total += size;
+              }
+              assertThat(total).isEqualTo(25);
+              return null;
+            });
+    pipeline.run().waitUntilFinish();
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.abetterinternet.prio.v1.PrioDataSharePacket;
+import org.abetterinternet.prio.v1.PrioIngestionHeader;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for encoding batches of {@link PrioDataSharePacket} and their {@link
+ * PrioIngestionHeader} with the Avro codecs and block sizes of {@link AvroFileFormat}.
+ *
+ * <p>Packets hold random encrypted payloads, which don't compress, along with the textual fields
+ * repeated across a batch, which do. Besides the number of batches encoded, the {@code
+ * encodedBytes} counter reports the bytes written per millisecond, so the file size of a batch is
+ * its ratio to the batch throughput. See the README for how to run.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PrioSerializationBenchmark {
+
+  @Param({"null", "deflate:1", "deflate:6", "snappy", "xz:1"})
+  public String codec;
+
+  @Param({"0", "1048576"})
+  public long blockSize;
+
+  @Param({"1000"})
+  public int batchSize;
+
+  // Size of each encrypted share, e.g. of a metric with a few dozen bins
+  @Param({"256", "2048"})
+  public int payloadSize;
+
+  private AvroFileFormat format;
+  private List<PrioDataSharePacket> packets;
+  private PrioIngestionHeader header;
+  private byte[] syncMarker;
+
+  /** Bytes encoded by the benchmark thread, reported per unit of time. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class EncodedBytes {
+
+    public long encodedBytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      encodedBytes = 0;
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    format = AvroFileFormat.of(codec, blockSize);
+    Random random = new Random(0);
+    packets = new ArrayList<>(batchSize);
+    for (int i = 0; i < batchSize; i++) {
+      byte[] nonce = new byte[16];
+      random.nextBytes(nonce);
+      byte[] payload = new byte[payloadSize];
+      random.nextBytes(payload);
+      packets.add(
+          PrioDataSharePacket.newBuilder()
+              .setDeviceNonce(ByteBuffer.wrap(nonce))
+              .setEncryptionKeyId("projects/pha/locations/global/keyRings/prio/cryptoKeys/share")
+              .setRPit(random.nextInt(Integer.MAX_VALUE))
+              .setUuid(new UUID(random.nextLong(), random.nextLong()).toString())
+              .setVersionConfiguration("v1.0")
+              .setEncryptedPayload(ByteBuffer.wrap(payload))
+              .build());
+    }
+    DataShareMetadata metadata =
+        DataShareMetadata.builder()
+            .setBins(32)
+            .setEpsilon(5.2933D)
+            .setHammingWeight(1)
+            .setMetricName("fakeMetric")
+            .setBatchId("fakeBatch")
+            .setNumberOfServers(DataShare.NUMBER_OF_SERVERS)
+            .setPrime(4293918721L)
+            .build();
+    UUID uuid = UUID.randomUUID();
+    header = PrioSerializationHelper.createHeader(metadata, new byte[32], uuid, 1600000000L, 3600L);
+    syncMarker = PrioSerializationHelper.syncMarker(uuid);
+  }
+
+  @Benchmark
+  public long encodePackets(EncodedBytes counter) throws IOException {
+    CountingOutputStream out = new CountingOutputStream(ByteStreams.nullOutputStream());
+    PrioSerializationHelper.writeRecords(
+        packets,
+        PrioDataSharePacket.class,
+        PrioDataSharePacket.getClassSchema(),
+        syncMarker,
+        format,
+        out);
+    counter.encodedBytes += out.getCount();
+    return out.getCount();
+  }
+
+  @Benchmark
+  public ByteBuffer encodeHeader(EncodedBytes counter) throws IOException {
+    ByteBuffer headerBytes =
+        PrioSerializationHelper.serializeRecords(
+            List.of(header),
+            PrioIngestionHeader.class,
+            PrioIngestionHeader.getClassSchema(),
+            syncMarker,
+            format);
+    counter.encodedBytes += headerBytes.remaining();
+    return headerBytes;
+  }
+}
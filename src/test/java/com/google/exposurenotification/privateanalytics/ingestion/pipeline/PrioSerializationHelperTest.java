@@ -20,12 +20,14 @@ import static org.junit.Assert.assertEquals;
 
 import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare;
 import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.EncryptedShare;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 import org.abetterinternet.prio.v1.PrioDataSharePacket;
 import org.abetterinternet.prio.v1.PrioIngestionHeader;
 import org.junit.Rule;
@@ -150,4 +152,42 @@ public class PrioSerializationHelperTest {
     assertThat(packets.get(0).getEncryptionKeyId()).isNull();
     assertThat(packets.get(1).getEncryptionKeyId()).isNull();
   }
+
+  @Test
+  public void testSerializationWithSyncMarkerIsReproducible() throws IOException {
+    List<PrioDataSharePacket> packets = new ArrayList<>();
+    packets.add(
+        PrioDataSharePacket.newBuilder()
+            .setDeviceNonce(ByteBuffer.wrap(new byte[] {0x07, 0x08, 0x09}))
+            .setEncryptionKeyId("verySecureKey")
+            .setRPit(1L)
+            .setUuid("uniqueuserid")
+            .setVersionConfiguration("v1.0")
+            .setEncryptedPayload(ByteBuffer.wrap(new byte[] {0x01, 0x02, 0x03, 0x04, 0x05}))
+            .build());
+    byte[] syncMarker = PrioSerializationHelper.syncMarker(UUID.nameUUIDFromBytes(new byte[] {1}));
+
+    ByteBuffer first =
+        PrioSerializationHelper.serializeRecords(
+            packets, PrioDataSharePacket.class, PrioDataSharePacket.getClassSchema(), syncMarker);
+    ByteBuffer second =
+        PrioSerializationHelper.serializeRecords(
+            packets, PrioDataSharePacket.class, PrioDataSharePacket.getClassSchema(), syncMarker);
+    ByteBuffer random =
+        PrioSerializationHelper.serializeRecords(
+            packets, PrioDataSharePacket.class, PrioDataSharePacket.getClassSchema());
+
+    assertThat(second).isEqualTo(first);
+    assertThat(random).isNotEqualTo(first);
+
+    ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+    PrioSerializationHelper.writeRecords(
+        packets,
+        PrioDataSharePacket.class,
+        PrioDataSharePacket.getClassSchema(),
+        syncMarker,
+        AvroFileFormat.DEFAULT,
+        streamed);
+    assertThat(ByteBuffer.wrap(streamed.toByteArray())).isEqualTo(first);
+  }
 }
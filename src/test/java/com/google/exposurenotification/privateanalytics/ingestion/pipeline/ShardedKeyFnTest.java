@@ -0,0 +1,116 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.beam.sdk.testing.PAssert;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.transforms.Values;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ShardedKeyFn} and sharded batching. */
+@RunWith(JUnit4.class)
+public class ShardedKeyFnTest {
+
+  public transient IngestionPipelineOptions options =
+      TestPipeline.testingPipelineOptions().as(IngestionPipelineOptions.class);
+
+  @Rule public final transient TestPipeline pipeline = TestPipeline.fromOptions(options);
+
+  @Test
+  public void testShardsFor() {
+    assertThat(ShardedKeyFn.shardsFor(0, 10, 8)).isEqualTo(1);
+    assertThat(ShardedKeyFn.shardsFor(10, 10, 8)).isEqualTo(1);
+    assertThat(ShardedKeyFn.shardsFor(11, 10, 8)).isEqualTo(2);
+    assertThat(ShardedKeyFn.shardsFor(1000, 10, 8)).isEqualTo(8);
+  }
+
+  @Test
+  public void testShardOf() {
+    Set<Long> shards = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      long shard = ShardedKeyFn.shardOf("path" + i, 4);
+      assertThat(shard).isAtLeast(0L);
+      assertThat(shard).isLessThan(4L);
+      assertThat(ShardedKeyFn.shardOf("path" + i, 4)).isEqualTo(shard);
+      shards.add(shard);
+    }
+    assertThat(shards).hasSize(4);
+    assertThat(ShardedKeyFn.shardOf(null, 4)).isEqualTo(0L);
+  }
+
+  @Test
+  public void testAutoShardedBatches() {
+    options.setStartTime(1L);
+    options.setDuration(2L);
+    options.setBatchSize(10L);
+    options.setBatchShards(ShardedKeyFn.AUTO_SHARDS);
+    options.setMaxBatchShards(4L);
+    options.setDeviceAttestation(false);
+
+    DataShareMetadata meta = DataShareMetadata.builder().setMetricName("hotMetric").build();
+    List<DataShare> inputData = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      inputData.add(
+          DataShare.builder()
+              .setPath("id" + i)
+              .setCreatedMs(1000L)
+              .setDataShareMetadata(meta)
+              .build());
+    }
+
+    PCollection<KV<DataShareMetadata, Iterable<DataShare>>> batches =
+        IngestionPipeline.processDataShares(pipeline.apply(Create.of(inputData)));
+
+    PAssert.that(batches.apply(Values.create()))
+        .satisfies(
+            values -> {
+              int total = 0;
+              // 100 shares make 10 batches of the hot metric, capped at 4 shards
+              Set<Long> batchShards = new HashSet<>();
+              for (Iterable<DataShare> batch : values) {
+                int size = 0;
+                Set<Long> shards = new HashSet<>();
+                for (DataShare dataShare : batch) {
+                  size++;
+                  shards.add(ShardedKeyFn.shardOf(dataShare.getPath(), 4));
+                }
+                assertThat(size).isAtMost(10);
+                // Batches are formed within a shard
+                assertThat(shards).hasSize(1);
+                batchShards.addAll(shards);
+                total += size;
+              }
+              assertThat(total).isEqualTo(100);
+              assertThat(batchShards).containsExactly(0L, 1L, 2L, 3L);
+              return null;
+            });
+    pipeline.run().waitUntilFinish();
+  }
+}
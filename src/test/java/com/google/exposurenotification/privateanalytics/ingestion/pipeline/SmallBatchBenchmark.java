@@ -0,0 +1,175 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import com.google.common.io.ByteStreams;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.abetterinternet.prio.v1.PrioBatchSignature;
+import org.abetterinternet.prio.v1.PrioDataSharePacket;
+import org.abetterinternet.prio.v1.PrioIngestionHeader;
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.avro.specific.SpecificRecordBase;
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the fixed cost of serializing the packet, header and signature files of a batch,
+ * as paid by runs writing many small batches.
+ *
+ * <p>{@code reusedEncoders} serializes them through {@link PrioSerializationHelper}, which reuses
+ * the datum writers and encoders of the thread across batches, with the header file format of the
+ * pipeline, {@code newWriters} through a new {@link DataFileWriter} for each file with default
+ * blocks. Run with {@code -prof gc} to compare their allocations too. See the README for how to
+ * run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SmallBatchBenchmark {
+
+  @Param({"1", "10", "100"})
+  public int batchSize;
+
+  private List<PrioDataSharePacket> packets;
+  private PrioIngestionHeader header;
+  private PrioBatchSignature signature;
+  private byte[] syncMarker;
+  private AvroFileFormat headerFormat;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(0);
+    packets = new ArrayList<>(batchSize);
+    for (int i = 0; i < batchSize; i++) {
+      byte[] payload = new byte[256];
+      random.nextBytes(payload);
+      packets.add(
+          PrioDataSharePacket.newBuilder()
+              .setDeviceNonce(ByteBuffer.wrap(new byte[16]))
+              .setEncryptionKeyId("projects/pha/locations/global/keyRings/prio/cryptoKeys/share")
+              .setRPit(random.nextInt(Integer.MAX_VALUE))
+              .setUuid(new UUID(random.nextLong(), random.nextLong()).toString())
+              .setVersionConfiguration("v1.0")
+              .setEncryptedPayload(ByteBuffer.wrap(payload))
+              .build());
+    }
+    DataShareMetadata metadata =
+        DataShareMetadata.builder()
+            .setBins(32)
+            .setEpsilon(5.2933D)
+            .setHammingWeight(1)
+            .setMetricName("fakeMetric")
+            .setBatchId("fakeBatch")
+            .setNumberOfServers(DataShare.NUMBER_OF_SERVERS)
+            .setPrime(4293918721L)
+            .build();
+    UUID uuid = UUID.randomUUID();
+    header = PrioSerializationHelper.createHeader(metadata, new byte[32], uuid, 1600000000L, 3600L);
+    signature =
+        PrioBatchSignature.newBuilder()
+            .setBatchHeaderSignature(ByteBuffer.wrap(new byte[72]))
+            .setKeyIdentifier("projects/pha/locations/global/keyRings/prio/cryptoKeys/sign")
+            .build();
+    syncMarker = PrioSerializationHelper.syncMarker(uuid);
+    headerFormat =
+        AvroFileFormat.headerFormat(PipelineOptionsFactory.as(IngestionPipelineOptions.class));
+  }
+
+  @Benchmark
+  public int reusedEncoders() throws IOException {
+    PrioSerializationHelper.writeRecords(
+        packets,
+        PrioDataSharePacket.class,
+        PrioDataSharePacket.getClassSchema(),
+        syncMarker,
+        AvroFileFormat.DEFAULT,
+        ByteStreams.nullOutputStream());
+    return PrioSerializationHelper.serializeRecords(
+                List.of(header),
+                PrioIngestionHeader.class,
+                PrioIngestionHeader.getClassSchema(),
+                syncMarker,
+                headerFormat)
+            .remaining()
+        + PrioSerializationHelper.serializeRecords(
+                List.of(signature),
+                PrioBatchSignature.class,
+                PrioBatchSignature.getClassSchema(),
+                syncMarker,
+                headerFormat)
+            .remaining();
+  }
+
+  @Benchmark
+  public int newWriters() throws IOException {
+    write(
+        packets,
+        PrioDataSharePacket.class,
+        PrioDataSharePacket.getClassSchema(),
+        ByteStreams.nullOutputStream());
+    ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+    write(
+        List.of(header),
+        PrioIngestionHeader.class,
+        PrioIngestionHeader.getClassSchema(),
+        headerBytes);
+    ByteArrayOutputStream signatureBytes = new ByteArrayOutputStream();
+    write(
+        List.of(signature),
+        PrioBatchSignature.class,
+        PrioBatchSignature.getClassSchema(),
+        signatureBytes);
+    return headerBytes.toByteArray().length + signatureBytes.toByteArray().length;
+  }
+
+  // Serializes as PrioSerializationHelper did before reusing encoders
+  private <T extends SpecificRecordBase> void write(
+      List<T> records, Class<T> recordClass, Schema schema, OutputStream out) throws IOException {
+    try (DataFileWriter<T> writer = new DataFileWriter<>(new SpecificDatumWriter<>(recordClass))) {
+      writer.setCodec(CodecFactory.nullCodec());
+      writer.create(schema, out, syncMarker);
+      for (T record : records) {
+        writer.append(record);
+      }
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.exposurenotification.privateanalytics.ingestion.pipeline;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.DataShareMetadata;
+import com.google.exposurenotification.privateanalytics.ingestion.model.DataShare.EncryptedShare;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.beam.sdk.testing.PAssert;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.transforms.Values;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link WeightedBatchFn}. */
+@RunWith(JUnit4.class)
+public class WeightedBatchFnTest {
+
+  public transient IngestionPipelineOptions options =
+      TestPipeline.testingPipelineOptions().as(IngestionPipelineOptions.class);
+
+  @Rule public final transient TestPipeline pipeline = TestPipeline.fromOptions(options);
+
+  @Test
+  public void testWeightOf() {
+    assertThat(WeightedBatchFn.weightOf(DataShare.builder().build())).isEqualTo(0);
+    assertThat(WeightedBatchFn.weightOf(createShare("id", 10, 20))).isEqualTo(30);
+  }
+
+  @Test
+  public void testBatchesBoundedByBytes() {
+    options.setStartTime(1L);
+    options.setDuration(2L);
+    options.setBatchSize(100L);
+    options.setBatchMaxBytes(250L);
+    options.setDeviceAttestation(false);
+
+    List<DataShare> inputData = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      inputData.add(createShare("id" + i, 50, 50));
+    }
+    // Larger than the limit on its own
+    inputData.add(createShare("large", 200, 200));
+
+    PCollection<KV<DataShareMetadata, Iterable<DataShare>>> batches =
+        IngestionPipeline.processDataShares(pipeline.apply(Create.of(inputData)));
+
+    PAssert.that(batches.apply(Values.create()))
+        .satisfies(
+            values -> {
+              int total = 0;
+              for (Iterable<DataShare> batch : values) {
+                long bytes = 0;
+                int size = 0;
+                for (DataShare share : batch) {
+                  bytes += WeightedBatchFn.weightOf(share);
+                  size++;
+                }
+                assertThat(bytes <= 250 || size == 1).isTrue();
+                total += size;
+              }
+              assertThat(total).isEqualTo(11);
+              return null;
+            });
+    pipeline.run().waitUntilFinish();
+  }
+
+  @Test
+  public void testBatchesBoundedByCount() {
+    options.setStartTime(1L);
+    options.setDuration(2L);
+    options.setBatchSize(3L);
+    options.setBatchMaxBytes(1_000_000L);
+    options.setDeviceAttestation(false);
+
+    List<DataShare> inputData = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      inputData.add(createShare("id" + i, 50, 50));
+    }
+
+    PCollection<KV<DataShareMetadata, Iterable<DataShare>>> batches =
+        IngestionPipeline.processDataShares(pipeline.apply(Create.of(inputData)));
+
+    PAssert.that(batches.apply(Values.create()))
+        .satisfies(
+            values -> {
+              int total = 0;
+              for (Iterable<DataShare> batch : values) {
+                int size = 0;
+                for (DataShare unused : batch) {
+                  size++;
+                }
+                assertThat(size).isAtMost(3);
+                total += size;
+              }
+              assertThat(total).isEqualTo(10);
+              return null;
+            });
+    pipeline.run().waitUntilFinish();
+  }
+
+  private static DataShare createShare(String path, int phaBytes, int facilitatorBytes) {
+    List<EncryptedShare> encryptedShares = new ArrayList<>();
+    encryptedShares.add(
+        EncryptedShare.builder()
+            .setEncryptedPayload(new byte[phaBytes])
+            .setEncryptionKeyId("pha")
+            .build());
+    encryptedShares.add(
+        EncryptedShare.builder()
+            .setEncryptedPayload(new byte[facilitatorBytes])
+            .setEncryptionKeyId("facilitator")
+            .build());
+    return DataShare.builder()
+        .setPath(path)
+        .setCreatedMs(1000L)
+        .setEncryptedDataShares(encryptedShares)
+        .setDataShareMetadata(DataShareMetadata.builder().setMetricName("metric").build())
+        .build();
+  }
+}